@@ -27,16 +27,18 @@
  */
 package edu.columbia.rdf.matcalc.toolbox.decisiontree;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerException;
+import javax.swing.SwingWorker;
+import javax.xml.stream.XMLStreamException;
 
 import org.jebtk.core.ColorUtils;
 import org.jebtk.core.Mathematics;
-import org.jebtk.core.xml.XmlUtils;
 import org.jebtk.graphplot.figure.Axes;
 import org.jebtk.graphplot.figure.Axis;
 import org.jebtk.graphplot.figure.BoxWhiskerScatterLayer2;
@@ -48,8 +50,7 @@ import org.jebtk.graphplot.figure.series.XYSeries;
 import org.jebtk.graphplot.figure.series.XYSeriesGroup;
 import org.jebtk.graphplot.icons.ShapeStyle;
 import org.jebtk.math.Linspace;
-import org.jebtk.math.machine.learning.C45;
-import org.jebtk.math.machine.learning.DecisionTree;
+import org.jebtk.math.cluster.DistanceMetric;
 import org.jebtk.math.matrix.DataFrame;
 import org.jebtk.math.matrix.MatrixGroup;
 import org.jebtk.modern.AssetService;
@@ -63,17 +64,29 @@ import org.jebtk.modern.io.RecentFilesService;
 import org.jebtk.modern.ribbon.RibbonLargeButton;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
 
 import edu.columbia.rdf.matcalc.MainMatCalcWindow;
 import edu.columbia.rdf.matcalc.figure.graph2d.Graph2dWindow;
 import edu.columbia.rdf.matcalc.toolbox.Module;
 import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.AddClassifierDialog;
 import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.Classifier;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.ClassifierBinaryGuiFileFilter;
 import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.ClassifierDialog;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.ClassifierEntry;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.ClassifierFiles;
 import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.ClassifierGuiFileFilter;
 import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.ClassifierService;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.ClassifierXmlGuiFileFilter;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.ClassifyProgressDialog;
 import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.ConfidenceLayer;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.TrainProgressDialog;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.metrics.DecisionTreeMetrics;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.DecisionTree;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.FeatureBinding;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.ParallelClassifier;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.PermutationTest;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.Trainer;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.TreeModel;
 
 /**
  * Merges designated segments together using the merge column. Consecutive rows
@@ -101,6 +114,12 @@ public class DecisionTreeModule extends Module {
 
   private static final int CLASSIFIER_PLOT_WIDTH = 100;
 
+  /**
+   * The seed of the permutation test, so that repeated runs give the same
+   * p-values.
+   */
+  private static final long PERMUTATION_SEED = 42;
+
   // private RibbonLargeButton2 mExportButton = new RibbonLargeButton2("Export",
   // UIResources.getInstance().loadScalableIcon(SaveVectorIcon.class, 24));
 
@@ -130,6 +149,8 @@ public class DecisionTreeModule extends Module {
   public void init(MainMatCalcWindow window) {
     mWindow = window;
 
+    DecisionTreeMetrics.getInstance().register();
+
     // home
     mWindow.getRibbon().getToolbar("Classification").getSection("Decision Tree")
         .add(mClassifyButton);
@@ -168,23 +189,162 @@ public class DecisionTreeModule extends Module {
       return;
     }
 
-    DataFrame m = mWindow.getCurrentMatrix();
+    final DataFrame m = mWindow.getCurrentMatrix();
 
-    DecisionTree tree = dialog.getDecisionTree();
+    final ClassifierEntry entry = dialog.getEntry();
 
-    double[] values;
+    final ClassifyProgressDialog progressDialog = new ClassifyProgressDialog(
+        mWindow, entry.getName());
 
-    DataFrame resultsM = DataFrame.createNumericalMatrix(m.getCols(), 1);
+    final int permutations = dialog.getPermutations();
+    final PermutationTest.Metric metric = metric(dialog.getDistanceMetric());
 
-    for (int queryColumn = 0; queryColumn < m.getCols(); ++queryColumn) {
-      // Score each sample in the query set
+    // Read the classifier and score the samples in the background so the UI
+    // stays responsive
+    SwingWorker<PermutationTest.Result, Void> worker =
+        new SwingWorker<PermutationTest.Result, Void>() {
+      private ParallelClassifier mClassifier;
+      private List<String> mMissing;
+
+      @Override
+      protected PermutationTest.Result doInBackground() {
+        // Reading a classifier may parse it from its library or train it
+        Classifier c = entry.getClassifier();
+
+        TreeModel model = c.getModel();
+
+        // Match the genes the model splits on to the rows of the matrix. This
+        // is cached until the matrix's row index changes.
+        FeatureBinding binding = FeatureBinding.bind(model,
+            m,
+            c.getAnnotation());
 
-      values = m.columnToDouble(queryColumn);
+        if (!binding.isComplete()) {
+          mMissing = binding.getMissing();
 
-      String classification = tree.classify(values);
+          return null;
+        }
+
+        ParallelClassifier classifier = new ParallelClassifier(m, binding,
+            model);
+
+        mClassifier = classifier;
+
+        progressDialog.setClassifier(classifier);
+
+        classifier.run();
+
+        if (classifier.isCancelled()) {
+          return null;
+        }
+
+        // If the tree is counting the paths samples take, lay it out for
+        // the paths these samples took
+        if (model instanceof DecisionTree
+            && ((DecisionTree) model).isProfiling()) {
+          ((DecisionTree) model).relayout();
+        }
 
+        // Test the significance of each sample's score on the snapshot that
+        // was just classified. Cancelling the job stops the test between
+        // batches of permutations.
+        PermutationTest test = c
+            .createPermutationTest(classifier.getSnapshot(), metric);
+
+        progressDialog.setPermutationTest(test, permutations);
+
+        return test.run(permutations,
+            PermutationTest.DEFAULT_ALPHA,
+            PERMUTATION_SEED,
+            classifier::isCancelled);
+      }
+
+      @Override
+      protected void done() {
+        progressDialog.setVisible(false);
+
+        PermutationTest.Result result;
+
+        try {
+          result = get();
+        } catch (InterruptedException | ExecutionException e) {
+          LOG.error("Classification failed.", e);
+
+          ModernMessageDialog.createWarningDialog(mWindow,
+              "The samples could not be classified.");
+
+          return;
+        }
+
+        if (progressDialog.isCancelled()) {
+          return;
+        }
+
+        if (mMissing != null) {
+          ModernMessageDialog.createWarningDialog(mWindow,
+              "The matrix is missing genes used by " + entry.getName() + ": "
+                  + String.join(", ", mMissing) + ".");
+
+          return;
+        }
+
+        addResults(m, mClassifier, result);
+      }
+    };
+
+    worker.execute();
+
+    progressDialog.setVisible(true);
+  }
+
+  /**
+   * Map the distance metric chosen in the dialog to one the permutation test
+   * supports, falling back to Euclidean distance.
+   *
+   * @param metric
+   * @return
+   */
+  private static PermutationTest.Metric metric(DistanceMetric metric) {
+    if (metric != null) {
+      for (PermutationTest.Metric m : PermutationTest.Metric.values()) {
+        if (m.name().equals(metric.name())) {
+          return m;
+        }
+      }
+    }
+
+    return PermutationTest.Metric.EUCLIDEAN;
+  }
+
+  /**
+   * Add the classification, score and p-value of each sample to the history
+   * once every chunk has been scored.
+   *
+   * @param m
+   * @param classifier
+   * @param result
+   */
+  private void addResults(DataFrame m,
+      ParallelClassifier classifier,
+      PermutationTest.Result result) {
+    String[] labels = classifier.getModel().getLabels();
+    int[] classifications = classifier.getLabels();
+    double[] scores = result.getScores();
+    double[] pValues = result.getPValues();
+
+    DataFrame resultsM = DataFrame.createNumericalMatrix(m.getCols(), 4);
+
+    resultsM.setColumnName(0, "Classification");
+    resultsM.setColumnName(1, "Score");
+    resultsM.setColumnName(2, "P-value");
+    resultsM.setColumnName(3, "Classifier P-value");
+
+    for (int queryColumn = 0; queryColumn < m.getCols(); ++queryColumn) {
       resultsM.setRowName(queryColumn, m.getColumnName(queryColumn));
-      resultsM.set(queryColumn, 0, classification);
+      resultsM.set(queryColumn, 0, labels[classifications[queryColumn]]);
+      resultsM.set(queryColumn, 1, scores[queryColumn]);
+      resultsM.set(queryColumn, 2, pValues[queryColumn]);
+      resultsM.set(queryColumn, 3, result.getPValue());
     }
 
     mWindow.history().addToHistory("Run classifier", resultsM);
@@ -336,7 +496,7 @@ public class DecisionTreeModule extends Module {
       return;
     }
 
-    DataFrame m = mWindow.getCurrentMatrix();
+    final DataFrame m = mWindow.getCurrentMatrix();
 
     AddClassifierDialog dialog = new AddClassifierDialog(mWindow, m);
 
@@ -346,27 +506,78 @@ public class DecisionTreeModule extends Module {
       return;
     }
 
-    DecisionTree decisionTree = C45.parseDouble(m, mWindow.getGroups());
+    final String name = dialog.getClassifierName();
+    final XYSeries phenotypeGroup = dialog.getGroup1();
+    final XYSeries controlGroup = dialog.getGroup2();
+    final String annotation = dialog.getAnnotation();
+    final Trainer trainer = dialog.getTrainer();
+
+    final TrainProgressDialog progressDialog = new TrainProgressDialog(
+        mWindow, name);
+
+    // Train in the background so the UI stays responsive
+    SwingWorker<Classifier, Void> worker =
+        new SwingWorker<Classifier, Void>() {
+      @Override
+      protected Classifier doInBackground() {
+        return Classifier.create(name,
+            m,
+            phenotypeGroup,
+            controlGroup,
+            annotation,
+            trainer);
+      }
+
+      @Override
+      protected void done() {
+        progressDialog.setVisible(false);
+
+        if (progressDialog.isCancelled()) {
+          return;
+        }
+
+        Classifier classifier;
+
+        try {
+          classifier = get();
+        } catch (InterruptedException | ExecutionException e) {
+          LOG.error("Training failed.", e);
+
+          ModernMessageDialog.createWarningDialog(mWindow,
+              "The classifier could not be created.");
+
+          return;
+        }
+
+        ClassifierService.getInstance().add(classifier);
+
+        ModernMessageDialog.createInformationDialog(mWindow,
+            "The classifier was created.");
+      }
+    };
 
-    ClassifierService.getInstance().add(decisionTree);
+    worker.execute();
 
-    ModernMessageDialog.createInformationDialog(mWindow,
-        "The classifier was created.");
+    progressDialog.setVisible(true);
   }
 
-  private void export()
-      throws TransformerException, ParserConfigurationException {
-    writeXml(FileDialog.save(mWindow).filter(new ClassifierGuiFileFilter())
-        .getFile(RecentFilesService.getInstance().getPwd()));
+  private void export() throws IOException, XMLStreamException {
+    ClassifierFiles.save(
+        FileDialog.save(mWindow)
+            .filter(new ClassifierGuiFileFilter(),
+                new ClassifierXmlGuiFileFilter(),
+                new ClassifierBinaryGuiFileFilter())
+            .getFile(RecentFilesService.getInstance().getPwd()),
+        ClassifierService.getInstance().getClassifiers());
   }
 
-  public final void writeXml(Path file)
-      throws TransformerException, ParserConfigurationException {
-    Document doc = XmlUtils.createDoc();
+  public final void writeXml(Path file) throws IOException, XMLStreamException {
+    long start = DecisionTreeMetrics.getInstance().start();
 
-    doc.appendChild(ClassifierService.getInstance().toXml(doc));
+    ClassifierFiles.saveXml(file,
+        ClassifierService.getInstance().getClassifiers());
 
-    XmlUtils.writeXml(doc, file);
+    DecisionTreeMetrics.getInstance().saved(start, Files.size(file));
 
     // LOG.info("Wrote settings to {}", Path.getAbsoluteFile());
   }
@@ -0,0 +1,107 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.app;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.batch.BatchClassifier;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.Classifier;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.metrics.DecisionTreeMetrics;
+
+/**
+ * Headless entry point for classifying expression matrices on the command
+ * line. Unlike {@link MainDecisionTree} this does not start MatCalc or load
+ * any AWT or graph plotting classes.
+ *
+ * Usage: -c library.clsx [-c library2.clsx] [-o out.tsv]
+ * [-a annotation columns] [-i id column] matrix.txt [matrix2.txt...]
+ */
+public class MainDecisionTreeBatch {
+
+  public static final void main(String[] args)
+      throws IOException, SAXException, ParserConfigurationException {
+    System.setProperty("java.awt.headless", "true");
+
+    List<Path> libraries = new ArrayList<Path>();
+    List<Path> matrices = new ArrayList<Path>();
+    Path out = null;
+    int annotationColumns = 1;
+    int idColumn = 0;
+
+    for (int i = 0; i < args.length; ++i) {
+      String arg = args[i];
+
+      if (i < args.length - 1
+          && (arg.equals("-c") || arg.equals("--classifiers"))) {
+        libraries.add(Paths.get(args[++i]));
+      } else if (i < args.length - 1
+          && (arg.equals("-o") || arg.equals("--out"))) {
+        out = Paths.get(args[++i]);
+      } else if (i < args.length - 1
+          && (arg.equals("-a") || arg.equals("--annotation-columns"))) {
+        annotationColumns = Integer.parseInt(args[++i]);
+      } else if (i < args.length - 1
+          && (arg.equals("-i") || arg.equals("--id-column"))) {
+        idColumn = Integer.parseInt(args[++i]);
+      } else if (arg.startsWith("-")) {
+        usage();
+        return;
+      } else {
+        matrices.add(Paths.get(arg));
+      }
+    }
+
+    if (libraries.size() == 0 || matrices.size() == 0
+        || idColumn >= annotationColumns) {
+      usage();
+      return;
+    }
+
+    DecisionTreeMetrics.getInstance().register();
+
+    List<Classifier> classifiers = new ArrayList<Classifier>();
+
+    for (Path library : libraries) {
+      classifiers.addAll(BatchClassifier.load(library));
+    }
+
+    BatchClassifier classifier = new BatchClassifier(classifiers,
+        annotationColumns, idColumn);
+
+    Writer writer = out != null
+        ? Files.newBufferedWriter(out, StandardCharsets.UTF_8)
+        : new BufferedWriter(new OutputStreamWriter(System.out));
+
+    try {
+      for (Path matrix : matrices) {
+        classifier.classify(matrix, writer);
+      }
+    } finally {
+      writer.close();
+    }
+
+    // Report the whole run, since it may finish before the first periodic
+    // report
+    DecisionTreeMetrics.getInstance().log();
+  }
+
+  private static void usage() {
+    System.err.println("Usage: " + MainDecisionTreeBatch.class.getName()
+        + " -c library.clsx [-c library2.clsx] [-o out.tsv]"
+        + " [-a annotation columns (1)] [-i id column (0)]"
+        + " matrix.txt [matrix2.txt...]");
+
+    System.exit(1);
+  }
+}
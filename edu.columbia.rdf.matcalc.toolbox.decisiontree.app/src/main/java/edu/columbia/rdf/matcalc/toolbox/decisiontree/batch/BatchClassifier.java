@@ -0,0 +1,316 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.batch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.Classifier;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.ClassifierFiles;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.metrics.DecisionTreeMetrics;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.DecisionTree;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.TreeModel;
+
+/**
+ * Classifies every sample in expression matrices on disk without a GUI.
+ * Matrices are tab delimited with a header row of sample names. Only the rows
+ * of genes the classifiers split on are kept in memory as the file is read.
+ *
+ * @author Antony Holmes
+ */
+public class BatchClassifier {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(BatchClassifier.class);
+
+  private final List<Classifier> mClassifiers;
+
+  /**
+   * The number of leading annotation columns in each matrix.
+   */
+  private final int mAnnotationColumns;
+
+  /**
+   * The annotation column holding the gene ids matched against the
+   * classifiers.
+   */
+  private final int mIdColumn;
+
+  /**
+   * Maps each gene used by any classifier to the slot its row is stored in.
+   */
+  private final Map<String, Integer> mGeneSlots = new HashMap<String, Integer>();
+
+  /**
+   * For each classifier, the slot of each feature its model splits on.
+   */
+  private final int[][] mSlots;
+
+  /**
+   * For each classifier, the features its model splits on.
+   */
+  private final int[][] mFeatures;
+
+  private boolean mWriteHeader = true;
+
+  public BatchClassifier(List<Classifier> classifiers, int annotationColumns,
+      int idColumn) {
+    mClassifiers = classifiers;
+    mAnnotationColumns = annotationColumns;
+    mIdColumn = idColumn;
+
+    mSlots = new int[classifiers.size()][];
+    mFeatures = new int[classifiers.size()][];
+
+    for (int ci = 0; ci < classifiers.size(); ++ci) {
+      TreeModel model = classifiers.get(ci).getModel();
+
+      int[] features = model.getUsedFeatures();
+
+      mFeatures[ci] = features;
+      mSlots[ci] = new int[features.length];
+
+      for (int i = 0; i < features.length; ++i) {
+        String gene = model.getFeatures()[features[i]];
+
+        Integer slot = mGeneSlots.get(gene);
+
+        if (slot == null) {
+          slot = mGeneSlots.size();
+          mGeneSlots.put(gene, slot);
+        }
+
+        mSlots[ci][i] = slot;
+      }
+    }
+  }
+
+  /**
+   * Classify each sample in a matrix and write one line per sample.
+   *
+   * @param file The matrix file.
+   * @param writer Where to write the classifications.
+   * @throws IOException
+   */
+  public void classify(Path file, Writer writer) throws IOException {
+    LOG.info("Classifying {}...", file);
+
+    String[] samples;
+    double[][] rows = new double[mGeneSlots.size()][];
+
+    BufferedReader reader = Files.newBufferedReader(file,
+        StandardCharsets.UTF_8);
+
+    try {
+      String line = reader.readLine();
+
+      if (line == null) {
+        throw new IOException(file + " is empty.");
+      }
+
+      String[] header = line.split("\t", -1);
+
+      if (header.length <= mAnnotationColumns) {
+        throw new IOException(file + " has no sample columns.");
+      }
+
+      samples = new String[header.length - mAnnotationColumns];
+
+      System.arraycopy(header, mAnnotationColumns, samples, 0, samples.length);
+
+      int l = 1;
+
+      while ((line = reader.readLine()) != null) {
+        ++l;
+
+        String id = getId(line);
+
+        Integer slot = mGeneSlots.get(id);
+
+        // Skip genes the trees do not use without parsing the rest of the
+        // line. If a gene is duplicated, the first row wins.
+        if (slot == null || rows[slot] != null) {
+          continue;
+        }
+
+        rows[slot] = parseValues(file, l, line, samples.length);
+      }
+    } finally {
+      reader.close();
+    }
+
+    for (int ci = 0; ci < mClassifiers.size(); ++ci) {
+      for (int i = 0; i < mSlots[ci].length; ++i) {
+        if (rows[mSlots[ci][i]] == null) {
+          throw new IOException(file + " is missing gene "
+              + mClassifiers.get(ci).getModel().getFeatures()[mFeatures[ci][i]]
+              + " used by classifier " + mClassifiers.get(ci).getName() + ".");
+        }
+      }
+    }
+
+    String[][] labels = classify(rows, samples.length);
+
+    // Lay out profiled trees for the paths the samples took, ready for the
+    // next matrix
+    for (Classifier c : mClassifiers) {
+      TreeModel model = c.getModel();
+
+      if (model instanceof DecisionTree
+          && ((DecisionTree) model).isProfiling()) {
+        ((DecisionTree) model).relayout();
+      }
+    }
+
+    if (mWriteHeader) {
+      writer.write("Matrix\tSample");
+
+      for (Classifier c : mClassifiers) {
+        writer.write("\t");
+        writer.write(c.getName());
+      }
+
+      writer.write("\n");
+
+      mWriteHeader = false;
+    }
+
+    String name = file.getFileName().toString();
+
+    for (int s = 0; s < samples.length; ++s) {
+      writer.write(name);
+      writer.write("\t");
+      writer.write(samples[s]);
+
+      for (int ci = 0; ci < mClassifiers.size(); ++ci) {
+        writer.write("\t");
+        writer.write(labels[ci][s]);
+      }
+
+      writer.write("\n");
+    }
+
+    writer.flush();
+
+    LOG.info("Classified {} samples.", samples.length);
+  }
+
+  /**
+   * Classify all samples across the available cores.
+   *
+   * @param rows The values of each gene slot.
+   * @param n The number of samples.
+   * @return The label for each classifier and sample.
+   */
+  private String[][] classify(final double[][] rows, final int n) {
+    long start = DecisionTreeMetrics.getInstance().start();
+
+    final String[][] ret = new String[mClassifiers.size()][n];
+
+    final int threads = Math.min(n,
+        Runtime.getRuntime().availableProcessors());
+
+    IntStream.range(0, threads).parallel().forEach(t -> {
+      // Each worker reuses one value array per model holding just the
+      // features the model splits on
+      double[][] values = new double[mClassifiers.size()][];
+
+      for (int ci = 0; ci < values.length; ++ci) {
+        values[ci] = new double[mSlots[ci].length];
+      }
+
+      for (int s = t; s < n; s += threads) {
+        for (int ci = 0; ci < values.length; ++ci) {
+          TreeModel model = mClassifiers.get(ci).getModel();
+          int[] slots = mSlots[ci];
+
+          for (int i = 0; i < slots.length; ++i) {
+            values[ci][i] = rows[slots[i]][s];
+          }
+
+          ret[ci][s] = model.getLabels()[model.classifyProjected(values[ci],
+              0)];
+        }
+      }
+    });
+
+    DecisionTreeMetrics.getInstance().classified(start,
+        (long) n * mClassifiers.size());
+
+    return ret;
+  }
+
+  private String getId(String line) {
+    int start = 0;
+
+    for (int i = 0; i < mIdColumn; ++i) {
+      start = line.indexOf('\t', start) + 1;
+
+      if (start == 0) {
+        return null;
+      }
+    }
+
+    int end = line.indexOf('\t', start);
+
+    return end == -1 ? line.substring(start) : line.substring(start, end);
+  }
+
+  private double[] parseValues(Path file, int l, String line, int n)
+      throws IOException {
+    String[] tokens = line.split("\t", -1);
+
+    if (tokens.length != n + mAnnotationColumns) {
+      throw new IOException(file + " line " + l + " has " + tokens.length
+          + " columns but the header has " + (n + mAnnotationColumns) + ".");
+    }
+
+    double[] ret = new double[n];
+
+    for (int i = 0; i < n; ++i) {
+      String token = tokens[mAnnotationColumns + i].trim();
+
+      if (token.isEmpty() || token.equalsIgnoreCase("na")
+          || token.equalsIgnoreCase("nan")) {
+        ret[i] = Double.NaN;
+      } else {
+        try {
+          ret[i] = Double.parseDouble(token);
+        } catch (NumberFormatException e) {
+          throw new IOException(
+              file + " line " + l + " has a non-numeric value " + token + ".");
+        }
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Load the classifiers in a library file.
+   *
+   * @param file A .clsx file in either the XML or binary format.
+   * @return
+   * @throws IOException
+   * @throws SAXException
+   * @throws ParserConfigurationException
+   */
+  public static List<Classifier> load(Path file)
+      throws IOException, SAXException, ParserConfigurationException {
+    LOG.info("Loading classifiers from {}...", file);
+
+    return new ArrayList<Classifier>(ClassifierFiles.load(file));
+  }
+}
@@ -12,6 +12,7 @@ import org.jebtk.modern.dialog.ModernMessageDialog;
 import org.jebtk.modern.event.ModernClickEvent;
 import org.jebtk.modern.panel.HBox;
 import org.jebtk.modern.panel.VBox;
+import org.jebtk.modern.spinner.ModernCompactSpinner;
 import org.jebtk.modern.text.ModernAutoSizeLabel;
 import org.jebtk.modern.text.ModernClipboardTextField;
 import org.jebtk.modern.text.ModernTextBorderPanel;
@@ -21,6 +22,8 @@ import org.jebtk.modern.window.WindowWidgetFocusEvents;
 import edu.columbia.rdf.matcalc.GroupPanel;
 import edu.columbia.rdf.matcalc.MainMatCalcWindow;
 import edu.columbia.rdf.matcalc.MatrixRowAnnotationCombo;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.RandomForest;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.Trainer;
 
 public class AddClassifierDialog extends ModernDialogTaskWindow {
   private static final long serialVersionUID = 1L;
@@ -33,6 +36,11 @@ public class AddClassifierDialog extends ModernDialogTaskWindow {
 
   private MatrixRowAnnotationCombo mHeaderCombo;
 
+  private TrainingModeCombo mModeCombo = new TrainingModeCombo();
+
+  private ModernCompactSpinner mTreesField = new ModernCompactSpinner(1, 10000,
+      RandomForest.DEFAULT_TREES);
+
   private DataFrame mM;
 
   public AddClassifierDialog(MainMatCalcWindow parent, DataFrame m) {
@@ -52,7 +60,7 @@ public class AddClassifierDialog extends ModernDialogTaskWindow {
   private void setup() {
     addWindowListener(new WindowWidgetFocusEvents(mOkButton));
 
-    setSize(600, 300);
+    setSize(600, 400);
 
     UI.centerWindowToScreen(this);
   }
@@ -71,6 +79,12 @@ public class AddClassifierDialog extends ModernDialogTaskWindow {
     mHeaderCombo = new MatrixRowAnnotationCombo(mM);
     box.add(new HBox(new ModernAutoSizeLabel("Annotation", 100), mHeaderCombo));
 
+    box.add(UI.createVGap(20));
+    box.add(new HBox(new ModernAutoSizeLabel("Training", 100), mModeCombo));
+
+    box.add(UI.createVGap(5));
+    box.add(new HBox(new ModernAutoSizeLabel("Trees", 100), mTreesField));
+
     setCard(box);
   }
 
@@ -103,4 +117,8 @@ public class AddClassifierDialog extends ModernDialogTaskWindow {
   public String getAnnotation() {
     return mHeaderCombo.getText();
   }
+
+  public Trainer getTrainer() {
+    return mModeCombo.getTrainer(mTreesField.getIntValue());
+  }
 }
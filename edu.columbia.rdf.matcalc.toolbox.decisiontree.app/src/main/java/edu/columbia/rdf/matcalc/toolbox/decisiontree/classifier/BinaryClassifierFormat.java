@@ -0,0 +1,1041 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jebtk.math.matrix.DataFrame;
+
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.ReferenceMatrix.Storage;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.metrics.DecisionTreeMetrics;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.DecisionTree;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.GradientBoostedTrees;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.Quantizer;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.RandomForest;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.TreeModel;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.TreeNode;
+
+/**
+ * Reads and writes classifier libraries in a compact binary form.
+ *
+ * A file starts with a 32 byte header: the magic bytes {@code CLSX}, the
+ * format version, the number of classifiers and the offsets of the index
+ * and of the gene lists. Each classifier follows as a record prefixed with
+ * its length, so readers can map one record at a time or skip records
+ * entirely. A record holds the classifier's names, the number of its gene
+ * list, the phenotype and control values as contiguous blocks of doubles or
+ * floats, one sample after another and aligned to 8 bytes, and finally its
+ * model with the trees written in depth first order. All numbers are
+ * little-endian.
+ *
+ * The index at the end of the file repeats the names and sizes of each
+ * classifier along with the offset and length of its record, so a library
+ * can be listed without reading any of the records. It is followed by the
+ * distinct gene lists. Classifiers trained on the same platform share a
+ * list, so its symbols are only stored once.
+ *
+ * Version 1 files have a 16 byte header and no index. Version 1 and 2 files
+ * store the genes in each record. Version 4 added 16 bit fixed point
+ * values. Version 5 added the number of samples that reached each node of a
+ * tree, which decides how it is laid out in memory.
+ *
+ * Records are read through memory mapped buffers so the values are copied
+ * straight out of the page cache without going through a stream.
+ *
+ * Libraries are saved in this format when they are given the .clsb
+ * extension.
+ *
+ * @author Antony Holmes
+ */
+public class BinaryClassifierFormat {
+
+  /**
+   * How the phenotype and control values are stored.
+   */
+  public enum Precision {
+    DOUBLE,
+
+    /**
+     * Single precision, which halves the size of a library.
+     */
+    FLOAT,
+
+    /**
+     * 16 bit codes spread evenly between the smallest and largest value of
+     * each gene, which quarters the size of a library. Each gene stores the
+     * offset and scale that convert its codes back to values.
+     */
+    FIXED16
+  }
+
+  static final byte[] MAGIC = { 'C', 'L', 'S', 'X' };
+
+  public static final int VERSION = 5;
+
+  private static final int HEADER_SIZE = 32;
+
+  private static final int HEADER_SIZE_V1 = 16;
+
+  private static final int HEADER_SIZE_V2 = 24;
+
+  private static final byte MODEL_TREE = 1;
+  private static final byte MODEL_FOREST = 2;
+  private static final byte MODEL_BOOSTED = 3;
+
+  private static final byte NODE_SPLIT = 0;
+  private static final byte NODE_LABEL = 1;
+  private static final byte NODE_VALUE = 2;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * The fixed fields at the start of a library.
+   */
+  private static class Header {
+    private final int mVersion;
+    private final int mCount;
+
+    /**
+     * The offset of the index, or 0 if the file does not have one.
+     */
+    private final long mIndex;
+
+    /**
+     * The offset of the gene lists, or 0 if the genes are in the records.
+     */
+    private final long mGenes;
+
+    public Header(int version, int count, long index, long genes) {
+      mVersion = version;
+      mCount = count;
+      mIndex = index;
+      mGenes = genes;
+    }
+
+    public int size() {
+      if (mVersion < 2) {
+        return HEADER_SIZE_V1;
+      } else if (mVersion < 3) {
+        return HEADER_SIZE_V2;
+      } else {
+        return HEADER_SIZE;
+      }
+    }
+  }
+
+  private BinaryClassifierFormat() {
+    // Do nothing
+  }
+
+  /**
+   * Returns true if a buffer starts with the magic bytes of a binary
+   * library.
+   *
+   * @param header
+   * @return
+   */
+  static boolean isBinary(ByteBuffer header) {
+    if (header.remaining() < MAGIC.length) {
+      return false;
+    }
+
+    for (int i = 0; i < MAGIC.length; ++i) {
+      if (header.get(header.position() + i) != MAGIC[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Read the classifiers in a binary library.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static List<Classifier> read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      Header header = readHeader(channel, file);
+
+      GeneList[] geneLists = readGeneLists(channel, header);
+
+      List<Classifier> ret = new ArrayList<Classifier>(header.mCount);
+
+      long position = header.size();
+
+      for (int i = 0; i < header.mCount; ++i) {
+        long length = map(channel, position, 8).getLong();
+
+        ret.add(readClassifier(map(channel, position + 8, length),
+            geneLists,
+            header.mVersion));
+
+        position += 8 + length;
+      }
+
+      return ret;
+    }
+  }
+
+  /**
+   * Read the index of a binary library. The classifiers themselves are only
+   * read when they are first asked for, from a mapping of their record made
+   * now. Each entry therefore keeps reading the library it was indexed from
+   * even if the file is replaced.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static List<ClassifierEntry> index(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      Header header = readHeader(channel, file);
+
+      // The gene lists are small enough to read up front and are shared by
+      // the classifiers as they are loaded
+      GeneList[] geneLists = readGeneLists(channel, header);
+
+      List<ClassifierEntry> ret = new ArrayList<ClassifierEntry>(
+          header.mCount);
+
+      if (header.mIndex > 0) {
+        ByteBuffer buffer = map(channel,
+            header.mIndex,
+            channel.size() - header.mIndex);
+
+        for (int i = 0; i < header.mCount; ++i) {
+          long offset = buffer.getLong();
+          long length = buffer.getLong();
+
+          ret.add(readEntry(buffer,
+              map(channel, offset, length),
+              geneLists,
+              header.mVersion));
+        }
+      } else {
+        // Without an index, read the names from the start of each record.
+        // Only the pages touched are read from disk.
+        long position = header.size();
+
+        for (int i = 0; i < header.mCount; ++i) {
+          long length = map(channel, position, 8).getLong();
+
+          ByteBuffer record = map(channel, position + 8, length);
+
+          ret.add(readEntry(record.duplicate().order(ByteOrder.LITTLE_ENDIAN),
+              record,
+              geneLists,
+              header.mVersion));
+
+          position += 8 + length;
+        }
+      }
+
+      return ret;
+    }
+  }
+
+  /**
+   * Read the classifier in a mapped record of a library.
+   *
+   * @param record
+   * @param geneLists The gene lists of the library or null if the genes are
+   *          in the record.
+   * @param version The version of the library.
+   * @return
+   */
+  private static Classifier read(ByteBuffer record,
+      GeneList[] geneLists,
+      int version) {
+    long start = DecisionTreeMetrics.getInstance().start();
+
+    // The record is shared by every load of the entry
+    Classifier ret = readClassifier(
+        record.duplicate().order(ByteOrder.LITTLE_ENDIAN),
+        geneLists,
+        version);
+
+    DecisionTreeMetrics.getInstance().loaded(start, record.capacity());
+
+    return ret;
+  }
+
+  /**
+   * Read the gene lists of a library.
+   *
+   * @param channel
+   * @param header
+   * @return The lists or null if the library stores the genes of each
+   *         classifier in its record.
+   * @throws IOException
+   */
+  private static GeneList[] readGeneLists(FileChannel channel, Header header)
+      throws IOException {
+    if (header.mGenes == 0) {
+      return null;
+    }
+
+    ByteBuffer buffer = map(channel,
+        header.mGenes,
+        channel.size() - header.mGenes);
+
+    GeneList[] ret = new GeneList[buffer.getInt()];
+
+    for (int i = 0; i < ret.length; ++i) {
+      ret[i] = GeneDictionary.getInstance().intern(readStrings(buffer));
+    }
+
+    return ret;
+  }
+
+  private static Header readHeader(FileChannel channel, Path file)
+      throws IOException {
+    ByteBuffer buffer = map(channel, 0, HEADER_SIZE_V1);
+
+    if (!isBinary(buffer)) {
+      throw new IOException(file + " is not a binary classifier library.");
+    }
+
+    buffer.position(MAGIC.length);
+
+    int version = buffer.getInt();
+
+    if (version > VERSION) {
+      throw new IOException(file + " was written by a newer version ("
+          + version + ") of the classifier format.");
+    }
+
+    int count = buffer.getInt();
+
+    long index = version < 2 ? 0 : map(channel, HEADER_SIZE_V1, 8).getLong();
+    long genes = version < 3 ? 0 : map(channel, HEADER_SIZE_V2, 8).getLong();
+
+    return new Header(version, count, index, genes);
+  }
+
+  private static ClassifierEntry readEntry(ByteBuffer buffer,
+      ByteBuffer record,
+      GeneList[] geneLists,
+      int version) {
+    String name = readString(buffer);
+    String phenotype = readString(buffer);
+    String control = readString(buffer);
+    String annotation = readString(buffer);
+
+    int geneCount = buffer.getInt();
+    int phenSize = buffer.getInt();
+    int controlSize = buffer.getInt();
+
+    return new ClassifierEntry(name, phenotype, control, annotation,
+        geneCount, phenSize, controlSize,
+        () -> read(record, geneLists, version));
+  }
+
+  private static ByteBuffer map(FileChannel channel, long position, long size)
+      throws IOException {
+    if (position + size > channel.size()) {
+      throw new IOException("The classifier library is truncated.");
+    }
+
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, size)
+        .order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static Classifier readClassifier(ByteBuffer buffer,
+      GeneList[] geneLists,
+      int version) {
+    String name = readString(buffer);
+    String phenotype = readString(buffer);
+    String control = readString(buffer);
+    String annotation = readString(buffer);
+
+    int geneCount = buffer.getInt();
+    int phenSize = buffer.getInt();
+    int controlSize = buffer.getInt();
+    Precision precision = Precision.values()[buffer.get()];
+
+    String[] genes;
+
+    if (geneLists != null) {
+      genes = geneLists[buffer.getInt()].getGenes();
+    } else {
+      genes = new String[geneCount];
+
+      for (int g = 0; g < geneCount; ++g) {
+        genes[g] = readString(buffer);
+      }
+
+      // Share the symbols with the other classifiers
+      genes = GeneDictionary.getInstance().intern(genes).getGenes();
+    }
+
+    ReferenceMatrix phenM = readMatrix(buffer,
+        geneCount,
+        phenSize,
+        precision);
+
+    ReferenceMatrix controlM = readMatrix(buffer,
+        geneCount,
+        controlSize,
+        precision);
+
+    TreeModel model = readModel(buffer, genes, version);
+
+    return Classifier.create(name,
+        phenotype,
+        phenM,
+        control,
+        controlM,
+        genes,
+        annotation,
+        model);
+  }
+
+  /**
+   * Read a block of values into the current storage. Mapped values are left
+   * where they are in the record.
+   *
+   * @param buffer
+   * @param rows
+   * @param cols
+   * @param precision
+   * @return
+   */
+  private static ReferenceMatrix readMatrix(ByteBuffer buffer,
+      int rows,
+      int cols,
+      Precision precision) {
+    align(buffer);
+
+    Storage storage = ReferenceMatrix.getDefaultStorage();
+
+    if (storage == Storage.HEAP && precision == Precision.DOUBLE) {
+      DataFrame m = readDataFrame(buffer, rows, cols);
+
+      return ReferenceMatrix.create(m, storage);
+    }
+
+    // Values at a lower precision are kept at that precision in memory
+    int size = ReferenceMatrix.bufferSize(rows, cols, precision);
+
+    ByteBuffer values = buffer.slice();
+    values.limit(size);
+
+    if (storage != Storage.MAPPED) {
+      ByteBuffer copy = storage == Storage.OFF_HEAP
+          ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+      copy.put(values);
+      copy.flip();
+
+      values = copy;
+    }
+
+    buffer.position(buffer.position() + size);
+
+    return ReferenceMatrix.wrap(values.order(ByteOrder.LITTLE_ENDIAN),
+        rows,
+        cols,
+        precision,
+        storage);
+  }
+
+  private static DataFrame readDataFrame(ByteBuffer buffer,
+      int rows,
+      int cols) {
+    int size = ReferenceMatrix.bufferSize(rows, cols, Precision.DOUBLE);
+
+    DataFrame ret = DataFrame.createNumericalMatrix(rows, cols);
+
+    DoubleBuffer doubles = buffer.slice()
+        .order(ByteOrder.LITTLE_ENDIAN)
+        .asDoubleBuffer();
+
+    double[] column = new double[rows];
+
+    for (int c = 0; c < cols; ++c) {
+      doubles.get(column);
+
+      for (int r = 0; r < rows; ++r) {
+        ret.set(r, c, column[r]);
+      }
+    }
+
+    buffer.position(buffer.position() + size);
+
+    return ret;
+  }
+
+  private static TreeModel readModel(ByteBuffer buffer,
+      String[] genes,
+      int version) {
+    byte type = buffer.get();
+
+    switch (type) {
+    case MODEL_TREE:
+      return readTree(buffer, genes, version);
+    case MODEL_FOREST:
+      String name = readString(buffer);
+
+      DecisionTree[] trees = new DecisionTree[buffer.getInt()];
+
+      for (int t = 0; t < trees.length; ++t) {
+        trees[t] = readTree(buffer, genes, version);
+      }
+
+      return new RandomForest(name, genes, trees[0].getLabels(), trees);
+    case MODEL_BOOSTED:
+      name = readString(buffer);
+      String[] labels = readStrings(buffer);
+      double baseScore = buffer.getDouble();
+
+      TreeNode[] roots = new TreeNode[buffer.getInt()];
+
+      for (int t = 0; t < roots.length; ++t) {
+        roots[t] = readNode(buffer);
+      }
+
+      return new GradientBoostedTrees(name, genes, labels, baseScore, roots);
+    default:
+      throw new IllegalArgumentException("Unknown model type " + type + ".");
+    }
+  }
+
+  private static DecisionTree readTree(ByteBuffer buffer,
+      String[] genes,
+      int version) {
+    String name = readString(buffer);
+    String[] labels = readStrings(buffer);
+
+    int binned = buffer.getInt();
+
+    Quantizer quantizer = null;
+
+    if (binned > 0) {
+      double[][] edges = new double[genes.length][];
+
+      for (int i = 0; i < binned; ++i) {
+        int f = buffer.getInt();
+        double[] e = new double[buffer.getInt()];
+
+        edges[f] = e;
+
+        for (int j = 0; j < e.length; ++j) {
+          e[j] = buffer.getDouble();
+        }
+      }
+
+      quantizer = new Quantizer(edges);
+    }
+
+    TreeNode root = readNode(buffer);
+
+    long[] hits = null;
+
+    if (version >= 5) {
+      int n = buffer.getInt();
+
+      if (n > 0) {
+        hits = new long[n];
+
+        for (int i = 0; i < n; ++i) {
+          hits[i] = buffer.getLong();
+        }
+      }
+    }
+
+    return new DecisionTree(name, genes, labels, root, quantizer, hits);
+  }
+
+  private static TreeNode readNode(ByteBuffer buffer) {
+    byte type = buffer.get();
+
+    switch (type) {
+    case NODE_LABEL:
+      return TreeNode.leaf(buffer.getInt());
+    case NODE_VALUE:
+      return TreeNode.leaf(buffer.getDouble());
+    default:
+      int feature = buffer.getInt();
+      double threshold = buffer.getDouble();
+      TreeNode left = readNode(buffer);
+
+      return TreeNode.split(feature, threshold, left, readNode(buffer));
+    }
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+
+    if (length < 0) {
+      return null;
+    }
+
+    byte[] bytes = new byte[length];
+
+    buffer.get(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static String[] readStrings(ByteBuffer buffer) {
+    String[] ret = new String[buffer.getInt()];
+
+    for (int i = 0; i < ret.length; ++i) {
+      ret[i] = readString(buffer);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Skip to the next multiple of 8 bytes. Records are mapped from 8 byte
+   * aligned offsets so this aligns the values in the file too.
+   *
+   * @param buffer
+   */
+  private static void align(ByteBuffer buffer) {
+    buffer.position((buffer.position() + 7) & ~7);
+  }
+
+  /**
+   * Write classifiers to a binary library, storing the reference values of
+   * each at the precision the classifier keeps them at.
+   *
+   * @param file
+   * @param classifiers
+   * @throws IOException
+   */
+  public static void write(Path file, Collection<Classifier> classifiers)
+      throws IOException {
+    write(file, classifiers, null);
+  }
+
+  /**
+   * Write classifiers to a binary library.
+   *
+   * @param file
+   * @param classifiers
+   * @param precision How the reference values are stored, or null to use
+   *          the precision of each classifier.
+   * @throws IOException
+   */
+  public static void write(Path file,
+      Collection<Classifier> classifiers,
+      Precision precision) throws IOException {
+    // The classifiers may be mapped from the file being replaced, so they are
+    // written to a new file that is moved over it once complete
+    Path temp = ClassifierFiles.createTempFile(file);
+
+    try {
+      writeLibrary(temp, classifiers, precision);
+
+      ClassifierFiles.replace(temp, file);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static void writeLibrary(Path file,
+      Collection<Classifier> classifiers,
+      Precision precision) throws IOException {
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      Output out = new Output(channel);
+
+      out.put(MAGIC);
+      out.putInt(VERSION);
+      out.putInt(classifiers.size());
+      out.putInt(0);
+
+      // The offsets of the index and the gene lists are filled in once the
+      // records are written
+      out.putLong(0);
+      out.putLong(0);
+
+      List<long[]> records = new ArrayList<long[]>(classifiers.size());
+
+      // The index is written from the names and sizes alone so the
+      // classifiers are only gone through once
+      List<ClassifierEntry> entries = new ArrayList<ClassifierEntry>(
+          classifiers.size());
+
+      // The lists are interned so classifiers with the same genes share one
+      Map<GeneList, Integer> geneLists = new IdentityHashMap<GeneList, Integer>();
+
+      for (Classifier c : classifiers) {
+        // Leave room for the length of the record and fill it in once the
+        // record has been written
+        long start = out.position();
+
+        out.putLong(0);
+
+        ClassifierEntry entry = toEntry(c);
+
+        writeClassifier(out, c, entry, precision, geneLists);
+
+        entries.add(entry);
+
+        // Keep records 8 byte aligned so they can be mapped independently
+        out.align();
+
+        long end = out.position();
+
+        out.flush();
+
+        ByteBuffer length = ByteBuffer.allocate(8)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        length.putLong(0, end - start - 8);
+
+        channel.write(length, start);
+
+        records.add(new long[] { start + 8, end - start - 8 });
+      }
+
+      long index = out.position();
+
+      for (int i = 0; i < records.size(); ++i) {
+        long[] record = records.get(i);
+
+        out.putLong(record[0]);
+        out.putLong(record[1]);
+
+        writeEntry(out, entries.get(i));
+      }
+
+      long genes = out.position();
+
+      GeneList[] lists = new GeneList[geneLists.size()];
+
+      for (Map.Entry<GeneList, Integer> list : geneLists.entrySet()) {
+        lists[list.getValue()] = list.getKey();
+      }
+
+      out.putInt(lists.length);
+
+      for (GeneList list : lists) {
+        out.putStrings(list.getGenes());
+      }
+
+      out.flush();
+
+      ByteBuffer offsets = ByteBuffer.allocate(16)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      offsets.putLong(0, index);
+      offsets.putLong(8, genes);
+
+      channel.write(offsets, HEADER_SIZE_V1);
+    }
+  }
+
+  /**
+   * Write the names and sizes of a classifier, which start both its record
+   * and its entry in the index.
+   *
+   * @param out
+   * @param e
+   * @throws IOException
+   */
+  private static void writeEntry(Output out, ClassifierEntry e)
+      throws IOException {
+    out.putString(e.getName());
+    out.putString(e.getPhenotypeName());
+    out.putString(e.getControlName());
+    out.putString(e.getAnnotation());
+    out.putInt(e.getSize());
+    out.putInt(e.getPhenotypeSize());
+    out.putInt(e.getControlSize());
+  }
+
+  /**
+   * Returns the names and sizes of a classifier without keeping a reference
+   * to it.
+   *
+   * @param c
+   * @return
+   */
+  private static ClassifierEntry toEntry(Classifier c) {
+    return new ClassifierEntry(c.getName(), c.getPhenotypeName(),
+        c.getControlName(), c.getAnnotation(), c.getGeneCount(),
+        c.getPhenotypeMatrix().getCols(), c.getControlMatrix().getCols(),
+        null);
+  }
+
+  private static void writeClassifier(Output out,
+      Classifier c,
+      ClassifierEntry entry,
+      Precision precision,
+      Map<GeneList, Integer> geneLists) throws IOException {
+    GeneList genes = c.getGeneList();
+    ReferenceMatrix phenM = c.getPhenotypeMatrix();
+    ReferenceMatrix controlM = c.getControlMatrix();
+
+    if (precision == null) {
+      precision = phenM.getPrecision();
+    }
+
+    writeEntry(out, entry);
+    out.put((byte) precision.ordinal());
+
+    Integer list = geneLists.get(genes);
+
+    if (list == null) {
+      list = geneLists.size();
+
+      geneLists.put(genes, list);
+    }
+
+    out.putInt(list);
+
+    writeMatrix(out, phenM, genes.size(), precision);
+    writeMatrix(out, controlM, genes.size(), precision);
+
+    writeModel(out, c.getModel());
+  }
+
+  private static void writeMatrix(Output out,
+      ReferenceMatrix m,
+      int rows,
+      Precision precision) throws IOException {
+    out.align();
+
+    if (precision == Precision.FIXED16) {
+      // The scale of each row must be known before its codes are written
+      out.put(ReferenceMatrix.encode(m, precision, false));
+      return;
+    }
+
+    for (int c = 0; c < m.getCols(); ++c) {
+      for (int r = 0; r < rows; ++r) {
+        if (precision == Precision.FLOAT) {
+          out.putFloat((float) m.getValue(r, c));
+        } else {
+          out.putDouble(m.getValue(r, c));
+        }
+      }
+    }
+  }
+
+  private static void writeModel(Output out, TreeModel model)
+      throws IOException {
+    if (model instanceof RandomForest) {
+      RandomForest forest = (RandomForest) model;
+
+      out.put(MODEL_FOREST);
+      out.putString(forest.getName());
+      out.putInt(forest.getTreeCount());
+
+      for (DecisionTree tree : forest.getTrees()) {
+        writeTree(out, tree);
+      }
+    } else if (model instanceof GradientBoostedTrees) {
+      GradientBoostedTrees boosted = (GradientBoostedTrees) model;
+
+      out.put(MODEL_BOOSTED);
+      out.putString(boosted.getName());
+      out.putStrings(boosted.getLabels());
+      out.putDouble(boosted.getBaseScore());
+      out.putInt(boosted.getTreeCount());
+
+      for (TreeNode root : boosted.getTrees()) {
+        writeNode(out, root, true);
+      }
+    } else if (model instanceof DecisionTree) {
+      out.put(MODEL_TREE);
+
+      writeTree(out, (DecisionTree) model);
+    } else {
+      throw new IllegalArgumentException(
+          "Cannot write a " + model.getClass().getSimpleName() + ".");
+    }
+  }
+
+  private static void writeTree(Output out, DecisionTree tree)
+      throws IOException {
+    out.putString(tree.getName());
+    out.putStrings(tree.getLabels());
+
+    // As in the XML, only the bins of the genes the tree splits on are
+    // needed to classify quantized samples
+    Quantizer quantizer = tree.getQuantizer();
+
+    int[] used = quantizer != null ? tree.getUsedFeatures() : new int[0];
+
+    int binned = 0;
+
+    for (int f : used) {
+      if (quantizer.getEdges(f) != null) {
+        ++binned;
+      }
+    }
+
+    out.putInt(binned);
+
+    for (int f : used) {
+      double[] edges = quantizer.getEdges(f);
+
+      if (edges != null) {
+        out.putInt(f);
+        out.putInt(edges.length);
+
+        for (double e : edges) {
+          out.putDouble(e);
+        }
+      }
+    }
+
+    writeNode(out, tree.getRoot(), false);
+
+    // The counts follow the nodes in the same order
+    long[] hits = tree.getNodeHits();
+
+    if (hits != null) {
+      out.putInt(hits.length);
+
+      for (long h : hits) {
+        out.putLong(h);
+      }
+    } else {
+      out.putInt(0);
+    }
+  }
+
+  private static void writeNode(Output out, TreeNode node, boolean regression)
+      throws IOException {
+    if (node.isLeaf()) {
+      if (regression) {
+        out.put(NODE_VALUE);
+        out.putDouble(node.getValue());
+      } else {
+        out.put(NODE_LABEL);
+        out.putInt(node.getLabel());
+      }
+    } else {
+      out.put(NODE_SPLIT);
+      out.putInt(node.getFeature());
+      out.putDouble(node.getThreshold());
+
+      writeNode(out, node.getLeft(), regression);
+      writeNode(out, node.getRight(), regression);
+    }
+  }
+
+  /**
+   * Buffers little-endian values and writes them to a channel in large
+   * blocks.
+   */
+  private static class Output {
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN);
+
+    public Output(FileChannel channel) {
+      mChannel = channel;
+    }
+
+    public long position() throws IOException {
+      return mChannel.position() + mBuffer.position();
+    }
+
+    private void ensure(int bytes) throws IOException {
+      if (mBuffer.remaining() < bytes) {
+        flush();
+      }
+    }
+
+    public void flush() throws IOException {
+      mBuffer.flip();
+
+      while (mBuffer.hasRemaining()) {
+        mChannel.write(mBuffer);
+      }
+
+      mBuffer.clear();
+    }
+
+    public void put(byte v) throws IOException {
+      ensure(1);
+      mBuffer.put(v);
+    }
+
+    public void put(byte[] v) throws IOException {
+      ensure(v.length);
+      mBuffer.put(v);
+    }
+
+    public void put(ByteBuffer v) throws IOException {
+      // Write large blocks straight to the channel
+      flush();
+
+      while (v.hasRemaining()) {
+        mChannel.write(v);
+      }
+    }
+
+    public void putInt(int v) throws IOException {
+      ensure(4);
+      mBuffer.putInt(v);
+    }
+
+    public void putLong(long v) throws IOException {
+      ensure(8);
+      mBuffer.putLong(v);
+    }
+
+    public void putFloat(float v) throws IOException {
+      ensure(4);
+      mBuffer.putFloat(v);
+    }
+
+    public void putDouble(double v) throws IOException {
+      ensure(8);
+      mBuffer.putDouble(v);
+    }
+
+    public void putString(String s) throws IOException {
+      if (s == null) {
+        putInt(-1);
+
+        return;
+      }
+
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+
+      putInt(bytes.length);
+
+      for (byte b : bytes) {
+        put(b);
+      }
+    }
+
+    public void putStrings(String[] s) throws IOException {
+      putInt(s.length);
+
+      for (String v : s) {
+        putString(v);
+      }
+    }
+
+    public void align() throws IOException {
+      while ((position() & 7) != 0) {
+        put((byte) 0);
+      }
+    }
+  }
+}
@@ -1,7 +1,11 @@
 package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
 
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
 
 import org.jebtk.core.NameGetter;
 import org.jebtk.core.collections.CollectionUtils;
@@ -9,21 +13,49 @@ import org.jebtk.core.xml.XmlRepresentation;
 import org.jebtk.graphplot.figure.series.XYSeries;
 import org.jebtk.math.matrix.DataFrame;
 import org.jebtk.math.matrix.MatrixGroup;
-import org.jebtk.math.matrix.utils.MatrixOperations;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.BinaryClassifierFormat.Precision;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.metrics.DecisionTreeMetrics;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.C45;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.PackedMatrix;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.PermutationTest;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.StreamingXmlWriter;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.Trainer;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.TreeModel;
+
 public class Classifier implements Comparable<Classifier>, NameGetter, XmlRepresentation {
   private String mName;
-  private DataFrame mPhenM;
-  private DataFrame mControlM;
-  private Map<String, Integer> mGeneMap;
+  private ReferenceMatrix mPhenM;
+  private ReferenceMatrix mControlM;
   private String mPhenotype;
   private String mControl;
-  private String[] mGenes;
+  private GeneList mGenes;
+  private String mAnnotation;
+  private TreeModel mModel;
+  private GeneStats mPhenStats;
+  private GeneStats mControlStats;
 
   public Classifier(String name, DataFrame m, XYSeries phenotypeGroup,
       XYSeries controlGroup, String annotation) {
+    this(name, m, phenotypeGroup, controlGroup, annotation,
+        C45.trainer(C45.Mode.PRESORTED));
+  }
+
+  /**
+   * Create a classifier from two groups of samples in a matrix and train its
+   * model.
+   *
+   * @param name
+   * @param m
+   * @param phenotypeGroup
+   * @param controlGroup
+   * @param annotation The row annotation holding the gene names.
+   * @param trainer How to train the model.
+   */
+  public Classifier(String name, DataFrame m, XYSeries phenotypeGroup,
+      XYSeries controlGroup, String annotation, Trainer trainer) {
     mName = name;
 
     mPhenotype = phenotypeGroup.getName();
@@ -35,42 +67,187 @@ public class Classifier implements Comparable<Classifier>, NameGetter, XmlRepres
     List<Integer> controlIndices = MatrixGroup.findColumnIndices(m,
         controlGroup);
 
-    mGenes = m.getIndex().getText(annotation);
+    mAnnotation = annotation;
 
-    mGeneMap = CollectionUtils.toIndexMap(mGenes);
+    // Expression matrices often list a gene more than once. Trees are saved
+    // and bound to matrices by gene name, so only the first row of each gene
+    // is kept, which is the row used when a matrix is classified.
+    String[] names = m.getIndex().getText(annotation);
+    int[] rows = findUniqueRows(names);
+    String[] genes = new String[rows.length];
 
-    mPhenM = DataFrame.createNumericalMatrix(mGenes.length,
-        phenotypeIndices.size());
+    for (int i = 0; i < rows.length; ++i) {
+      genes[i] = names[rows[i]];
+    }
 
-    mControlM = DataFrame.createNumericalMatrix(mGenes.length,
-        controlIndices.size());
+    mGenes = GeneDictionary.getInstance().intern(genes);
 
-    int c = 0;
+    mPhenM = ReferenceMatrix.create(copy(m, rows, phenotypeIndices));
+    mControlM = ReferenceMatrix.create(copy(m, rows, controlIndices));
 
-    for (int i : phenotypeIndices) {
-      mPhenM.copyColumn(m, i, c++);
-    }
+    mPhenStats = new GeneStats(mPhenM);
+    mControlStats = new GeneStats(mControlM);
 
-    c = 0;
-
-    for (int i : controlIndices) {
-      mControlM.copyColumn(m, i, c++);
-    }
+    mModel = train(trainer);
   }
 
   public Classifier(String name, String phenotype, DataFrame phenM,
       String control, DataFrame controlM, String[] genes) {
+    this(name, phenotype, phenM, control, controlM, genes, null, null);
+  }
+
+  /**
+   * Create a classifier from its reference data and a previously trained
+   * model. If the model is null, a tree will be trained from the reference
+   * data.
+   */
+  public Classifier(String name, String phenotype, DataFrame phenM,
+      String control, DataFrame controlM, String[] genes, String annotation,
+      TreeModel model) {
+    this(name, phenotype, ReferenceMatrix.create(phenM), control,
+        ReferenceMatrix.create(controlM), genes, annotation, model);
+  }
+
+  /**
+   * Create a classifier from reference data that is already held in the
+   * storage it should be kept in.
+   */
+  public Classifier(String name, String phenotype, ReferenceMatrix phenM,
+      String control, ReferenceMatrix controlM, String[] genes,
+      String annotation, TreeModel model) {
     mName = name;
+    mAnnotation = annotation;
 
     mPhenotype = phenotype;
     mControl = control;
 
-    mGenes = genes;
-    mGeneMap = CollectionUtils.toIndexMap(genes);
+    mGenes = GeneDictionary.getInstance().intern(genes);
+
+    checkUnique(name, mGenes);
 
     mPhenM = phenM;
 
     mControlM = controlM;
+
+    mPhenStats = new GeneStats(mPhenM);
+    mControlStats = new GeneStats(mControlM);
+
+    mModel = model != null ? model : train(C45.trainer(C45.Mode.PRESORTED));
+  }
+
+  /**
+   * Returns the rows of the first occurrence of each name.
+   *
+   * @param names
+   * @return
+   */
+  private static int[] findUniqueRows(String[] names) {
+    Set<String> seen = new HashSet<String>(names.length * 2);
+
+    int[] ret = new int[names.length];
+    int n = 0;
+
+    for (int r = 0; r < names.length; ++r) {
+      if (seen.add(names[r])) {
+        ret[n++] = r;
+      }
+    }
+
+    return n == ret.length ? ret : Arrays.copyOf(ret, n);
+  }
+
+  /**
+   * Copy some of the rows and columns of a matrix.
+   *
+   * @param m
+   * @param rows
+   * @param cols
+   * @return
+   */
+  private static DataFrame copy(DataFrame m, int[] rows, List<Integer> cols) {
+    DataFrame ret = DataFrame.createNumericalMatrix(rows.length, cols.size());
+
+    int c = 0;
+
+    for (int i : cols) {
+      for (int r = 0; r < rows.length; ++r) {
+        ret.set(r, c, m.getValue(rows[r], i));
+      }
+
+      ++c;
+    }
+
+    return ret;
+  }
+
+  /**
+   * Check that no gene is listed twice, since trees refer to the genes they
+   * split on by name when they are saved as XML.
+   *
+   * @param name
+   * @param genes
+   */
+  private static void checkUnique(String name, GeneList genes) {
+    for (int i = 0; i < genes.size(); ++i) {
+      // A duplicated gene is found at the position of its last copy
+      if (genes.indexOf(genes.getId(i)) != i) {
+        throw new IllegalArgumentException("Classifier " + name
+            + " lists the gene " + genes.getGene(i) + " more than once.");
+      }
+    }
+  }
+
+  /**
+   * Train a model to separate the phenotype samples from the control
+   * samples.
+   *
+   * @param trainer
+   * @return
+   */
+  private TreeModel train(Trainer trainer) {
+    long start = DecisionTreeMetrics.getInstance().start();
+
+    PackedMatrix x = ReferenceMatrix.pack(mPhenM, mControlM);
+
+    int[] y = new int[x.getCols()];
+
+    for (int i = mPhenM.getCols(); i < y.length; ++i) {
+      y[i] = 1;
+    }
+
+    TreeModel ret = trainer.train(mName,
+        mGenes.getGenes(),
+        x,
+        C45.sequence(x.getCols()),
+        new String[] { mPhenotype, mControl },
+        y);
+
+    DecisionTreeMetrics.getInstance().trained(start);
+
+    return ret;
+  }
+
+  /**
+   * Create a permutation test of samples against the phenotype and control
+   * samples, using the genes the model splits on.
+   *
+   * @param samples The samples to test, with one row per gene the model
+   *          splits on, in the order of {@link TreeModel#getUsedFeatures()}.
+   * @param metric
+   * @return
+   */
+  public PermutationTest createPermutationTest(PackedMatrix samples,
+      PermutationTest.Metric metric) {
+    PackedMatrix reference = ReferenceMatrix.pack(mPhenM, mControlM)
+        .project(mModel.getUsedFeatures());
+
+    int[] y = new int[reference.getCols()];
+
+    for (int i = mPhenM.getCols(); i < y.length; ++i) {
+      y[i] = 1;
+    }
+
+    return new PermutationTest(reference, y, samples, metric);
   }
 
   @Override
@@ -79,18 +256,67 @@ public class Classifier implements Comparable<Classifier>, NameGetter, XmlRepres
   }
 
   public int getGeneCount() {
-    return mGenes.length;
+    return mGenes.size();
+  }
+
+  public TreeModel getModel() {
+    return mModel;
+  }
+
+  /**
+   * Returns the row annotation the gene names were taken from, or null if
+   * it is not known.
+   *
+   * @return
+   */
+  public String getAnnotation() {
+    return mAnnotation;
   }
 
   public String getGene(int g) {
-    return mGenes[g];
+    return mGenes.getGene(g);
+  }
+
+  /**
+   * Returns the index of a gene.
+   *
+   * @param gene
+   * @return The index or -1 if the classifier does not use the gene.
+   */
+  public int getGeneIndex(String gene) {
+    return mGenes.indexOf(gene);
   }
 
   public double getPhenotypeMean(String gene) {
-    return MatrixOperations.mean(mPhenM, mGeneMap.get(gene));
+    return getPhenotypeMean(mGenes.indexOf(gene));
+  }
+
+  public double getPhenotypeMean(int g) {
+    return mPhenStats.getMean(g);
+  }
+
+  /**
+   * Returns the mean, variance, standard deviation and median of each gene
+   * in the phenotype samples.
+   *
+   * @return
+   */
+  public GeneStats getPhenotypeStats() {
+    return mPhenStats;
   }
 
+  /**
+   * Returns the phenotype values as a matrix. Unless they are kept on the
+   * heap, this is a copy, so use {@link #getPhenotypeMatrix()} to read
+   * them.
+   *
+   * @return
+   */
   public DataFrame getPhenotype() {
+    return mPhenM.toDataFrame();
+  }
+
+  public ReferenceMatrix getPhenotypeMatrix() {
     return mPhenM;
   }
 
@@ -99,13 +325,77 @@ public class Classifier implements Comparable<Classifier>, NameGetter, XmlRepres
   }
 
   public double getControlMean(String gene) {
-    return MatrixOperations.mean(mControlM, mGeneMap.get(gene));
+    return getControlMean(mGenes.indexOf(gene));
+  }
+
+  public double getControlMean(int g) {
+    return mControlStats.getMean(g);
   }
 
+  /**
+   * Returns the mean, variance, standard deviation and median of each gene
+   * in the control samples.
+   *
+   * @return
+   */
+  public GeneStats getControlStats() {
+    return mControlStats;
+  }
+
+  /**
+   * Returns the control values as a matrix. Unless they are kept on the
+   * heap, this is a copy, so use {@link #getControlMatrix()} to read them.
+   *
+   * @return
+   */
   public DataFrame getControl() {
+    return mControlM.toDataFrame();
+  }
+
+  public ReferenceMatrix getControlMatrix() {
     return mControlM;
   }
 
+  /**
+   * Returns an estimate of the memory used by the reference values and the
+   * statistics of each gene.
+   *
+   * @return
+   */
+  public long getMemoryEstimate() {
+    // Each set of statistics holds four doubles per gene
+    return mPhenM.getByteSize() + mControlM.getByteSize()
+        + 2L * 4 * 8 * mGenes.size();
+  }
+
+  /**
+   * Returns the precision the reference values are kept at.
+   *
+   * @return
+   */
+  public Precision getPrecision() {
+    return mPhenM.getPrecision();
+  }
+
+  /**
+   * Returns a copy of the classifier whose reference values are kept at a
+   * different precision. The model and genes are shared with this
+   * classifier.
+   *
+   * @param precision
+   * @return
+   */
+  public Classifier toPrecision(Precision precision) {
+    if (precision == getPrecision()) {
+      return this;
+    }
+
+    return new Classifier(mName, mPhenotype,
+        ReferenceMatrix.convert(mPhenM, precision), mControl,
+        ReferenceMatrix.convert(mControlM, precision), mGenes.getGenes(),
+        mAnnotation, mModel);
+  }
+
   public String getControlName() {
     return mControl;
   }
@@ -137,6 +427,16 @@ public class Classifier implements Comparable<Classifier>, NameGetter, XmlRepres
     return new Classifier(name, m, phenotypeGroup, controlGroup, annotation);
   }
 
+  public static Classifier create(String name,
+      DataFrame m,
+      XYSeries phenotypeGroup,
+      XYSeries controlGroup,
+      String annotation,
+      Trainer trainer) {
+    return new Classifier(name, m, phenotypeGroup, controlGroup, annotation,
+        trainer);
+  }
+
   public static Classifier create(String name,
       String phenotype,
       DataFrame phenM,
@@ -146,6 +446,30 @@ public class Classifier implements Comparable<Classifier>, NameGetter, XmlRepres
     return new Classifier(name, phenotype, phenM, control, controlM, genes);
   }
 
+  public static Classifier create(String name,
+      String phenotype,
+      DataFrame phenM,
+      String control,
+      DataFrame controlM,
+      String[] genes,
+      String annotation,
+      TreeModel model) {
+    return new Classifier(name, phenotype, phenM, control, controlM, genes,
+        annotation, model);
+  }
+
+  public static Classifier create(String name,
+      String phenotype,
+      ReferenceMatrix phenM,
+      String control,
+      ReferenceMatrix controlM,
+      String[] genes,
+      String annotation,
+      TreeModel model) {
+    return new Classifier(name, phenotype, phenM, control, controlM, genes,
+        annotation, model);
+  }
+
   @Override
   public Element toXml(Document doc) {
     Element e = doc.createElement("classifier");
@@ -154,11 +478,17 @@ public class Classifier implements Comparable<Classifier>, NameGetter, XmlRepres
     e.setAttribute("phenotype-size", Integer.toString(mPhenM.getCols()));
     e.setAttribute("control", mControl);
     e.setAttribute("control-size", Integer.toString(mControlM.getCols()));
-    e.setAttribute("size", Integer.toString(mGenes.length));
+    e.setAttribute("size", Integer.toString(mGenes.size()));
+
+    if (mAnnotation != null) {
+      e.setAttribute("annotation", mAnnotation);
+    }
 
     // XmlElement gse = new XmlElement("genes");
 
-    for (String name : CollectionUtils.sort(mGenes)) {
+    for (String name : CollectionUtils.sort(mGenes.getGenes())) {
+      int g = mGenes.indexOf(name);
+
       Element ge = doc.createElement("gene");
 
       ge.setAttribute("name", name);
@@ -170,7 +500,7 @@ public class Classifier implements Comparable<Classifier>, NameGetter, XmlRepres
       for (int i = 0; i < mPhenM.getCols(); ++i) {
         Element se = doc.createElement("sample");
         // se.setAttribute("name", mPhenM.getColumnName(i));
-        se.setAttribute("value", mPhenM.getText(mGeneMap.get(name), i));
+        se.setAttribute("value", mPhenM.getText(g, i));
         pe.appendChild(se);
       }
 
@@ -181,17 +511,82 @@ public class Classifier implements Comparable<Classifier>, NameGetter, XmlRepres
       for (int i = 0; i < mControlM.getCols(); ++i) {
         Element se = doc.createElement("sample");
         // se.setAttribute("name", mControlM.getColumnName(i));
-        se.setAttribute("value", mControlM.getText(mGeneMap.get(name), i));
+        se.setAttribute("value", mControlM.getText(g, i));
         ce.appendChild(se);
       }
 
       e.appendChild(ge);
     }
 
+    e.appendChild(mModel.toXml(doc));
+
     return e;
   }
 
+  /**
+   * Write the classifier as XML without building a document, producing the
+   * same output as {@link #toXml(Document)}.
+   *
+   * @param writer
+   * @throws XMLStreamException
+   */
+  public void toXml(StreamingXmlWriter writer) throws XMLStreamException {
+    writer.startElement("classifier");
+    writer.attribute("name", mName);
+    writer.attribute("phenotype", mPhenotype);
+    writer.attribute("phenotype-size", Integer.toString(mPhenM.getCols()));
+    writer.attribute("control", mControl);
+    writer.attribute("control-size", Integer.toString(mControlM.getCols()));
+    writer.attribute("size", Integer.toString(mGenes.size()));
+
+    if (mAnnotation != null) {
+      writer.attribute("annotation", mAnnotation);
+    }
+
+    for (String name : CollectionUtils.sort(mGenes.getGenes())) {
+      int g = mGenes.indexOf(name);
+
+      writer.startElement("gene");
+      writer.attribute("name", name);
+
+      writer.startElement("phenotype");
+
+      for (int i = 0; i < mPhenM.getCols(); ++i) {
+        writer.startElement("sample");
+        writer.attribute("value", mPhenM.getText(g, i));
+        writer.endElement();
+      }
+
+      writer.endElement();
+
+      writer.startElement("control");
+
+      for (int i = 0; i < mControlM.getCols(); ++i) {
+        writer.startElement("sample");
+        writer.attribute("value", mControlM.getText(g, i));
+        writer.endElement();
+      }
+
+      writer.endElement();
+
+      writer.endElement();
+    }
+
+    mModel.toXml(writer);
+
+    writer.endElement();
+  }
+
   public String[] getGenes() {
+    return mGenes.getGenes();
+  }
+
+  /**
+   * Returns the genes as ids in the shared gene dictionary.
+   *
+   * @return
+   */
+  public GeneList getGeneList() {
     return mGenes;
   }
 }
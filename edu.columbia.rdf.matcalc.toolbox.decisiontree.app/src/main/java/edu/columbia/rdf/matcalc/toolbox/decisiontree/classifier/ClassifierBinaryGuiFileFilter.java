@@ -0,0 +1,40 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+import java.io.File;
+
+import org.jebtk.modern.io.GuiFileExtFilter;
+
+/**
+ * Filter for classifier libraries saved in the binary format of
+ * {@link BinaryClassifierFormat}.
+ */
+public class ClassifierBinaryGuiFileFilter extends GuiFileExtFilter {
+
+  public ClassifierBinaryGuiFileFilter() {
+    super("clsb");
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see javax.swing.filechooser.FileFilter#accept(java.io.File)
+   */
+  @Override
+  public final boolean accept(File f) {
+    if (f.isDirectory()) {
+      return true;
+    }
+
+    return f.getName().toLowerCase().endsWith("clsb");
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see javax.swing.filechooser.FileFilter#getDescription()
+   */
+  @Override
+  public final String getDescription() {
+    return "Classifiers binary (*.clsb)";
+  }
+}
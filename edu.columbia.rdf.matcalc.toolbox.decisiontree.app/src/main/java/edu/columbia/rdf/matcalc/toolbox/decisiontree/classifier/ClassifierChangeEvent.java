@@ -0,0 +1,66 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.jebtk.core.event.ChangeEvent;
+
+/**
+ * Describes the changes made to the classifier service since listeners were
+ * last notified. If the service was cleared, the names added and removed are
+ * those changed after it was cleared.
+ *
+ * @author Antony Holmes
+ */
+public class ClassifierChangeEvent extends ChangeEvent {
+  private static final long serialVersionUID = 1L;
+
+  private final boolean mCleared;
+  private final List<String> mAdded;
+  private final List<String> mRemoved;
+
+  public ClassifierChangeEvent(Object source, boolean cleared,
+      List<String> added, List<String> removed) {
+    super(source);
+
+    mCleared = cleared;
+    mAdded = Collections.unmodifiableList(added);
+    mRemoved = Collections.unmodifiableList(removed);
+  }
+
+  /**
+   * Returns true if every classifier was removed.
+   *
+   * @return
+   */
+  public boolean isCleared() {
+    return mCleared;
+  }
+
+  /**
+   * Returns the names of the classifiers added or replaced, in order.
+   *
+   * @return
+   */
+  public List<String> getAdded() {
+    return mAdded;
+  }
+
+  /**
+   * Returns the names of the classifiers removed, in order.
+   *
+   * @return
+   */
+  public List<String> getRemoved() {
+    return mRemoved;
+  }
+
+  /**
+   * Returns true if the event does not change anything.
+   *
+   * @return
+   */
+  public boolean isEmpty() {
+    return !mCleared && mAdded.isEmpty() && mRemoved.isEmpty();
+  }
+}
@@ -1,24 +1,19 @@
 package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.swing.Box;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import javax.xml.transform.TransformerException;
+import javax.xml.stream.XMLStreamException;
 
 import org.jebtk.core.collections.CollectionUtils;
 import org.jebtk.core.io.FileUtils;
-import org.jebtk.core.xml.XmlUtils;
 import org.jebtk.graphplot.figure.series.XYSeries;
 import org.jebtk.graphplot.figure.series.XYSeriesGroup;
 import org.jebtk.math.cluster.DistanceMetric;
-import org.jebtk.math.machine.learning.DecisionTree;
 import org.jebtk.modern.AssetService;
 import org.jebtk.modern.UI;
 import org.jebtk.modern.button.ModernButton;
@@ -40,11 +35,11 @@ import org.jebtk.modern.scrollpane.ScrollBarPolicy;
 import org.jebtk.modern.spinner.ModernCompactSpinner;
 import org.jebtk.modern.text.ModernLabel;
 import org.jebtk.modern.window.WindowWidgetFocusEvents;
-import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
 import edu.columbia.rdf.matcalc.GroupsCombo;
 import edu.columbia.rdf.matcalc.MainMatCalcWindow;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.TreeModel;
 import edu.columbia.rdf.matcalc.toolbox.plot.heatmap.cluster.ClusterDistanceMetricCombo;
 
 public class ClassifierDialog extends ModernDialogTaskWindow
@@ -111,8 +106,12 @@ public class ClassifierDialog extends ModernDialogTaskWindow
       public void clicked(ModernClickEvent e) {
         try {
           save();
-        } catch (TransformerException | ParserConfigurationException e1) {
+        } catch (IOException | XMLStreamException e1) {
           e1.printStackTrace();
+
+          ModernMessageDialog.createWarningDialog(mParent,
+              "The classifiers could not be saved.",
+              e1.getMessage());
         }
       }
     });
@@ -168,8 +167,8 @@ public class ClassifierDialog extends ModernDialogTaskWindow
   // return mGroups.get(group1Combo.getSelectedIndex());
   // }
 
-  public List<DecisionTree> getClassifiers() {
-    List<DecisionTree> ret = new ArrayList<DecisionTree>();
+  public List<Classifier> getClassifiers() {
+    List<Classifier> ret = new ArrayList<Classifier>();
 
     for (int i = 0; i < mClassifierTable.getRowCount(); ++i) {
       if (mClassifierTable.getIsSelected(i)) {
@@ -195,28 +194,21 @@ public class ClassifierDialog extends ModernDialogTaskWindow
 
   private void open()
       throws IOException, SAXException, ParserConfigurationException {
-    Path file = FileDialog.open(mParent).filter(new ClassifierGuiFileFilter())
+    Path file = FileDialog.open(mParent)
+        .filter(new ClassifierGuiFileFilter(),
+            new ClassifierXmlGuiFileFilter(),
+            new ClassifierBinaryGuiFileFilter())
         .getFile(RecentFilesService.getInstance().getPwd());
 
-    open(FileUtils.newBufferedInputStream(file));
-
-    // mClassifierCombo.refresh();
-    mClassifierTable.refresh();
-  }
-
-  private static void open(InputStream is)
-      throws SAXException, IOException, ParserConfigurationException {
-    SAXParserFactory factory = SAXParserFactory.newInstance();
-    SAXParser saxParser = factory.newSAXParser();
-
-    ClassifierXmlHandler handler = new ClassifierXmlHandler();
-
-    saxParser.parse(is, handler);
+    // The table is updated when the service notifies it
+    ClassifierService.getInstance().addEntries(ClassifierFiles.index(file));
   }
 
-  private void save()
-      throws TransformerException, ParserConfigurationException {
-    Path file = FileDialog.save(mParent).filter(new ClassifierGuiFileFilter())
+  private void save() throws IOException, XMLStreamException {
+    Path file = FileDialog.save(mParent)
+        .filter(new ClassifierGuiFileFilter(),
+            new ClassifierXmlGuiFileFilter(),
+            new ClassifierBinaryGuiFileFilter())
         .getFile(RecentFilesService.getInstance().getPwd());
 
     if (FileUtils.exists(file)) {
@@ -233,13 +225,8 @@ public class ClassifierDialog extends ModernDialogTaskWindow
     ModernMessageDialog.createFileSavedDialog(mParent, file);
   }
 
-  private final void save(Path file)
-      throws TransformerException, ParserConfigurationException {
-    Document doc = XmlUtils.createDoc();
-
-    doc.appendChild(ClassifierService.getInstance().toXml(doc));
-
-    XmlUtils.writeXml(doc, file);
+  private final void save(Path file) throws IOException, XMLStreamException {
+    ClassifierFiles.save(file, ClassifierService.getInstance().getClassifiers());
 
     // LOG.info("Wrote settings to {}", Path.getAbsoluteFile());
   }
@@ -248,8 +235,22 @@ public class ClassifierDialog extends ModernDialogTaskWindow
     ClassifierService.getInstance().clear();
   }
 
-  public DecisionTree getDecisionTree() {
-    return ClassifierService.getInstance().get((String) mClassifierTable
+  public TreeModel getModel() {
+    return getClassifier().getModel();
+  }
+
+  public Classifier getClassifier() {
+    return getEntry().getClassifier();
+  }
+
+  /**
+   * Returns the entry of the selected classifier without reading the
+   * classifier, which may take some time if it is large.
+   *
+   * @return
+   */
+  public ClassifierEntry getEntry() {
+    return ClassifierService.getInstance().getEntry((String) mClassifierTable
         .getValueAt(mClassifierTable.getSelectedRow(), 1));
   }
 }
@@ -0,0 +1,148 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * An entry in the classifier library. It holds the details needed to list a
+ * classifier and reads the classifier itself, with its reference data and
+ * model, from its library file the first time it is needed. The part of the
+ * file holding the classifier is mapped when the library is indexed, so
+ * saving over the library does not change what the entry reads.
+ *
+ * @author Antony Holmes
+ */
+public class ClassifierEntry {
+
+  /**
+   * Reads a classifier from its library.
+   */
+  interface Loader {
+    Classifier load() throws IOException;
+  }
+
+  private final String mName;
+  private final String mPhenotype;
+  private final String mControl;
+  private final String mAnnotation;
+  private final int mSize;
+  private final int mPhenotypeSize;
+  private final int mControlSize;
+  private final Loader mLoader;
+  private volatile Classifier mClassifier;
+
+  /**
+   * Create an entry for a classifier that is already in memory.
+   *
+   * @param classifier
+   */
+  public ClassifierEntry(Classifier classifier) {
+    this(classifier.getName(), classifier.getPhenotypeName(),
+        classifier.getControlName(), classifier.getAnnotation(),
+        classifier.getGeneCount(), classifier.getPhenotypeMatrix().getCols(),
+        classifier.getControlMatrix().getCols(), null);
+
+    mClassifier = classifier;
+  }
+
+  ClassifierEntry(String name, String phenotype, String control,
+      String annotation, int size, int phenotypeSize, int controlSize,
+      Loader loader) {
+    mName = name;
+    mPhenotype = phenotype;
+    mControl = control;
+    mAnnotation = annotation;
+    mSize = size;
+    mPhenotypeSize = phenotypeSize;
+    mControlSize = controlSize;
+    mLoader = loader;
+  }
+
+  public String getName() {
+    return mName;
+  }
+
+  public String getPhenotypeName() {
+    return mPhenotype;
+  }
+
+  public String getControlName() {
+    return mControl;
+  }
+
+  public String getAnnotation() {
+    return mAnnotation;
+  }
+
+  /**
+   * Returns the number of genes.
+   *
+   * @return
+   */
+  public int getSize() {
+    return mSize;
+  }
+
+  public int getPhenotypeSize() {
+    return mPhenotypeSize;
+  }
+
+  public int getControlSize() {
+    return mControlSize;
+  }
+
+  /**
+   * Returns true if the classifier has been read.
+   *
+   * @return
+   */
+  public boolean isLoaded() {
+    return mClassifier != null;
+  }
+
+  /**
+   * Returns the classifier, reading it from its library if this is the
+   * first time it has been asked for.
+   *
+   * @return
+   */
+  public Classifier getClassifier() {
+    Classifier ret = mClassifier;
+
+    if (ret == null) {
+      synchronized (this) {
+        ret = mClassifier;
+
+        if (ret == null) {
+          ret = load();
+
+          mClassifier = ret;
+        }
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the classifier if it has been read, otherwise reads it from its
+   * library without keeping it. Used to go through a whole library, such as
+   * when exporting it, without holding every classifier in memory.
+   *
+   * @return
+   */
+  public Classifier readClassifier() {
+    Classifier ret = mClassifier;
+
+    return ret != null ? ret : load();
+  }
+
+  private Classifier load() {
+    try {
+      return mLoader.load();
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          "Classifier " + mName + " could not be read.", e);
+    }
+  }
+}
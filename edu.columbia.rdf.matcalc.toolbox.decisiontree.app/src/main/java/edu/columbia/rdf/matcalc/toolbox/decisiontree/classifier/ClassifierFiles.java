@@ -0,0 +1,576 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLStreamException;
+
+import org.jebtk.core.io.FileUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.metrics.DecisionTreeMetrics;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.StreamingXmlWriter;
+
+/**
+ * Loads and saves classifier libraries. A library is either XML or the
+ * binary format of {@link BinaryClassifierFormat}. Libraries are saved as
+ * XML unless the file ends in .clsb. The format is detected from the start
+ * of the file when loading, so binary libraries saved with other
+ * extensions, such as .clsx, can still be read.
+ *
+ * @author Antony Holmes
+ */
+public class ClassifierFiles {
+
+  private static final byte[] START_TAG = "<classifier"
+      .getBytes(StandardCharsets.UTF_8);
+
+  private static final byte[] END_TAG = "</classifier>"
+      .getBytes(StandardCharsets.UTF_8);
+
+  /**
+   * Carries a checked exception out of a parallel stream.
+   */
+  private static class ParseError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ParseError(Exception e) {
+      super(e);
+    }
+  }
+
+  /**
+   * Creates an index entry from the start tag of a classifier.
+   */
+  private static class EntryHandler extends DefaultHandler {
+    private final Path mFile;
+    private final ByteBuffer mElement;
+    private ClassifierEntry mEntry;
+
+    public EntryHandler(Path file, ByteBuffer element) {
+      mFile = file;
+      mElement = element;
+    }
+
+    @Override
+    public void startElement(String uri,
+        String localName,
+        String qName,
+        Attributes attributes) throws SAXException {
+      mEntry = new ClassifierEntry(attributes.getValue("name"),
+          attributes.getValue("phenotype"), attributes.getValue("control"),
+          attributes.getValue("annotation"),
+          ClassifierXmlHandler.toInt(attributes, "size"),
+          ClassifierXmlHandler.toInt(attributes, "phenotype-size"),
+          ClassifierXmlHandler.toInt(attributes, "control-size"),
+          () -> loadXml(mFile, mElement));
+    }
+  }
+
+  /**
+   * Reads a byte buffer as a stream.
+   */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer mBuffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+      mBuffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (!mBuffer.hasRemaining()) {
+        return -1;
+      }
+
+      len = Math.min(len, mBuffer.remaining());
+
+      mBuffer.get(b, off, len);
+
+      return len;
+    }
+  }
+
+  private ClassifierFiles() {
+    // Do nothing
+  }
+
+  /**
+   * Returns true if a file is a binary classifier library.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static boolean isBinary(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer
+          .allocate(BinaryClassifierFormat.MAGIC.length);
+
+      while (header.hasRemaining() && channel.read(header) != -1) {
+        // Keep reading until the magic bytes are in
+      }
+
+      header.flip();
+
+      return BinaryClassifierFormat.isBinary(header);
+    }
+  }
+
+  /**
+   * Load the classifiers in a library in either format.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   * @throws SAXException
+   * @throws ParserConfigurationException
+   */
+  public static List<Classifier> load(Path file)
+      throws IOException, SAXException, ParserConfigurationException {
+    long start = DecisionTreeMetrics.getInstance().start();
+
+    List<Classifier> ret = isBinary(file) ? BinaryClassifierFormat.read(file)
+        : loadXml(file);
+
+    DecisionTreeMetrics.getInstance().loaded(start, Files.size(file));
+
+    return ret;
+  }
+
+  /**
+   * Read the index of a library in either format, without reading the
+   * classifiers themselves. Each is read the first time it is asked for.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   * @throws SAXException
+   * @throws ParserConfigurationException
+   */
+  public static List<ClassifierEntry> index(Path file)
+      throws IOException, SAXException, ParserConfigurationException {
+    if (isBinary(file)) {
+      return BinaryClassifierFormat.index(file);
+    }
+
+    return indexXml(file);
+  }
+
+  /**
+   * Index an XML library by parsing only the start tag of each classifier
+   * element, whose attributes hold its names and sizes. The entries share
+   * the mapping of the library, so they keep reading the elements they were
+   * indexed from even if the file is replaced.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   * @throws SAXException
+   * @throws ParserConfigurationException
+   */
+  private static List<ClassifierEntry> indexXml(Path file)
+      throws IOException, SAXException, ParserConfigurationException {
+    ByteBuffer buffer;
+
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        return toEntries(loadXml(file));
+      }
+
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    List<int[]> blocks = findClassifiers(buffer);
+
+    if (blocks == null) {
+      return toEntries(loadXml(file));
+    }
+
+    SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+
+    List<ClassifierEntry> ret = new ArrayList<ClassifierEntry>(blocks.size());
+
+    for (int[] block : blocks) {
+      int end = block[0];
+
+      while (buffer.get(end) != '>') {
+        ++end;
+      }
+
+      // Close the start tag so it can be parsed on its own
+      byte[] tag = new byte[end - block[0] + 1 + END_TAG.length];
+
+      ByteBuffer slice = buffer.duplicate();
+      slice.position(block[0]);
+      slice.get(tag, 0, end - block[0] + 1);
+
+      if (buffer.get(end - 1) == '/') {
+        tag[end - block[0] - 1] = ' ';
+      }
+
+      System.arraycopy(END_TAG,
+          0,
+          tag,
+          end - block[0] + 1,
+          END_TAG.length);
+
+      ByteBuffer element = buffer.duplicate();
+      element.limit(block[1]);
+      element.position(block[0]);
+
+      EntryHandler handler = new EntryHandler(file, element.slice());
+
+      parser.parse(new ByteArrayInputStream(tag), handler);
+
+      ret.add(handler.mEntry);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Parse a single mapped classifier element of an XML library.
+   *
+   * @param file The library, used to report errors.
+   * @param element
+   * @return
+   * @throws IOException
+   */
+  private static Classifier loadXml(Path file, ByteBuffer element)
+      throws IOException {
+    long start = DecisionTreeMetrics.getInstance().start();
+
+    List<Classifier> classifiers;
+
+    try {
+      classifiers = loadXml(new ByteBufferInputStream(element.duplicate()));
+    } catch (SAXException | ParserConfigurationException e) {
+      throw new IOException(e);
+    }
+
+    if (classifiers.size() != 1) {
+      throw new IOException(
+          "An element of " + file + " does not hold a single classifier.");
+    }
+
+    DecisionTreeMetrics.getInstance().loaded(start, element.capacity());
+
+    return classifiers.get(0);
+  }
+
+  private static List<ClassifierEntry> toEntries(
+      List<Classifier> classifiers) {
+    List<ClassifierEntry> ret = new ArrayList<ClassifierEntry>(
+        classifiers.size());
+
+    for (Classifier c : classifiers) {
+      ret.add(new ClassifierEntry(c));
+    }
+
+    return ret;
+  }
+
+  /**
+   * Parse the classifiers in an XML library. Each classifier element is self
+   * contained, so the file is mapped into memory, split into its classifier
+   * elements and the elements are parsed in parallel.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   * @throws SAXException
+   * @throws ParserConfigurationException
+   */
+  public static List<Classifier> loadXml(Path file)
+      throws IOException, SAXException, ParserConfigurationException {
+    ByteBuffer buffer;
+
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        // Too large to map in one piece so parse it as a stream
+        InputStream is = FileUtils.newBufferedInputStream(file);
+
+        try {
+          return loadXml(is);
+        } finally {
+          is.close();
+        }
+      }
+
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    List<int[]> blocks = findClassifiers(buffer);
+
+    if (blocks == null) {
+      // Let the parser report what is wrong with the file
+      return loadXml(new ByteBufferInputStream(buffer));
+    }
+
+    List<Classifier> ret = new ArrayList<Classifier>(blocks.size());
+
+    try {
+      List<List<Classifier>> parsed = blocks.parallelStream().map(block -> {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(block[1]);
+        slice.position(block[0]);
+
+        try {
+          return loadXml(new ByteBufferInputStream(slice.slice()));
+        } catch (IOException | SAXException
+            | ParserConfigurationException e) {
+          throw new ParseError(e);
+        }
+      }).collect(Collectors.toList());
+
+      for (List<Classifier> classifiers : parsed) {
+        ret.addAll(classifiers);
+      }
+    } catch (ParseError e) {
+      Throwable cause = e.getCause();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof SAXException) {
+        throw (SAXException) cause;
+      } else {
+        throw (ParserConfigurationException) cause;
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Find the start and end offsets of each classifier element. Angle
+   * brackets in names and values are always escaped, so every occurrence of
+   * a classifier tag is a real one.
+   *
+   * @param buffer
+   * @return The offsets, or null if the elements cannot be matched up.
+   */
+  private static List<int[]> findClassifiers(ByteBuffer buffer) {
+    List<int[]> ret = new ArrayList<int[]>();
+
+    int n = buffer.limit();
+    int i = 0;
+
+    while ((i = indexOf(buffer, START_TAG, i, n)) != -1) {
+      int next = i + START_TAG.length;
+
+      // Skip the classifiers element that encloses them
+      if (next < n && !isTagEnd(buffer.get(next))) {
+        i = next;
+        continue;
+      }
+
+      int end = indexOf(buffer, END_TAG, next, n);
+
+      if (end == -1) {
+        return null;
+      }
+
+      end += END_TAG.length;
+
+      ret.add(new int[] { i, end });
+
+      i = end;
+    }
+
+    return ret.isEmpty() ? null : ret;
+  }
+
+  private static boolean isTagEnd(byte b) {
+    return b == ' ' || b == '>' || b == '/' || b == '\t' || b == '\n'
+        || b == '\r';
+  }
+
+  private static int indexOf(ByteBuffer buffer, byte[] pattern, int from,
+      int to) {
+    int last = to - pattern.length;
+
+    for (int i = from; i <= last; ++i) {
+      if (buffer.get(i) != pattern[0]) {
+        continue;
+      }
+
+      int j = 1;
+
+      while (j < pattern.length && buffer.get(i + j) == pattern[j]) {
+        ++j;
+      }
+
+      if (j == pattern.length) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Parse the classifiers in an XML library.
+   *
+   * @param is
+   * @return
+   * @throws IOException
+   * @throws SAXException
+   * @throws ParserConfigurationException
+   */
+  public static List<Classifier> loadXml(InputStream is)
+      throws IOException, SAXException, ParserConfigurationException {
+    SAXParserFactory factory = SAXParserFactory.newInstance();
+    SAXParser saxParser = factory.newSAXParser();
+
+    ClassifierXmlHandler handler = new ClassifierXmlHandler();
+
+    saxParser.parse(is, handler);
+
+    return handler.getClassifiers();
+  }
+
+  /**
+   * Save classifiers to a library. Files ending in .clsb are written in the
+   * binary format and anything else, including .clsx, as XML.
+   *
+   * @param file
+   * @param classifiers
+   * @throws IOException
+   * @throws XMLStreamException
+   */
+  public static void save(Path file, Collection<Classifier> classifiers)
+      throws IOException, XMLStreamException {
+    long start = DecisionTreeMetrics.getInstance().start();
+
+    if (isBinaryFile(file)) {
+      // Each classifier is written at the precision it is kept at
+      BinaryClassifierFormat.write(file, classifiers);
+    } else {
+      saveXml(file, classifiers);
+    }
+
+    DecisionTreeMetrics.getInstance().saved(start, Files.size(file));
+  }
+
+  /**
+   * Save classifiers to an XML library. Each element is written as soon as
+   * it is produced so memory use does not depend on the size of the
+   * library.
+   *
+   * @param file
+   * @param classifiers
+   * @throws IOException
+   * @throws XMLStreamException
+   */
+  public static void saveXml(Path file, Collection<Classifier> classifiers)
+      throws IOException, XMLStreamException {
+    Path temp = createTempFile(file);
+
+    try {
+      try (StreamingXmlWriter writer = StreamingXmlWriter.create(temp)) {
+        writer.startElement("classifiers");
+
+        for (Classifier c : classifiers) {
+          c.toXml(writer);
+        }
+
+        writer.endElement();
+      }
+
+      replace(temp, file);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Create the file a new version of a library is written to before it
+   * replaces the library with {@link #replace(Path, Path)}. Classifiers may
+   * still be mapped or waiting to be read from the library being replaced,
+   * so it must not be truncated while they are written. The file has a new
+   * name in the same directory as the library, so saves of the same library
+   * cannot overwrite each other's and the move does not copy the data.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  static Path createTempFile(Path file) throws IOException {
+    while (true) {
+      Path temp = file.resolveSibling(file.getFileName() + "."
+          + ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE) + ".tmp");
+
+      try {
+        // Unlike Files.createTempFile, which only lets the owner read the
+        // file, the library keeps the permissions new files are given
+        return Files.createFile(temp);
+      } catch (FileAlreadyExistsException e) {
+        // Try another name
+      }
+    }
+  }
+
+  /**
+   * Move a completely written file over a library. Entries indexed from the
+   * old library, and classifiers whose values are mapped from it, hold
+   * their own mappings of it. Where replacing a file only unlinks the old
+   * one these stay readable. Windows refuses to replace a file that is
+   * still mapped or open, in which case the library is left as it was.
+   *
+   * @param temp
+   * @param file
+   * @throws IOException If the library could not be replaced, with a
+   *           message that can be shown to the user.
+   */
+  static void replace(Path temp, Path file) throws IOException {
+    try {
+      try {
+        Files.move(temp,
+            file,
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (FileSystemException e) {
+      throw new IOException(file.getFileName()
+          + " could not be replaced. It may be in use, for example by "
+          + "classifiers loaded from it. Save the library to a different "
+          + "file.", e);
+    }
+  }
+
+  private static boolean isBinaryFile(Path file) {
+    return file.getFileName().toString().toLowerCase().endsWith(".clsb");
+  }
+}
@@ -32,7 +32,7 @@ import java.io.File;
 import org.jebtk.modern.io.GuiFileExtFilter;
 
 /**
- * The class EpsGuiFileFilter.
+ * Filter for classifier libraries. A .clsx file may be either XML or binary.
  */
 public class ClassifierGuiFileFilter extends GuiFileExtFilter {
 
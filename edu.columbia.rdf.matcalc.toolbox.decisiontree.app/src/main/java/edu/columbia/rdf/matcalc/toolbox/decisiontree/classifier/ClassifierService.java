@@ -1,19 +1,50 @@
 package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.xml.stream.XMLStreamException;
 
 import org.jebtk.core.event.ChangeListeners;
 import org.jebtk.core.xml.XmlRepresentation;
-import org.jebtk.math.machine.learning.DecisionTree;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.metrics.DecisionTreeMetrics;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.StreamingXmlWriter;
+
+/**
+ * The classifiers available to the module, ordered by name. Classifiers can
+ * be added from any thread. Listeners are notified on the event dispatch
+ * thread, once for all the changes made within a short window, so a library
+ * loading in the background does not refresh the UI for every classifier.
+ * The {@link ClassifierChangeEvent} sent describes what changed so views can
+ * update themselves without reloading every name.
+ *
+ * @author Antony Holmes
+ */
 public class ClassifierService extends ChangeListeners
     implements Iterable<String>, XmlRepresentation {
   private static final long serialVersionUID = 1L;
 
+  /**
+   * How long to collect changes before notifying listeners.
+   */
+  private static final int CHANGE_DELAY_MS = 50;
+
   private static class ClassifierHelper {
     private static final ClassifierService INSTANCE = new ClassifierService();
   }
@@ -22,35 +53,242 @@ public class ClassifierService extends ChangeListeners
     return ClassifierHelper.INSTANCE;
   }
 
-  private Map<String, DecisionTree> mClassifierMap = new TreeMap<String, DecisionTree>();
+  private final ConcurrentNavigableMap<String, ClassifierEntry> mClassifierMap = new ConcurrentSkipListMap<String, ClassifierEntry>();
+
+  /**
+   * Set while a change is waiting to be sent to listeners.
+   */
+  private final AtomicBoolean mChanged = new AtomicBoolean();
+
+  private final Timer mTimer;
+
+  /**
+   * Guards changes to the classifiers and the record of them waiting to be
+   * sent to listeners, so the two always agree.
+   */
+  private final Object mLock = new Object();
+
+  private boolean mCleared;
+  private final Set<String> mAdded = new TreeSet<String>();
+  private final Set<String> mRemoved = new TreeSet<String>();
 
   private ClassifierService() {
-    // Do nothing
+    mTimer = new Timer(CHANGE_DELAY_MS, new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        // Clear the flag first so changes made by listeners are not lost
+        mChanged.set(false);
+
+        ClassifierChangeEvent event = takeChanges();
+
+        if (!event.isEmpty()) {
+          fireChanged(event);
+        }
+      }
+    });
+
+    mTimer.setRepeats(false);
+
+    DecisionTreeMetrics.getInstance().setRegistry(this::getCount,
+        this::getMemoryEstimate);
+  }
+
+  public void add(Classifier classifier) {
+    put(Collections.singletonList(new ClassifierEntry(classifier)));
+  }
+
+  /**
+   * Add several classifiers, notifying listeners once.
+   *
+   * @param classifiers
+   */
+  public void addAll(Collection<Classifier> classifiers) {
+    List<ClassifierEntry> entries = new ArrayList<ClassifierEntry>(
+        classifiers.size());
+
+    for (Classifier classifier : classifiers) {
+      entries.add(new ClassifierEntry(classifier));
+    }
+
+    put(entries);
+  }
+
+  /**
+   * Add the entries of a library index, notifying listeners once. Each
+   * classifier is read from its library the first time it is asked for.
+   *
+   * @param entries
+   */
+  public void addEntries(Collection<ClassifierEntry> entries) {
+    put(entries);
+  }
+
+  private void put(Collection<ClassifierEntry> entries) {
+    synchronized (mLock) {
+      for (ClassifierEntry entry : entries) {
+        mClassifierMap.put(entry.getName(), entry);
+
+        mRemoved.remove(entry.getName());
+        mAdded.add(entry.getName());
+      }
+    }
+
+    changed();
+  }
+
+  /**
+   * Remove a classifier.
+   *
+   * @param name
+   */
+  public void remove(String name) {
+    synchronized (mLock) {
+      if (mClassifierMap.remove(name) == null) {
+        return;
+      }
+
+      mAdded.remove(name);
+      mRemoved.add(name);
+    }
+
+    changed();
   }
 
-  public void add(DecisionTree classifier) {
-    mClassifierMap.put(classifier.getName(), classifier);
+  /**
+   * Returns the changes made since the last call and starts a new record.
+   *
+   * @return
+   */
+  private ClassifierChangeEvent takeChanges() {
+    synchronized (mLock) {
+      ClassifierChangeEvent ret = new ClassifierChangeEvent(this, mCleared,
+          new ArrayList<String>(mAdded), new ArrayList<String>(mRemoved));
+
+      mCleared = false;
+      mAdded.clear();
+      mRemoved.clear();
+
+      return ret;
+    }
+  }
 
-    fireChanged();
+  /**
+   * Schedule listeners to be notified on the event dispatch thread. Calls
+   * made before they are notified are merged into one event.
+   */
+  private void changed() {
+    if (mChanged.compareAndSet(false, true)) {
+      SwingUtilities.invokeLater(new Runnable() {
+        @Override
+        public void run() {
+          mTimer.start();
+        }
+      });
+    }
   }
 
+  /**
+   * Iterates over a snapshot of the names, so classifiers can be added
+   * while iterating.
+   */
   @Override
   public Iterator<String> iterator() {
-    return mClassifierMap.keySet().iterator();
+    return getNames().iterator();
+  }
+
+  /**
+   * Returns a snapshot of the names of the classifiers in order.
+   *
+   * @return
+   */
+  public List<String> getNames() {
+    return new ArrayList<String>(mClassifierMap.keySet());
   }
 
   @Override
   public Element toXml(Document doc) {
     Element e = doc.createElement("classifiers");
 
-    for (DecisionTree c : mClassifierMap.values()) {
-      e.appendChild(c.toXml(doc));
+    for (ClassifierEntry c : mClassifierMap.values()) {
+      e.appendChild(c.readClassifier().toXml(doc));
     }
 
     return e;
   }
 
-  public DecisionTree get(String name) {
+  /**
+   * Returns a snapshot of the classifiers, ordered by name. Classifiers that
+   * have not been read from their library are read as the collection is
+   * iterated and are not kept, so exporting a large library only holds one
+   * of them in memory at a time.
+   *
+   * @return
+   */
+  public Collection<Classifier> getClassifiers() {
+    final List<ClassifierEntry> entries = new ArrayList<ClassifierEntry>(
+        mClassifierMap.values());
+
+    return new AbstractCollection<Classifier>() {
+      @Override
+      public Iterator<Classifier> iterator() {
+        final Iterator<ClassifierEntry> iter = entries.iterator();
+
+        return new Iterator<Classifier>() {
+          @Override
+          public boolean hasNext() {
+            return iter.hasNext();
+          }
+
+          @Override
+          public Classifier next() {
+            return iter.next().readClassifier();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return entries.size();
+      }
+    };
+  }
+
+  /**
+   * Write the classifiers as XML one at a time, producing the same output
+   * as {@link #toXml(Document)}.
+   *
+   * @param writer
+   * @throws XMLStreamException
+   */
+  public void toXml(StreamingXmlWriter writer) throws XMLStreamException {
+    writer.startElement("classifiers");
+
+    for (ClassifierEntry c : mClassifierMap.values()) {
+      c.readClassifier().toXml(writer);
+    }
+
+    writer.endElement();
+  }
+
+  /**
+   * Returns a classifier, reading it from its library if necessary.
+   *
+   * @param name
+   * @return The classifier or null if there is none with the name.
+   */
+  public Classifier get(String name) {
+    ClassifierEntry entry = mClassifierMap.get(name);
+
+    return entry != null ? entry.getClassifier() : null;
+  }
+
+  /**
+   * Returns the entry of a classifier without reading the classifier.
+   *
+   * @param name
+   * @return
+   */
+  public ClassifierEntry getEntry(String name) {
     return mClassifierMap.get(name);
   }
 
@@ -58,9 +296,33 @@ public class ClassifierService extends ChangeListeners
     return mClassifierMap.size();
   }
 
+  /**
+   * Returns an estimate of the memory used by the classifiers that have
+   * been read. Classifiers that have only been indexed are not counted.
+   *
+   * @return
+   */
+  public long getMemoryEstimate() {
+    long ret = 0;
+
+    for (ClassifierEntry entry : mClassifierMap.values()) {
+      if (entry.isLoaded()) {
+        ret += entry.getClassifier().getMemoryEstimate();
+      }
+    }
+
+    return ret;
+  }
+
   public void clear() {
-    mClassifierMap.clear();
+    synchronized (mLock) {
+      mClassifierMap.clear();
+
+      mCleared = true;
+      mAdded.clear();
+      mRemoved.clear();
+    }
 
-    fireChanged();
+    changed();
   }
 }
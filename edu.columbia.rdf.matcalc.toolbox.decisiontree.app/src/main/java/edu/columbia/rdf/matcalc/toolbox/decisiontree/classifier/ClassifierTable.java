@@ -1,21 +1,21 @@
 package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import org.jebtk.core.event.ChangeEvent;
 import org.jebtk.core.event.ChangeListener;
 import org.jebtk.modern.table.ModernSelectionTable;
-import org.jebtk.modern.table.ModernSelectionTableModel;
 
 public class ClassifierTable extends ModernSelectionTable
     implements ChangeListener {
 
   private static final long serialVersionUID = 1L;
 
+  private final ClassifierTableModel mClassifierModel = new ClassifierTableModel();
+
   public ClassifierTable() {
     setShowHeader(false);
 
+    setModel(mClassifierModel);
+
     ClassifierService.getInstance().addChangeListener(this);
 
     refresh();
@@ -23,21 +23,21 @@ public class ClassifierTable extends ModernSelectionTable
 
   @Override
   public void changed(ChangeEvent e) {
-    refresh();
+    if (e instanceof ClassifierChangeEvent) {
+      mClassifierModel.update((ClassifierChangeEvent) e);
+    } else {
+      refresh();
+    }
   }
 
+  /**
+   * Reload the names from the service, keeping the current selection.
+   */
   public void refresh() {
-    List<String> names = new ArrayList<String>(
-        ClassifierService.getInstance().getCount());
-
-    for (String c : ClassifierService.getInstance()) {
-      names.add(c);
-    }
-
-    setModel(new ModernSelectionTableModel("Classifier", names));
+    mClassifierModel.reload();
   }
 
   public boolean getIsSelected(int row) {
-    return ((ModernSelectionTableModel) mModel).getIsSelected(row);
+    return mClassifierModel.getIsSelected(row);
   }
 }
@@ -0,0 +1,147 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jebtk.modern.table.ModernSelectionTableModel;
+
+/**
+ * Lists the classifier names with a check box to select each one. Rather
+ * than being rebuilt when the classifiers change, the model applies the
+ * changes described by each {@link ClassifierChangeEvent}, merging a batch
+ * of names in one pass. Selections are kept by name so they survive
+ * classifiers being added around them.
+ *
+ * @author Antony Holmes
+ */
+public class ClassifierTableModel extends ModernSelectionTableModel {
+
+  /**
+   * The names of the classifiers, in the same order as the service.
+   */
+  private List<String> mNames = new ArrayList<String>();
+
+  private final Set<String> mSelected = new HashSet<String>();
+
+  public ClassifierTableModel() {
+    super("Classifier", Collections.<String> emptyList());
+  }
+
+  /**
+   * Apply the changes made to the classifier service.
+   *
+   * @param e
+   */
+  public void update(ClassifierChangeEvent e) {
+    if (e.isCleared()) {
+      mNames.clear();
+      mSelected.clear();
+    }
+
+    if (!e.getRemoved().isEmpty()) {
+      Set<String> removed = new HashSet<String>(e.getRemoved());
+
+      List<String> names = new ArrayList<String>(mNames.size());
+
+      for (String name : mNames) {
+        if (!removed.contains(name)) {
+          names.add(name);
+        }
+      }
+
+      mNames = names;
+      mSelected.removeAll(removed);
+    }
+
+    if (!e.getAdded().isEmpty()) {
+      mNames = merge(mNames, e.getAdded());
+    }
+
+    fireDataChanged();
+  }
+
+  /**
+   * Reload the names from the service, keeping the selection of those that
+   * are still there.
+   */
+  public void reload() {
+    mNames = ClassifierService.getInstance().getNames();
+    mSelected.retainAll(new HashSet<String>(mNames));
+
+    fireDataChanged();
+  }
+
+  /**
+   * Merge two sorted lists of names, dropping duplicates.
+   *
+   * @param names
+   * @param added
+   * @return
+   */
+  private static List<String> merge(List<String> names, List<String> added) {
+    List<String> ret = new ArrayList<String>(names.size() + added.size());
+
+    int i = 0;
+    int j = 0;
+
+    while (i < names.size() && j < added.size()) {
+      int c = names.get(i).compareTo(added.get(j));
+
+      if (c < 0) {
+        ret.add(names.get(i++));
+      } else if (c > 0) {
+        ret.add(added.get(j++));
+      } else {
+        // A replaced classifier keeps its place and selection
+        ret.add(names.get(i++));
+        ++j;
+      }
+    }
+
+    ret.addAll(names.subList(i, names.size()));
+    ret.addAll(added.subList(j, added.size()));
+
+    return ret;
+  }
+
+  @Override
+  public int getRowCount() {
+    return mNames.size();
+  }
+
+  @Override
+  public Object getValueAt(int row, int col) {
+    String name = mNames.get(row);
+
+    if (col == 0) {
+      return mSelected.contains(name);
+    } else {
+      return name;
+    }
+  }
+
+  @Override
+  public void setValueAt(int row, int col, Object value) {
+    if (col != 0) {
+      return;
+    }
+
+    String name = mNames.get(row);
+
+    if ((Boolean) value) {
+      mSelected.add(name);
+    } else {
+      mSelected.remove(name);
+    }
+
+    fireDataUpdated();
+  }
+
+  @Override
+  public boolean getIsSelected(int row) {
+    return mSelected.contains(mNames.get(row));
+  }
+}
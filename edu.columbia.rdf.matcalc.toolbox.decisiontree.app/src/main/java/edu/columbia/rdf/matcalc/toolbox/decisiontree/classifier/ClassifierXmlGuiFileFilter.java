@@ -0,0 +1,39 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+import java.io.File;
+
+import org.jebtk.modern.io.GuiFileExtFilter;
+
+/**
+ * Filter for classifier libraries saved as plain XML.
+ */
+public class ClassifierXmlGuiFileFilter extends GuiFileExtFilter {
+
+  public ClassifierXmlGuiFileFilter() {
+    super("xml");
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see javax.swing.filechooser.FileFilter#accept(java.io.File)
+   */
+  @Override
+  public final boolean accept(File f) {
+    if (f.isDirectory()) {
+      return true;
+    }
+
+    return f.getName().toLowerCase().endsWith("xml");
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see javax.swing.filechooser.FileFilter#getDescription()
+   */
+  @Override
+  public final String getDescription() {
+    return "Classifiers XML (*.xml)";
+  }
+}
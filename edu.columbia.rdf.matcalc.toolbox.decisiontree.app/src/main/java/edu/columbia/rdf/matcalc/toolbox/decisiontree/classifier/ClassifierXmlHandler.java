@@ -1,31 +1,114 @@
 package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
 
-import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 
-import org.jebtk.core.text.Parser;
 import org.jebtk.math.matrix.DataFrame;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.DecisionTree;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.GradientBoostedTrees;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.Quantizer;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.RandomForest;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.TreeModel;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.TreeNode;
+
+/**
+ * Parses the classifiers in an XML library. The reference values of each
+ * classifier are written straight into primitive arrays sized from the
+ * classifier's size attributes and only copied into matrices once the
+ * classifier is complete.
+ *
+ * @author Antony Holmes
+ */
 public class ClassifierXmlHandler extends DefaultHandler {
+
+  /**
+   * A split node whose children have not been fully parsed yet.
+   */
+  private static class NodeFrame {
+    private final int mFeature;
+    private final double mThreshold;
+    private TreeNode mLeft;
+    private TreeNode mRight;
+
+    public NodeFrame(int feature, double threshold) {
+      mFeature = feature;
+      mThreshold = threshold;
+    }
+  }
+
   private String mName;
   private String mPhenotype;
   private String mControl;
+  private String mAnnotation;
   private int mPhenSize;
   private int mControlSize;
   private int mSize;
-  private DataFrame mControlM;
-  private DataFrame mPhenM;
-  private String mGene;
-  private List<String> mGenes = new ArrayList<String>();
-  private boolean mPhenMode;
-  private boolean mControlMode;
+
+  /**
+   * The phenotype values, gene by gene.
+   */
+  private double[] mPhenValues;
+
+  /**
+   * The control values, gene by gene.
+   */
+  private double[] mControlValues;
+  private String[] mGenes;
+
+  /**
+   * The values of the current gene's samples are written to, or null
+   * outside of a phenotype or control element.
+   */
+  private double[] mValues;
+
+  /**
+   * The index in mValues of the current gene's next sample.
+   */
+  private int mValueIndex;
+  private int mValueEnd;
 
   private int mGeneIndex = -1;
-  private int mColumnIndex = 0;
+
+  /**
+   * The shared list of the classifier's genes, once they have all been
+   * read.
+   */
+  private GeneList mGeneList;
+  private String mTreeName;
+  private List<String> mLabels;
+  private Deque<NodeFrame> mNodes = new ArrayDeque<NodeFrame>();
+  private TreeNode mRoot;
+
+  /**
+   * The sample counts of the nodes of the current tree, in the order they
+   * appear, and the number of nodes seen.
+   */
+  private List<Long> mHits = new ArrayList<Long>();
+  private int mNodeCount;
+
+  /**
+   * The bin edges of a tree trained on quantized values, indexed by gene.
+   */
+  private double[][] mEdges;
+  private TreeModel mModel;
+
+  /**
+   * The trees parsed so far when inside a forest, otherwise null.
+   */
+  private List<DecisionTree> mForestTrees;
+
+  /**
+   * The trees parsed so far when inside a boosted model, otherwise null.
+   */
+  private List<TreeNode> mBoostedTrees;
+  private double mBaseScore;
+  private List<Classifier> mClassifiers = new ArrayList<Classifier>();
 
   @Override
   public void startElement(String uri,
@@ -33,60 +116,110 @@ public class ClassifierXmlHandler extends DefaultHandler {
       String qName,
       Attributes attributes) throws SAXException {
 
-    if (qName.equals("classifier")) {
+    // Samples are by far the most common element so are checked first
+    if (qName.equals("sample")) {
+      if (mValues != null) {
+        if (mValueIndex == mValueEnd) {
+          throw new SAXException("Classifier " + mName
+              + " has more samples than its size attributes allow.");
+        }
+
+        mValues[mValueIndex++] = toDouble(attributes.getValue("value"));
+      }
+    } else if (qName.equals("classifier")) {
       mName = attributes.getValue("name");
       mPhenotype = attributes.getValue("phenotype");
+      mControl = attributes.getValue("control");
+      mAnnotation = attributes.getValue("annotation");
+      mPhenSize = toInt(attributes, "phenotype-size");
+      mControlSize = toInt(attributes, "control-size");
+      mSize = toInt(attributes, "size");
       mGeneIndex = -1;
 
-      System.err.println("classifier " + mName);
+      mPhenValues = new double[mSize * mPhenSize];
+      mControlValues = new double[mSize * mControlSize];
+      mGenes = new String[mSize];
+      mValues = null;
+      mModel = null;
+      mForestTrees = null;
+      mBoostedTrees = null;
+      mGeneList = null;
+    } else if (qName.equals("gene")) {
+      if (++mGeneIndex == mSize) {
+        throw new SAXException(
+            "Classifier " + mName + " has more than " + mSize + " genes.");
+      }
+
+      mGenes[mGeneIndex] = attributes.getValue("name");
+    } else if (qName.equals("phenotype")) {
+      startValues(mPhenValues, mPhenSize);
+    } else if (qName.equals("control")) {
+      startValues(mControlValues, mControlSize);
+    } else if (qName.equals("forest")) {
+      mForestTrees = new ArrayList<DecisionTree>();
+    } else if (qName.equals("boosted")) {
+      mBoostedTrees = new ArrayList<TreeNode>();
+      mLabels = new ArrayList<String>();
 
-      try {
-        mPhenSize = Parser.toInt(attributes.getValue("phenotype-size"));
-      } catch (ParseException e2) {
-        e2.printStackTrace();
+      mBaseScore = toDouble(attributes.getValue("base-score"));
+    } else if (qName.equals("tree")) {
+      // The genes precede the model so the list can be shared by every tree
+      // in a forest
+      if (mGeneList == null) {
+        mGeneList = GeneDictionary.getInstance().intern(mGenes);
       }
 
-      mControl = attributes.getValue("control");
+      // The trees of a boosted model share its labels
+      if (mBoostedTrees == null) {
+        mLabels = new ArrayList<String>();
+      }
 
-      try {
-        mControlSize = Parser.toInt(attributes.getValue("control-size"));
-      } catch (ParseException e1) {
-        e1.printStackTrace();
+      mTreeName = attributes.getValue("name");
+      mNodes.clear();
+      mRoot = null;
+      mEdges = null;
+      mHits.clear();
+      mNodeCount = 0;
+    } else if (qName.equals("label")) {
+      mLabels.add(attributes.getValue("name"));
+    } else if (qName.equals("bins")) {
+      String feature = attributes.getValue("feature");
+
+      int index = mGeneList.indexOf(feature);
+
+      if (index == -1) {
+        throw new SAXException(
+            "Tree in " + mName + " has bins for unknown gene " + feature);
       }
-      try {
-        mSize = Parser.toInt(attributes.getValue("size"));
-      } catch (ParseException e) {
-        e.printStackTrace();
+
+      if (mEdges == null) {
+        mEdges = new double[mGeneList.size()][];
       }
 
-      mPhenM = DataFrame.createNumericalMatrix(mSize, mPhenSize);
-      mControlM = DataFrame.createNumericalMatrix(mSize, mControlSize);
-      mGenes = new ArrayList<String>();
-    } else if (qName.equals("gene")) {
-      mGene = attributes.getValue("name");
+      mEdges[index] = parseEdges(attributes.getValue("edges"));
+    } else if (qName.equals("node")) {
+      String feature = attributes.getValue("feature");
 
-      mGenes.add(mGene);
+      int index = mGeneList.indexOf(feature);
 
-      ++mGeneIndex;
-    } else if (qName.equals("phenotype")) {
-      mPhenMode = true;
-      mColumnIndex = 0;
-    } else if (qName.equals("control")) {
-      mControlMode = true;
-      mColumnIndex = 0;
-    } else if (qName.equals("sample")) {
-      try {
-        double v = Parser.toDouble(attributes.getValue("value"));
+      if (index == -1) {
+        throw new SAXException(
+            "Tree in " + mName + " splits on unknown gene " + feature);
+      }
 
-        if (mPhenMode) {
-          mPhenM.set(mGeneIndex, mColumnIndex++, v);
-        }
+      mNodes.push(
+          new NodeFrame(index, toDouble(attributes.getValue("threshold"))));
 
-        if (mControlMode) {
-          mControlM.set(mGeneIndex, mColumnIndex++, v);
-        }
-      } catch (ParseException e) {
-        e.printStackTrace();
+      addHits(attributes);
+    } else if (qName.equals("leaf")) {
+      addHits(attributes);
+
+      String value = attributes.getValue("value");
+
+      if (value != null) {
+        addNode(TreeNode.leaf(toDouble(value)));
+      } else {
+        addNode(TreeNode.leaf(toInt(attributes, "label")));
       }
     } else {
       // Do nothing
@@ -94,15 +227,239 @@ public class ClassifierXmlHandler extends DefaultHandler {
   }
 
   @Override
-  public void endElement(String uri, String localName, String qName) {
+  public void endElement(String uri, String localName, String qName)
+      throws SAXException {
     if (qName.equals("classifier")) {
-      //
-    } else if (qName.equals("phenotype")) {
-      mPhenMode = false;
-    } else if (qName.equals("control")) {
-      mControlMode = false;
+      if (mGeneIndex + 1 != mSize) {
+        throw new SAXException("Classifier " + mName + " has "
+            + (mGeneIndex + 1) + " genes rather than " + mSize + ".");
+      }
+
+      // If the file predates trees being saved with the reference data,
+      // the classifier will train one when it is created.
+      try {
+        mClassifiers.add(Classifier.create(mName,
+            mPhenotype,
+            toMatrix(mPhenValues, mPhenSize),
+            mControl,
+            toMatrix(mControlValues, mControlSize),
+            getGenes(),
+            mAnnotation,
+            mModel));
+      } catch (IllegalArgumentException e) {
+        throw new SAXException(e.getMessage(), e);
+      }
+
+      mPhenValues = null;
+      mControlValues = null;
+    } else if (qName.equals("node")) {
+      NodeFrame frame = mNodes.pop();
+
+      addNode(TreeNode
+          .split(frame.mFeature, frame.mThreshold, frame.mLeft, frame.mRight));
+    } else if (qName.equals("tree") && mBoostedTrees != null) {
+      mBoostedTrees.add(mRoot);
+    } else if (qName.equals("boosted")) {
+      mModel = new GradientBoostedTrees(mName, getGenes(),
+          mLabels.toArray(new String[mLabels.size()]), mBaseScore,
+          mBoostedTrees.toArray(new TreeNode[mBoostedTrees.size()]));
+
+      mBoostedTrees = null;
+    } else if (qName.equals("tree")) {
+      DecisionTree tree = new DecisionTree(
+          mTreeName != null ? mTreeName : mName, getGenes(),
+          mLabels.toArray(new String[mLabels.size()]), mRoot,
+          mEdges != null ? new Quantizer(mEdges) : null, getHits());
+
+      if (mForestTrees != null) {
+        mForestTrees.add(tree);
+      } else {
+        mModel = tree;
+      }
+    } else if (qName.equals("forest")) {
+      if (mForestTrees.isEmpty()) {
+        throw new SAXException("Forest in " + mName + " has no trees.");
+      }
+
+      mModel = new RandomForest(mName, getGenes(),
+          mForestTrees.get(0).getLabels(),
+          mForestTrees.toArray(new DecisionTree[mForestTrees.size()]));
+
+      mForestTrees = null;
+    } else if (qName.equals("phenotype") || qName.equals("control")) {
+      mValues = null;
     } else {
       // Do nothing
     }
   }
+
+  /**
+   * Attach a completed node to its parent, or make it the root of the tree if
+   * it has no parent.
+   *
+   * @param node
+   */
+  private void addNode(TreeNode node) {
+    if (mNodes.isEmpty()) {
+      mRoot = node;
+    } else {
+      NodeFrame parent = mNodes.peek();
+
+      if (parent.mLeft == null) {
+        parent.mLeft = node;
+      } else {
+        parent.mRight = node;
+      }
+    }
+  }
+
+  /**
+   * Record the sample count of a node, if it has one.
+   *
+   * @param attributes
+   * @throws SAXException
+   */
+  private void addHits(Attributes attributes) throws SAXException {
+    ++mNodeCount;
+
+    String hits = attributes.getValue("hits");
+
+    if (hits != null) {
+      try {
+        mHits.add(Long.parseLong(hits));
+      } catch (NumberFormatException e) {
+        throw new SAXException(hits + " is not a count.", e);
+      }
+    }
+  }
+
+  /**
+   * Returns the sample counts of the nodes of the current tree, or null
+   * unless every node has one.
+   *
+   * @return
+   */
+  private long[] getHits() {
+    if (mHits.isEmpty() || mHits.size() != mNodeCount) {
+      return null;
+    }
+
+    long[] ret = new long[mHits.size()];
+
+    for (int i = 0; i < ret.length; ++i) {
+      ret[i] = mHits.get(i);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Point the following samples at the current gene's row of a block of
+   * values.
+   *
+   * @param values
+   * @param cols The number of samples per gene.
+   * @throws SAXException
+   */
+  private void startValues(double[] values, int cols) throws SAXException {
+    if (mGeneIndex < 0) {
+      throw new SAXException(
+          "Classifier " + mName + " has samples outside of a gene.");
+    }
+
+    mValues = values;
+    mValueIndex = mGeneIndex * cols;
+    mValueEnd = mValueIndex + cols;
+  }
+
+  /**
+   * Copy values stored gene by gene into a matrix with one row per gene.
+   *
+   * @param values
+   * @param cols
+   * @return
+   */
+  private DataFrame toMatrix(double[] values, int cols) {
+    DataFrame ret = DataFrame.createNumericalMatrix(mSize, cols);
+
+    for (int g = 0, i = 0; g < mSize; ++g) {
+      for (int c = 0; c < cols; ++c) {
+        ret.set(g, c, values[i++]);
+      }
+    }
+
+    return ret;
+  }
+
+  static int toInt(Attributes attributes, String name)
+      throws SAXException {
+    String value = attributes.getValue(name);
+
+    if (value == null) {
+      throw new SAXException("Missing attribute " + name + ".");
+    }
+
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new SAXException("Attribute " + name + " is not an integer.", e);
+    }
+  }
+
+  /**
+   * Parse a number, treating a missing or empty value as missing data.
+   *
+   * @param text
+   * @return
+   * @throws SAXException
+   */
+  private static double toDouble(String text) throws SAXException {
+    if (text == null || text.isEmpty()) {
+      return Double.NaN;
+    }
+
+    try {
+      return Double.parseDouble(text);
+    } catch (NumberFormatException e) {
+      throw new SAXException(text + " is not a number.", e);
+    }
+  }
+
+  private static double[] parseEdges(String text) throws SAXException {
+    if (text.isEmpty()) {
+      return new double[0];
+    }
+
+    String[] tokens = text.split(",");
+
+    double[] ret = new double[tokens.length];
+
+    for (int i = 0; i < tokens.length; ++i) {
+      ret[i] = toDouble(tokens[i]);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the shared copy of the genes, which the models hold on to.
+   *
+   * @return
+   */
+  private String[] getGenes() {
+    if (mGeneList == null) {
+      mGeneList = GeneDictionary.getInstance().intern(mGenes);
+    }
+
+    return mGeneList.getGenes();
+  }
+
+  /**
+   * Returns the classifiers parsed from the file.
+   *
+   * @return
+   */
+  public List<Classifier> getClassifiers() {
+    return mClassifiers;
+  }
 }
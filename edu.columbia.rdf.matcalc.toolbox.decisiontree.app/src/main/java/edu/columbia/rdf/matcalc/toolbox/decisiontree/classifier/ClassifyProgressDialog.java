@@ -0,0 +1,204 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+import javax.swing.Box;
+import javax.swing.JProgressBar;
+import javax.swing.Timer;
+
+import org.jebtk.modern.UI;
+import org.jebtk.modern.dialog.ModernDialogTaskWindow;
+import org.jebtk.modern.event.ModernClickEvent;
+import org.jebtk.modern.panel.VBox;
+import org.jebtk.modern.text.ModernAutoSizeLabel;
+
+import edu.columbia.rdf.matcalc.MainMatCalcWindow;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.ParallelClassifier;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.PermutationTest;
+
+/**
+ * Shows the progress of a classification job running in the background and
+ * lets the user cancel it. The job reads the classifier, scores the samples
+ * and may then test the significance of the scores, each of which is shown
+ * as a stage.
+ *
+ * @author Antony Holmes
+ */
+public class ClassifyProgressDialog extends ModernDialogTaskWindow {
+  private static final long serialVersionUID = 1L;
+
+  private static final int UPDATE_DELAY_MS = 100;
+
+  private final String mName;
+
+  /**
+   * The job scoring the samples, once the classifier has been read.
+   */
+  private volatile ParallelClassifier mClassifier;
+
+  private volatile boolean mCancelled = false;
+
+  private final JProgressBar mProgressBar;
+
+  private final Timer mTimer;
+
+  /**
+   * The permutation test, once the job has moved on to it.
+   */
+  private volatile PermutationTest mTest;
+
+  private volatile int mPermutations;
+
+  /**
+   * Create a dialog for a job that has yet to read its classifier.
+   *
+   * @param parent
+   * @param name The name of the classifier.
+   */
+  public ClassifyProgressDialog(MainMatCalcWindow parent, String name) {
+    super(parent);
+
+    mName = name;
+
+    setTitle("Classify");
+
+    mProgressBar = new JProgressBar();
+    mProgressBar.setStringPainted(true);
+
+    // Poll the job rather than have the workers post an event per sample.
+    mTimer = new Timer(UPDATE_DELAY_MS, new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        update();
+      }
+    });
+
+    setup();
+
+    createUi();
+  }
+
+  private void setup() {
+    mOkButton.setEnabled(false);
+
+    addWindowListener(new WindowAdapter() {
+      @Override
+      public void windowOpened(WindowEvent e) {
+        mTimer.start();
+      }
+
+      @Override
+      public void windowClosing(WindowEvent e) {
+        cancel();
+      }
+    });
+
+    setSize(480, 200);
+
+    UI.centerWindowToScreen(this);
+  }
+
+  private final void createUi() {
+    Box box = VBox.create();
+
+    box.add(new ModernAutoSizeLabel("Classifying with " + mName + "..."));
+    box.add(UI.createVGap(10));
+    box.add(mProgressBar);
+
+    setCard(box);
+
+    update();
+  }
+
+  /**
+   * Show the progress of scoring the samples once the classifier has been
+   * read. If the user has already cancelled, the job is cancelled
+   * straight away. Can be called from any thread.
+   *
+   * @param classifier
+   */
+  public void setClassifier(ParallelClassifier classifier) {
+    mClassifier = classifier;
+
+    if (mCancelled) {
+      classifier.cancel();
+    }
+  }
+
+  /**
+   * Returns true if the user cancelled the job. Can be called from any
+   * thread.
+   */
+  @Override
+  public boolean isCancelled() {
+    return mCancelled;
+  }
+
+  private void cancel() {
+    mCancelled = true;
+
+    ParallelClassifier classifier = mClassifier;
+
+    if (classifier != null) {
+      classifier.cancel();
+    }
+  }
+
+  /**
+   * Show the progress of the permutation test that follows classification.
+   * Can be called from any thread.
+   *
+   * @param test
+   * @param permutations The maximum number of permutations.
+   */
+  public void setPermutationTest(PermutationTest test, int permutations) {
+    mPermutations = permutations;
+    mTest = test;
+  }
+
+  private void update() {
+    PermutationTest test = mTest;
+    ParallelClassifier classifier = mClassifier;
+
+    if (test != null) {
+      int progress = test.getProgress();
+
+      mProgressBar.setMaximum(Math.max(1, mPermutations));
+      mProgressBar.setValue(progress);
+      mProgressBar.setString(
+          "Permutation " + progress + " of at most " + mPermutations);
+    } else if (classifier != null) {
+      int progress = classifier.getProgress();
+
+      mProgressBar.setIndeterminate(false);
+      mProgressBar.setMaximum(Math.max(1, classifier.getSize()));
+      mProgressBar.setValue(progress);
+      mProgressBar.setString(progress + " of " + classifier.getSize());
+    } else {
+      // Reading the classifier does not report its progress
+      mProgressBar.setIndeterminate(true);
+      mProgressBar.setString("Reading classifier");
+    }
+  }
+
+  @Override
+  public final void clicked(ModernClickEvent e) {
+    if (e.getMessage().equals(UI.BUTTON_CANCEL)) {
+      cancel();
+    }
+
+    super.clicked(e);
+  }
+
+  @Override
+  public void setVisible(boolean visible) {
+    if (!visible) {
+      mTimer.stop();
+    }
+
+    super.setVisible(visible);
+  }
+}
@@ -0,0 +1,181 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The gene symbols used by every classifier. Each symbol is given an int id
+ * the first time it is seen and is only held once, however many classifiers
+ * use it. Gene lists are interned too, so classifiers built on the same
+ * platform share a single {@link GeneList} and the index within it. Lists
+ * are only held weakly, so a list is dropped once no classifier uses it.
+ *
+ * @author Antony Holmes
+ */
+public class GeneDictionary {
+
+  private static class GeneDictionaryHelper {
+    private static final GeneDictionary INSTANCE = new GeneDictionary();
+  }
+
+  public static GeneDictionary getInstance() {
+    return GeneDictionaryHelper.INSTANCE;
+  }
+
+  /**
+   * Compares gene lists by their ids.
+   */
+  private static class ListKey {
+    private final int[] mIds;
+    private final int mHash;
+
+    public ListKey(int[] ids) {
+      mIds = ids;
+      mHash = Arrays.hashCode(ids);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof ListKey && Arrays.equals(mIds, ((ListKey) o).mIds);
+    }
+
+    @Override
+    public int hashCode() {
+      return mHash;
+    }
+  }
+
+  /**
+   * A list that can be removed from the map once it has been collected.
+   */
+  private static class ListRef extends WeakReference<GeneList> {
+    private final ListKey mKey;
+
+    public ListRef(ListKey key, GeneList list,
+        ReferenceQueue<GeneList> queue) {
+      super(list, queue);
+
+      mKey = key;
+    }
+  }
+
+  /**
+   * Ids can be looked up without the lock, which is only needed to add
+   * genes and lists.
+   */
+  private final Map<String, Integer> mIdMap =
+      new ConcurrentHashMap<String, Integer>();
+  private final List<String> mGenes = new ArrayList<String>();
+  private final Map<ListKey, ListRef> mLists = new HashMap<ListKey, ListRef>();
+  private final ReferenceQueue<GeneList> mCollected =
+      new ReferenceQueue<GeneList>();
+
+  private GeneDictionary() {
+    // Do nothing
+  }
+
+  /**
+   * Returns the id of a gene, giving it one if it is new.
+   *
+   * @param gene
+   * @return
+   */
+  public synchronized int intern(String gene) {
+    Integer id = mIdMap.get(gene);
+
+    if (id == null) {
+      id = mGenes.size();
+
+      mIdMap.put(gene, id);
+      mGenes.add(gene);
+    }
+
+    return id;
+  }
+
+  /**
+   * Returns the shared list of a set of genes, in the same order.
+   *
+   * @param genes
+   * @return
+   */
+  public synchronized GeneList intern(String[] genes) {
+    int[] ids = new int[genes.length];
+
+    for (int i = 0; i < genes.length; ++i) {
+      ids[i] = intern(genes[i]);
+    }
+
+    removeCollected();
+
+    ListKey key = new ListKey(ids);
+
+    ListRef ref = mLists.get(key);
+
+    GeneList ret = ref != null ? ref.get() : null;
+
+    if (ret == null) {
+      // Use the dictionary's copy of each symbol so the caller's strings
+      // can be collected
+      String[] shared = new String[ids.length];
+
+      for (int i = 0; i < ids.length; ++i) {
+        shared[i] = mGenes.get(ids[i]);
+      }
+
+      ret = new GeneList(ids, shared);
+
+      mLists.put(key, new ListRef(key, ret, mCollected));
+    }
+
+    return ret;
+  }
+
+  /**
+   * Remove the lists that are no longer used by any classifier.
+   */
+  private void removeCollected() {
+    Reference<? extends GeneList> ref;
+
+    while ((ref = mCollected.poll()) != null) {
+      ListKey key = ((ListRef) ref).mKey;
+
+      // The list may since have been interned again under the same key
+      if (mLists.get(key) == ref) {
+        mLists.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Returns the id of a gene.
+   *
+   * @param gene
+   * @return The id or -1 if no classifier uses the gene.
+   */
+  public int getId(String gene) {
+    Integer id = mIdMap.get(gene);
+
+    return id != null ? id : -1;
+  }
+
+  public synchronized String getGene(int id) {
+    return mGenes.get(id);
+  }
+
+  /**
+   * Returns the number of distinct genes.
+   *
+   * @return
+   */
+  public synchronized int size() {
+    return mGenes.size();
+  }
+}
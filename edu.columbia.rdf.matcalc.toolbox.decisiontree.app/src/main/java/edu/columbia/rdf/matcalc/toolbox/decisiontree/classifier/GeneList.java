@@ -0,0 +1,112 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+/**
+ * The genes of a classifier, in order, as ids in the
+ * {@link GeneDictionary}. Lists are shared between classifiers with the same
+ * genes so should be treated as immutable. Ids are mapped back to positions
+ * with an open addressing table of ints rather than a map of boxed values.
+ *
+ * @author Antony Holmes
+ */
+public class GeneList {
+  private static final int EMPTY = -1;
+
+  private final int[] mIds;
+  private final String[] mGenes;
+
+  /**
+   * The table keys are ids and the values positions in the list. Its size
+   * is a power of two at least twice the number of genes.
+   */
+  private final int[] mKeys;
+  private final int[] mValues;
+  private final int mMask;
+
+  GeneList(int[] ids, String[] genes) {
+    mIds = ids;
+    mGenes = genes;
+
+    int capacity = Integer.highestOneBit(Math.max(2, ids.length) * 2 - 1) << 1;
+
+    mKeys = new int[capacity];
+    mValues = new int[capacity];
+    mMask = capacity - 1;
+
+    for (int i = 0; i < capacity; ++i) {
+      mKeys[i] = EMPTY;
+    }
+
+    for (int i = 0; i < ids.length; ++i) {
+      int slot = slot(ids[i]);
+
+      // If a gene is listed twice its last position wins
+      mKeys[slot] = ids[i];
+      mValues[slot] = i;
+    }
+  }
+
+  /**
+   * Find the slot holding an id, or the empty slot where it would go.
+   *
+   * @param id
+   * @return
+   */
+  private int slot(int id) {
+    // Spread the ids, which are dense, across the table
+    int h = id * 0x9E3779B9;
+    int slot = (h ^ (h >>> 16)) & mMask;
+
+    while (mKeys[slot] != EMPTY && mKeys[slot] != id) {
+      slot = (slot + 1) & mMask;
+    }
+
+    return slot;
+  }
+
+  public int size() {
+    return mIds.length;
+  }
+
+  public int getId(int index) {
+    return mIds[index];
+  }
+
+  public String getGene(int index) {
+    return mGenes[index];
+  }
+
+  /**
+   * Returns the genes. The array is shared so must not be modified.
+   *
+   * @return
+   */
+  public String[] getGenes() {
+    return mGenes;
+  }
+
+  /**
+   * Returns the position of a gene id.
+   *
+   * @param id
+   * @return The position or -1 if the gene is not in the list.
+   */
+  public int indexOf(int id) {
+    if (id < 0) {
+      return -1;
+    }
+
+    int slot = slot(id);
+
+    return mKeys[slot] == id ? mValues[slot] : -1;
+  }
+
+  /**
+   * Returns the position of a gene.
+   *
+   * @param gene
+   * @return The position or -1 if the gene is not in the list.
+   */
+  public int indexOf(String gene) {
+    return indexOf(GeneDictionary.getInstance().getId(gene));
+  }
+}
@@ -0,0 +1,95 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+import java.util.Arrays;
+
+/**
+ * Summary statistics of each gene in a group of samples, computed once so
+ * they can be looked up by gene index without touching the samples again.
+ * Missing values are ignored; a gene with no values has statistics of NaN.
+ *
+ * @author Antony Holmes
+ */
+public class GeneStats {
+  private final double[] mMean;
+  private final double[] mVariance;
+  private final double[] mSd;
+  private final double[] mMedian;
+
+  /**
+   * Compute the statistics of each row of a matrix.
+   *
+   * @param m A matrix with one row per gene and one column per sample.
+   */
+  public GeneStats(ReferenceMatrix m) {
+    int rows = m.getRows();
+    int cols = m.getCols();
+
+    mMean = new double[rows];
+    mVariance = new double[rows];
+    mSd = new double[rows];
+    mMedian = new double[rows];
+
+    double[] values = new double[cols];
+
+    for (int r = 0; r < rows; ++r) {
+      int n = 0;
+
+      for (int c = 0; c < cols; ++c) {
+        double v = m.getValue(r, c);
+
+        if (!Double.isNaN(v)) {
+          values[n++] = v;
+        }
+      }
+
+      if (n == 0) {
+        mMean[r] = Double.NaN;
+        mVariance[r] = Double.NaN;
+        mSd[r] = Double.NaN;
+        mMedian[r] = Double.NaN;
+        continue;
+      }
+
+      double sum = 0;
+
+      for (int i = 0; i < n; ++i) {
+        sum += values[i];
+      }
+
+      double mean = sum / n;
+
+      // Sample variance, using the mean from the first pass for accuracy
+      double ss = 0;
+
+      for (int i = 0; i < n; ++i) {
+        double d = values[i] - mean;
+        ss += d * d;
+      }
+
+      mMean[r] = mean;
+      mVariance[r] = n > 1 ? ss / (n - 1) : 0;
+      mSd[r] = Math.sqrt(mVariance[r]);
+
+      Arrays.sort(values, 0, n);
+
+      mMedian[r] = (n & 1) == 1 ? values[n / 2]
+          : (values[n / 2 - 1] + values[n / 2]) / 2;
+    }
+  }
+
+  public double getMean(int gene) {
+    return mMean[gene];
+  }
+
+  public double getVariance(int gene) {
+    return mVariance[gene];
+  }
+
+  public double getSd(int gene) {
+    return mSd[gene];
+  }
+
+  public double getMedian(int gene) {
+    return mMedian[gene];
+  }
+}
@@ -0,0 +1,567 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.jebtk.math.matrix.DataFrame;
+
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.BinaryClassifierFormat.Precision;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.PackedMatrix;
+
+/**
+ * The reference values of a classifier, with one row per gene and one
+ * column per sample. The values can be held in a matrix on the heap, in
+ * memory outside of the heap, or read straight from a memory mapped
+ * library, in which case they live in the page cache and cost the heap
+ * nothing. All three are read through the same methods.
+ *
+ * Values can also be kept at a lower {@link Precision}, as floats or as 16
+ * bit fixed point codes, which are converted back to doubles as they are
+ * read. The layout of the values in memory is the same as in a binary
+ * library.
+ *
+ * The storage used for new classifiers is set with
+ * {@link #setDefaultStorage} and defaults to the value of the
+ * {@code decisiontree.storage} system property ({@code heap},
+ * {@code off-heap} or {@code mapped}), or the heap if it is not set. The
+ * precision of new classifiers likewise defaults to the
+ * {@code decisiontree.precision} property ({@code double}, {@code float} or
+ * {@code fixed16}), or double.
+ *
+ * @author Antony Holmes
+ */
+public abstract class ReferenceMatrix {
+
+  /**
+   * Where reference values are kept.
+   */
+  public enum Storage {
+    HEAP,
+
+    /**
+     * Direct buffers outside of the heap.
+     */
+    OFF_HEAP,
+
+    /**
+     * Views of the library file the values were read from. Classifiers that
+     * are not read from a binary library are kept off the heap instead.
+     */
+    MAPPED
+  }
+
+  public static final String STORAGE_PROPERTY = "decisiontree.storage";
+
+  public static final String PRECISION_PROPERTY = "decisiontree.precision";
+
+  /**
+   * The fixed point code of a missing value.
+   */
+  private static final int MISSING_CODE = 0xFFFF;
+
+  /**
+   * The largest fixed point code of a value.
+   */
+  private static final int MAX_CODE = MISSING_CODE - 1;
+
+  private static volatile Storage sStorage = parse(Storage.class,
+      System.getProperty(STORAGE_PROPERTY),
+      Storage.HEAP);
+
+  private static volatile Precision sPrecision = parse(Precision.class,
+      System.getProperty(PRECISION_PROPERTY),
+      Precision.DOUBLE);
+
+  protected final int mRows;
+  protected final int mCols;
+
+  protected ReferenceMatrix(int rows, int cols) {
+    mRows = rows;
+    mCols = cols;
+  }
+
+  public int getRows() {
+    return mRows;
+  }
+
+  public int getCols() {
+    return mCols;
+  }
+
+  public abstract double getValue(int row, int col);
+
+  public String getText(int row, int col) {
+    return Double.toString(getValue(row, col));
+  }
+
+  /**
+   * Copy a column into an array.
+   *
+   * @param col
+   * @param to
+   * @param offset The index in to of the first row.
+   */
+  public void copyColumn(int col, double[] to, int offset) {
+    for (int r = 0; r < mRows; ++r) {
+      to[offset + r] = getValue(r, col);
+    }
+  }
+
+  /**
+   * Returns the values as a matrix on the heap. Unless the values are kept
+   * on the heap, this is a copy.
+   *
+   * @return
+   */
+  public DataFrame toDataFrame() {
+    DataFrame ret = DataFrame.createNumericalMatrix(mRows, mCols);
+
+    for (int r = 0; r < mRows; ++r) {
+      for (int c = 0; c < mCols; ++c) {
+        ret.set(r, c, getValue(r, c));
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the number of bytes used to hold the values.
+   *
+   * @return
+   */
+  public long getByteSize() {
+    return (long) mRows * mCols * 8;
+  }
+
+  public abstract Storage getStorage();
+
+  public abstract Precision getPrecision();
+
+  /**
+   * Values held in a matrix on the heap.
+   */
+  private static class HeapMatrix extends ReferenceMatrix {
+    private final DataFrame mM;
+
+    public HeapMatrix(DataFrame m) {
+      super(m.getRows(), m.getCols());
+
+      mM = m;
+    }
+
+    @Override
+    public double getValue(int row, int col) {
+      return mM.getValue(row, col);
+    }
+
+    @Override
+    public String getText(int row, int col) {
+      return mM.getText(row, col);
+    }
+
+    @Override
+    public DataFrame toDataFrame() {
+      return mM;
+    }
+
+    @Override
+    public Storage getStorage() {
+      return Storage.HEAP;
+    }
+
+    @Override
+    public Precision getPrecision() {
+      return Precision.DOUBLE;
+    }
+  }
+
+  /**
+   * Values held in a buffer, one column after another, as doubles, floats
+   * or fixed point codes. Fixed point codes are preceded by the offset of
+   * each row and then the scale of each row.
+   */
+  private static class BufferMatrix extends ReferenceMatrix {
+    private final ByteBuffer mBuffer;
+    private final Precision mPrecision;
+    private final Storage mStorage;
+
+    /**
+     * The position of the fixed point codes.
+     */
+    private final int mCodes;
+
+    public BufferMatrix(ByteBuffer buffer, int rows, int cols,
+        Precision precision, Storage storage) {
+      super(rows, cols);
+
+      // Every offset read below is smaller than this, so fits in an int
+      if (buffer.capacity() < bufferSize(rows, cols, precision)) {
+        throw new IllegalArgumentException(
+            "The buffer is too small for a " + rows + " x " + cols
+                + " matrix.");
+      }
+
+      mBuffer = buffer;
+      mPrecision = precision;
+      mStorage = storage;
+      mCodes = rows * 16;
+    }
+
+    @Override
+    public double getValue(int row, int col) {
+      // Absolute reads so the buffer can be shared between threads
+      int i = col * mRows + row;
+
+      switch (mPrecision) {
+      case FLOAT:
+        return mBuffer.getFloat(i * 4);
+      case FIXED16:
+        int code = mBuffer.getShort(mCodes + i * 2) & 0xFFFF;
+
+        if (code == MISSING_CODE) {
+          return Double.NaN;
+        }
+
+        return mBuffer.getDouble(row * 8)
+            + mBuffer.getDouble((mRows + row) * 8) * code;
+      default:
+        return mBuffer.getDouble(i * 8);
+      }
+    }
+
+    @Override
+    public void copyColumn(int col, double[] to, int offset) {
+      if (mPrecision != Precision.DOUBLE) {
+        super.copyColumn(col, to, offset);
+        return;
+      }
+
+      ByteBuffer column = mBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      column.position(col * mRows * 8);
+
+      column.asDoubleBuffer().get(to, offset, mRows);
+    }
+
+    @Override
+    public long getByteSize() {
+      return byteSize(mRows, mCols, mPrecision);
+    }
+
+    @Override
+    public Storage getStorage() {
+      return mStorage;
+    }
+
+    @Override
+    public Precision getPrecision() {
+      return mPrecision;
+    }
+  }
+
+  /**
+   * Keep the values of a matrix using the current storage and precision.
+   *
+   * @param m
+   * @return
+   */
+  public static ReferenceMatrix create(DataFrame m) {
+    return create(m, getDefaultStorage(), getDefaultPrecision());
+  }
+
+  /**
+   * Keep the values of a matrix at double precision.
+   *
+   * @param m
+   * @param storage
+   * @return
+   */
+  public static ReferenceMatrix create(DataFrame m, Storage storage) {
+    return create(m, storage, Precision.DOUBLE);
+  }
+
+  /**
+   * Keep the values of a matrix. A matrix kept on the heap at double
+   * precision is used as is rather than copied.
+   *
+   * @param m
+   * @param storage
+   * @param precision
+   * @return
+   */
+  public static ReferenceMatrix create(DataFrame m,
+      Storage storage,
+      Precision precision) {
+    HeapMatrix ret = new HeapMatrix(m);
+
+    if (storage == Storage.HEAP && precision == Precision.DOUBLE) {
+      return ret;
+    }
+
+    return convert(ret, storage, precision);
+  }
+
+  /**
+   * Returns the values of a matrix at a different precision, keeping them
+   * in the same kind of storage. Values that are mapped from a library are
+   * copied off the heap.
+   *
+   * @param m
+   * @param precision
+   * @return
+   */
+  public static ReferenceMatrix convert(ReferenceMatrix m,
+      Precision precision) {
+    if (m.getPrecision() == precision) {
+      return m;
+    }
+
+    if (m.getStorage() == Storage.HEAP && precision == Precision.DOUBLE) {
+      return new HeapMatrix(m.toDataFrame());
+    }
+
+    return convert(m, m.getStorage(), precision);
+  }
+
+  private static ReferenceMatrix convert(ReferenceMatrix m,
+      Storage storage,
+      Precision precision) {
+    // New values cannot be mapped from a file so are kept off the heap
+    if (storage == Storage.MAPPED) {
+      storage = Storage.OFF_HEAP;
+    }
+
+    ByteBuffer buffer = encode(m, precision, storage == Storage.OFF_HEAP);
+
+    return new BufferMatrix(buffer, m.getRows(), m.getCols(), precision,
+        storage);
+  }
+
+  /**
+   * Returns the number of bytes needed to store a matrix.
+   *
+   * @param rows
+   * @param cols
+   * @param precision
+   * @return
+   */
+  public static long byteSize(int rows, int cols, Precision precision) {
+    long values = (long) rows * cols;
+
+    switch (precision) {
+    case FLOAT:
+      return values * 4;
+    case FIXED16:
+      return rows * 16L + values * 2;
+    default:
+      return values * 8;
+    }
+  }
+
+  /**
+   * Returns the number of bytes needed to store a matrix in a single
+   * buffer, which cannot hold more than {@code Integer.MAX_VALUE} bytes.
+   *
+   * @param rows
+   * @param cols
+   * @param precision
+   * @return
+   * @throws IllegalArgumentException If the matrix is too large for a
+   *                                  buffer.
+   */
+  public static int bufferSize(int rows, int cols, Precision precision) {
+    long size = byteSize(rows, cols, precision);
+
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("A " + rows + " x " + cols
+          + " matrix needs " + size + " bytes, which is too large for a "
+          + precision + " buffer.");
+    }
+
+    return (int) size;
+  }
+
+  /**
+   * Write the values of a matrix into a new little-endian buffer in the
+   * layout used in memory and in binary libraries.
+   *
+   * @param m
+   * @param precision
+   * @param direct Whether to allocate the buffer outside of the heap.
+   * @return The buffer, positioned at its start.
+   */
+  public static ByteBuffer encode(ReferenceMatrix m,
+      Precision precision,
+      boolean direct) {
+    int rows = m.getRows();
+    int cols = m.getCols();
+    int size = bufferSize(rows, cols, precision);
+
+    ByteBuffer ret = (direct ? ByteBuffer.allocateDirect(size)
+        : ByteBuffer.allocate(size)).order(ByteOrder.LITTLE_ENDIAN);
+
+    switch (precision) {
+    case FLOAT:
+      for (int c = 0; c < cols; ++c) {
+        for (int r = 0; r < rows; ++r) {
+          ret.putFloat((float) m.getValue(r, c));
+        }
+      }
+      break;
+    case FIXED16:
+      encodeFixed(m, ret);
+      break;
+    default:
+      for (int c = 0; c < cols; ++c) {
+        for (int r = 0; r < rows; ++r) {
+          ret.putDouble(m.getValue(r, c));
+        }
+      }
+      break;
+    }
+
+    ret.flip();
+
+    return ret;
+  }
+
+  /**
+   * Write each row as codes spread evenly between its smallest and largest
+   * value, after the offset and scale of every row.
+   *
+   * @param m
+   * @param buffer
+   */
+  private static void encodeFixed(ReferenceMatrix m, ByteBuffer buffer) {
+    int rows = m.getRows();
+    int cols = m.getCols();
+
+    double[] offsets = new double[rows];
+    double[] scales = new double[rows];
+
+    for (int r = 0; r < rows; ++r) {
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+
+      for (int c = 0; c < cols; ++c) {
+        double v = m.getValue(r, c);
+
+        if (!Double.isNaN(v)) {
+          min = Math.min(min, v);
+          max = Math.max(max, v);
+        }
+      }
+
+      if (min <= max) {
+        offsets[r] = min;
+        scales[r] = (max - min) / MAX_CODE;
+      }
+
+      buffer.putDouble(r * 8, offsets[r]);
+      buffer.putDouble((rows + r) * 8, scales[r]);
+    }
+
+    buffer.position(rows * 16);
+
+    for (int c = 0; c < cols; ++c) {
+      for (int r = 0; r < rows; ++r) {
+        double v = m.getValue(r, c);
+
+        int code;
+
+        if (Double.isNaN(v)) {
+          code = MISSING_CODE;
+        } else if (scales[r] == 0) {
+          code = 0;
+        } else {
+          code = (int) Math.round((v - offsets[r]) / scales[r]);
+        }
+
+        buffer.putShort((short) code);
+      }
+    }
+  }
+
+  /**
+   * Read values from a buffer laid out one column after another. The buffer
+   * is used as is, so a mapped buffer gives a mapped matrix.
+   *
+   * @param buffer A little-endian buffer starting at the first value.
+   * @param rows
+   * @param cols
+   * @param precision
+   * @param storage
+   * @return
+   */
+  static ReferenceMatrix wrap(ByteBuffer buffer, int rows, int cols,
+      Precision precision, Storage storage) {
+    return new BufferMatrix(buffer, rows, cols, precision, storage);
+  }
+
+  /**
+   * Copy the columns of one or more matrices with the same number of rows
+   * into a single snapshot for training or scoring.
+   *
+   * @param matrices
+   * @return
+   */
+  public static PackedMatrix pack(ReferenceMatrix... matrices) {
+    int cols = 0;
+
+    for (ReferenceMatrix m : matrices) {
+      cols += m.getCols();
+    }
+
+    PackedMatrix ret = new PackedMatrix(matrices[0].getRows(), cols);
+
+    int c = 0;
+
+    for (ReferenceMatrix m : matrices) {
+      for (int i = 0; i < m.getCols(); ++i) {
+        m.copyColumn(i, ret.getData(), ret.getOffset(c++));
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the storage used for new classifiers.
+   *
+   * @return
+   */
+  public static Storage getDefaultStorage() {
+    return sStorage;
+  }
+
+  public static void setDefaultStorage(Storage storage) {
+    sStorage = storage;
+  }
+
+  /**
+   * Returns the precision used for new classifiers.
+   *
+   * @return
+   */
+  public static Precision getDefaultPrecision() {
+    return sPrecision;
+  }
+
+  public static void setDefaultPrecision(Precision precision) {
+    sPrecision = precision;
+  }
+
+  private static <T extends Enum<T>> T parse(Class<T> type,
+      String value,
+      T defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Enum.valueOf(type, value.trim().toUpperCase().replace('-', '_'));
+    } catch (IllegalArgumentException e) {
+      return defaultValue;
+    }
+  }
+}
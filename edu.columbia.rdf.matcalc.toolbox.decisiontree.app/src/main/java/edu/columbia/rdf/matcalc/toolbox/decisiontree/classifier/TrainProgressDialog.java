@@ -0,0 +1,89 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+import javax.swing.Box;
+import javax.swing.JProgressBar;
+
+import org.jebtk.modern.UI;
+import org.jebtk.modern.dialog.ModernDialogTaskWindow;
+import org.jebtk.modern.event.ModernClickEvent;
+import org.jebtk.modern.panel.VBox;
+import org.jebtk.modern.text.ModernAutoSizeLabel;
+
+import edu.columbia.rdf.matcalc.MainMatCalcWindow;
+
+/**
+ * Shows that a classifier is being trained in the background and lets the
+ * user cancel it. The trainers cannot be stopped part way through, so a
+ * cancelled classifier is discarded once it has been trained.
+ *
+ * @author Antony Holmes
+ */
+public class TrainProgressDialog extends ModernDialogTaskWindow {
+  private static final long serialVersionUID = 1L;
+
+  private final String mName;
+
+  private volatile boolean mCancelled = false;
+
+  public TrainProgressDialog(MainMatCalcWindow parent, String name) {
+    super(parent);
+
+    mName = name;
+
+    setTitle("Add Decision Tree");
+
+    setup();
+
+    createUi();
+  }
+
+  private void setup() {
+    mOkButton.setEnabled(false);
+
+    addWindowListener(new WindowAdapter() {
+      @Override
+      public void windowClosing(WindowEvent e) {
+        mCancelled = true;
+      }
+    });
+
+    setSize(480, 200);
+
+    UI.centerWindowToScreen(this);
+  }
+
+  private final void createUi() {
+    Box box = VBox.create();
+
+    // The trainers do not report how far they have got
+    JProgressBar progressBar = new JProgressBar();
+    progressBar.setIndeterminate(true);
+
+    box.add(new ModernAutoSizeLabel("Training " + mName + "..."));
+    box.add(UI.createVGap(10));
+    box.add(progressBar);
+
+    setCard(box);
+  }
+
+  /**
+   * Returns true if the user cancelled training. Can be called from any
+   * thread.
+   */
+  @Override
+  public boolean isCancelled() {
+    return mCancelled;
+  }
+
+  @Override
+  public final void clicked(ModernClickEvent e) {
+    if (e.getMessage().equals(UI.BUTTON_CANCEL)) {
+      mCancelled = true;
+    }
+
+    super.clicked(e);
+  }
+}
@@ -0,0 +1,53 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+import org.jebtk.modern.ModernWidget;
+import org.jebtk.modern.UI;
+import org.jebtk.modern.combobox.ModernComboBox;
+
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.C45;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.GradientBoostedTrees;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.RandomForest;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.Trainer;
+
+/**
+ * Choose how a classifier's model is trained.
+ *
+ * @author Antony Holmes
+ */
+public class TrainingModeCombo extends ModernComboBox {
+  private static final long serialVersionUID = 1L;
+
+  public TrainingModeCombo() {
+    addScrollMenuItem("Decision tree");
+    addScrollMenuItem("Decision tree (histogram, faster)");
+    addScrollMenuItem("Random forest");
+    addScrollMenuItem("Gradient boosted trees");
+
+    setSelectedIndex(0);
+
+    UI.setSize(this, 300, ModernWidget.WIDGET_HEIGHT);
+  }
+
+  /**
+   * Returns a trainer for the selected algorithm.
+   *
+   * @param trees The number of trees if the algorithm is an ensemble. For
+   *          boosting this is the maximum number of rounds.
+   * @return
+   */
+  public Trainer getTrainer(int trees) {
+    switch (getSelectedIndex()) {
+    case 1:
+      return C45.trainer(C45.Mode.HISTOGRAM);
+    case 2:
+      return RandomForest.trainer(trees, C45.Mode.PRESORTED, 0);
+    case 3:
+      return GradientBoostedTrees.trainer(trees,
+          GradientBoostedTrees.DEFAULT_LEARNING_RATE,
+          GradientBoostedTrees.DEFAULT_DEPTH,
+          0);
+    default:
+      return C45.trainer(C45.Mode.PRESORTED);
+    }
+  }
+}
@@ -0,0 +1,397 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts and times training, classification and library reads and writes.
+ * Metrics are off unless the {@value #ENABLED_PROPERTY} system property is
+ * true or they are enabled through JMX. While off, timing a call costs a
+ * volatile read. Recording never allocates, so it can be used on hot paths,
+ * but it is done once per call rather than once per sample.
+ *
+ * A call is timed by taking {@link #start()} before it and passing the
+ * result to the matching method afterwards:
+ *
+ * <pre>
+ * long start = DecisionTreeMetrics.getInstance().start();
+ * ...
+ * DecisionTreeMetrics.getInstance().classified(start, samples);
+ * </pre>
+ *
+ * @author Antony Holmes
+ */
+public class DecisionTreeMetrics implements DecisionTreeMetricsMBean {
+
+  /**
+   * The system property that turns the metrics on.
+   */
+  public static final String ENABLED_PROPERTY = "decisiontree.metrics";
+
+  /**
+   * The system property holding how often, in seconds, the metrics are
+   * logged.
+   */
+  public static final String LOG_INTERVAL_PROPERTY =
+      "decisiontree.metrics.log";
+
+  /**
+   * The name the metrics are registered under with JMX.
+   */
+  public static final String OBJECT_NAME =
+      "edu.columbia.rdf.matcalc.toolbox.decisiontree:type=Metrics";
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(DecisionTreeMetrics.class);
+
+  private static final double NANOS_PER_MS = 1000000.0;
+
+  private static final DecisionTreeMetrics INSTANCE =
+      new DecisionTreeMetrics();
+
+  /**
+   * The number, total duration and total size of one kind of call.
+   */
+  private static class Calls {
+    private final LongAdder mCount = new LongAdder();
+    private final LongAdder mNanos = new LongAdder();
+    private final LongAdder mAmount = new LongAdder();
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+
+    public void record(long start, long amount) {
+      long nanos = System.nanoTime() - start;
+
+      mCount.increment();
+      mNanos.add(nanos);
+      mAmount.add(amount);
+      mHistogram.record(nanos);
+    }
+
+    public void reset() {
+      mCount.reset();
+      mNanos.reset();
+      mAmount.reset();
+      mHistogram.reset();
+    }
+  }
+
+  public static DecisionTreeMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  private volatile boolean mEnabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+  private final Calls mTraining = new Calls();
+  private final Calls mClassify = new Calls();
+  private final Calls mLoad = new Calls();
+  private final Calls mSave = new Calls();
+
+  private volatile LongSupplier mRegistrySize = () -> 0;
+  private volatile LongSupplier mRegistryBytes = () -> 0;
+
+  private boolean mRegistered;
+  private long mLogInterval;
+  private ScheduledExecutorService mLogExecutor;
+  private ScheduledFuture<?> mLogTask;
+
+  private DecisionTreeMetrics() {
+    // Do nothing
+  }
+
+  /**
+   * Register the metrics with the platform MBean server and start logging
+   * them if the {@value #LOG_INTERVAL_PROPERTY} system property is set. Only
+   * the first call has any effect.
+   */
+  public synchronized void register() {
+    if (mRegistered) {
+      return;
+    }
+
+    mRegistered = true;
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    try {
+      server.registerMBean(this, new ObjectName(OBJECT_NAME));
+    } catch (JMException e) {
+      LOG.warn("The decision tree metrics could not be registered.", e);
+    }
+
+    setLogIntervalSeconds(Long.getLong(LOG_INTERVAL_PROPERTY, 0));
+  }
+
+  /**
+   * Set where the size of the classifier registry and the memory it uses
+   * are read from.
+   *
+   * @param size
+   * @param bytes
+   */
+  public void setRegistry(LongSupplier size, LongSupplier bytes) {
+    mRegistrySize = size;
+    mRegistryBytes = bytes;
+  }
+
+  /**
+   * Returns the time a call starts, or 0 if metrics are off, in which case
+   * the call will not be recorded.
+   *
+   * @return
+   */
+  public long start() {
+    return mEnabled ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Record a model being trained.
+   *
+   * @param start
+   */
+  public void trained(long start) {
+    if (start != 0) {
+      mTraining.record(start, 0);
+    }
+  }
+
+  /**
+   * Record samples being classified in a single call.
+   *
+   * @param start
+   * @param samples
+   */
+  public void classified(long start, long samples) {
+    if (start != 0) {
+      mClassify.record(start, samples);
+    }
+  }
+
+  /**
+   * Record a library, or part of one, being read.
+   *
+   * @param start
+   * @param bytes
+   */
+  public void loaded(long start, long bytes) {
+    if (start != 0) {
+      mLoad.record(start, bytes);
+    }
+  }
+
+  /**
+   * Record a library being written.
+   *
+   * @param start
+   * @param bytes
+   */
+  public void saved(long start, long bytes) {
+    if (start != 0) {
+      mSave.record(start, bytes);
+    }
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return mEnabled;
+  }
+
+  @Override
+  public void setEnabled(boolean enabled) {
+    mEnabled = enabled;
+  }
+
+  @Override
+  public synchronized long getLogIntervalSeconds() {
+    return mLogInterval;
+  }
+
+  @Override
+  public synchronized void setLogIntervalSeconds(long seconds) {
+    if (mLogTask != null) {
+      mLogTask.cancel(false);
+      mLogTask = null;
+    }
+
+    mLogInterval = Math.max(0, seconds);
+
+    if (mLogInterval == 0) {
+      return;
+    }
+
+    if (mLogExecutor == null) {
+      mLogExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "decisiontree-metrics");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+
+    mLogTask = mLogExecutor.scheduleAtFixedRate(this::log,
+        mLogInterval,
+        mLogInterval,
+        TimeUnit.SECONDS);
+  }
+
+  /**
+   * Write the metrics to the log on a single line.
+   */
+  public void log() {
+    if (!mEnabled) {
+      return;
+    }
+
+    LOG.info("Trained {} in {} ms; classified {} samples in {} calls at {}/s,"
+        + " p50 {} ms, p99 {} ms; loaded {} bytes in {} ms;"
+        + " saved {} bytes in {} ms; {} classifiers using {} bytes",
+        getTrainingCount(),
+        Math.round(getTrainingTimeMs()),
+        getSamplesClassified(),
+        getClassifyCount(),
+        Math.round(getSamplesPerSecond()),
+        getClassifyP50Ms(),
+        getClassifyP99Ms(),
+        getLoadBytes(),
+        Math.round(getLoadTimeMs()),
+        getSaveBytes(),
+        Math.round(getSaveTimeMs()),
+        getRegistrySize(),
+        getRegistryBytes());
+  }
+
+  @Override
+  public long getTrainingCount() {
+    return mTraining.mCount.sum();
+  }
+
+  @Override
+  public double getTrainingTimeMs() {
+    return mTraining.mNanos.sum() / NANOS_PER_MS;
+  }
+
+  @Override
+  public double getTrainingP50Ms() {
+    return mTraining.mHistogram.getPercentile(0.5) / NANOS_PER_MS;
+  }
+
+  @Override
+  public double getTrainingP99Ms() {
+    return mTraining.mHistogram.getPercentile(0.99) / NANOS_PER_MS;
+  }
+
+  @Override
+  public double getTrainingMaxMs() {
+    return mTraining.mHistogram.getMax() / NANOS_PER_MS;
+  }
+
+  @Override
+  public long[] getTrainingHistogram() {
+    return mTraining.mHistogram.getCounts();
+  }
+
+  @Override
+  public long getClassifyCount() {
+    return mClassify.mCount.sum();
+  }
+
+  @Override
+  public long getSamplesClassified() {
+    return mClassify.mAmount.sum();
+  }
+
+  @Override
+  public double getClassifyTimeMs() {
+    return mClassify.mNanos.sum() / NANOS_PER_MS;
+  }
+
+  @Override
+  public double getSamplesPerSecond() {
+    long nanos = mClassify.mNanos.sum();
+
+    return nanos > 0 ? mClassify.mAmount.sum() * 1e9 / nanos : 0;
+  }
+
+  @Override
+  public double getClassifyP50Ms() {
+    return mClassify.mHistogram.getPercentile(0.5) / NANOS_PER_MS;
+  }
+
+  @Override
+  public double getClassifyP90Ms() {
+    return mClassify.mHistogram.getPercentile(0.9) / NANOS_PER_MS;
+  }
+
+  @Override
+  public double getClassifyP99Ms() {
+    return mClassify.mHistogram.getPercentile(0.99) / NANOS_PER_MS;
+  }
+
+  @Override
+  public double getClassifyMaxMs() {
+    return mClassify.mHistogram.getMax() / NANOS_PER_MS;
+  }
+
+  @Override
+  public long[] getClassifyHistogram() {
+    return mClassify.mHistogram.getCounts();
+  }
+
+  @Override
+  public long getLoadCount() {
+    return mLoad.mCount.sum();
+  }
+
+  @Override
+  public long getLoadBytes() {
+    return mLoad.mAmount.sum();
+  }
+
+  @Override
+  public double getLoadTimeMs() {
+    return mLoad.mNanos.sum() / NANOS_PER_MS;
+  }
+
+  @Override
+  public long getSaveCount() {
+    return mSave.mCount.sum();
+  }
+
+  @Override
+  public long getSaveBytes() {
+    return mSave.mAmount.sum();
+  }
+
+  @Override
+  public double getSaveTimeMs() {
+    return mSave.mNanos.sum() / NANOS_PER_MS;
+  }
+
+  @Override
+  public long getRegistrySize() {
+    return mRegistrySize.getAsLong();
+  }
+
+  @Override
+  public long getRegistryBytes() {
+    return mRegistryBytes.getAsLong();
+  }
+
+  @Override
+  public void reset() {
+    mTraining.reset();
+    mClassify.reset();
+    mLoad.reset();
+    mSave.reset();
+  }
+}
@@ -0,0 +1,87 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.metrics;
+
+/**
+ * The JMX view of {@link DecisionTreeMetrics}. Times are in milliseconds
+ * and histograms hold the number of calls per power of two nanoseconds.
+ *
+ * @author Antony Holmes
+ */
+public interface DecisionTreeMetricsMBean {
+  boolean isEnabled();
+
+  void setEnabled(boolean enabled);
+
+  /**
+   * Returns how often the metrics are logged, or 0 if they are not.
+   *
+   * @return
+   */
+  long getLogIntervalSeconds();
+
+  void setLogIntervalSeconds(long seconds);
+
+  long getTrainingCount();
+
+  double getTrainingTimeMs();
+
+  double getTrainingP50Ms();
+
+  double getTrainingP99Ms();
+
+  double getTrainingMaxMs();
+
+  long[] getTrainingHistogram();
+
+  long getClassifyCount();
+
+  long getSamplesClassified();
+
+  double getClassifyTimeMs();
+
+  /**
+   * Returns the number of samples classified per second of time spent
+   * classifying.
+   *
+   * @return
+   */
+  double getSamplesPerSecond();
+
+  double getClassifyP50Ms();
+
+  double getClassifyP90Ms();
+
+  double getClassifyP99Ms();
+
+  double getClassifyMaxMs();
+
+  long[] getClassifyHistogram();
+
+  long getLoadCount();
+
+  long getLoadBytes();
+
+  double getLoadTimeMs();
+
+  long getSaveCount();
+
+  long getSaveBytes();
+
+  double getSaveTimeMs();
+
+  /**
+   * Returns the number of classifiers in the registry.
+   *
+   * @return
+   */
+  long getRegistrySize();
+
+  /**
+   * Returns an estimate of the memory held by the reference data of the
+   * classifiers in the registry that have been read.
+   *
+   * @return
+   */
+  long getRegistryBytes();
+
+  void reset();
+}
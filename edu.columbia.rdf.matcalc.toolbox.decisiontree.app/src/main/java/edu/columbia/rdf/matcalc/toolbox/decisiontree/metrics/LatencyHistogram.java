@@ -0,0 +1,119 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds with one bucket per power of two,
+ * so recording a duration is a couple of atomic increments and never
+ * allocates. Percentiles are reported as the upper bound of the bucket they
+ * fall in, so they are accurate to within a factor of two.
+ *
+ * @author Antony Holmes
+ */
+public class LatencyHistogram {
+
+  /**
+   * Bucket b holds durations of less than 2^b nanoseconds that were not
+   * counted by bucket b - 1.
+   */
+  public static final int BUCKETS = 64;
+
+  private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong mMax = new AtomicLong();
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+
+    mCounts.incrementAndGet(bucket(nanos));
+
+    long max = mMax.get();
+
+    while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+      max = mMax.get();
+    }
+  }
+
+  /**
+   * Returns the number of durations in each bucket.
+   *
+   * @return
+   */
+  public long[] getCounts() {
+    long[] ret = new long[BUCKETS];
+
+    for (int b = 0; b < BUCKETS; ++b) {
+      ret[b] = mCounts.get(b);
+    }
+
+    return ret;
+  }
+
+  public long getCount() {
+    long ret = 0;
+
+    for (int b = 0; b < BUCKETS; ++b) {
+      ret += mCounts.get(b);
+    }
+
+    return ret;
+  }
+
+  public long getMax() {
+    return mMax.get();
+  }
+
+  /**
+   * Returns the duration in nanoseconds that a fraction of the recorded
+   * durations do not exceed.
+   *
+   * @param p A fraction between 0 and 1.
+   * @return
+   */
+  public long getPercentile(double p) {
+    long[] counts = getCounts();
+
+    long total = 0;
+
+    for (long c : counts) {
+      total += c;
+    }
+
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(p * total));
+
+    long seen = 0;
+
+    for (int b = 0; b < BUCKETS; ++b) {
+      seen += counts[b];
+
+      if (seen >= rank) {
+        // The largest duration recorded is a tighter bound for the top bucket
+        return Math.min(upperBound(b), getMax());
+      }
+    }
+
+    return getMax();
+  }
+
+  public void reset() {
+    for (int b = 0; b < BUCKETS; ++b) {
+      mCounts.set(b, 0);
+    }
+
+    mMax.set(0);
+  }
+
+  private static int bucket(long nanos) {
+    return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+  }
+
+  private static long upperBound(int bucket) {
+    return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+  }
+}
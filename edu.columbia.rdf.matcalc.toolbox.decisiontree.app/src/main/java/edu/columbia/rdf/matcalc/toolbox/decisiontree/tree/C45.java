@@ -0,0 +1,849 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds binary decision trees on continuous features using the C4.5 gain
+ * ratio criterion. Each node is split on the feature and threshold with the
+ * highest gain ratio. Candidate thresholds lie midway between consecutive
+ * distinct values of a feature. Ties are resolved in favour of the lowest
+ * feature index and then the lowest threshold so training is deterministic.
+ *
+ * The features of large nodes are evaluated in parallel on the common
+ * fork/join pool. Because the best split is chosen with the same tie
+ * breaking rule however the features are divided up, the trees are identical
+ * to those built on a single thread.
+ *
+ * In {@link Mode#PRESORTED} mode the samples are sorted by each feature once
+ * up front. The samples of a node then occupy the same range of every
+ * feature's sorted order, so a node is evaluated with a linear scan per
+ * feature and its children are formed by stably partitioning the range.
+ *
+ * In {@link Mode#HISTOGRAM} mode training is delegated to
+ * {@link HistogramC45}, which trades exact thresholds for speed on large
+ * cohorts.
+ *
+ * @author Antony Holmes
+ */
+public class C45 {
+
+  /**
+   * How candidate thresholds are found.
+   */
+  public enum Mode {
+    /**
+     * Sort the samples in a node by each feature at every node.
+     */
+    EXACT,
+
+    /**
+     * Sort the samples by each feature once and partition the sorted orders
+     * as the tree grows. Produces the same trees as EXACT at the cost of an
+     * int per sample per feature.
+     */
+    PRESORTED,
+
+    /**
+     * Quantize each feature into at most {@link Quantizer#MAX_BINS} bins and
+     * find splits from per node class histograms. Thresholds are limited to
+     * the bin edges, so the trees are approximate.
+     */
+    HISTOGRAM
+  }
+
+  /**
+   * The minimum number of samples that must go down each branch of a split.
+   */
+  public static final int MIN_SAMPLES = 2;
+
+  /**
+   * Nodes where samples x features is smaller than this are evaluated on
+   * the calling thread.
+   */
+  public static final long PARALLEL_THRESHOLD = 1 << 16;
+
+  /**
+   * The maximum number of features evaluated by a single task.
+   */
+  public static final int FEATURE_CHUNK_SIZE = 256;
+
+  static final double EPSILON = 1e-10;
+
+  private static final double LOG2 = Math.log(2);
+
+  private final double[] mData;
+  private final int mFeatureCount;
+
+  /**
+   * The offset in mData of each training sample.
+   */
+  private final int[] mOffsets;
+  private final int[] mY;
+  private final int mLabelCount;
+
+  /**
+   * Nodes where samples x features is at least this are evaluated in
+   * parallel.
+   */
+  private final long mParallelThreshold;
+
+  /**
+   * In presorted mode, the samples ordered by their value of each feature.
+   * Null in exact mode.
+   */
+  private final int[][] mOrders;
+
+  /**
+   * In presorted mode, which side of the current split each sample goes.
+   */
+  private final boolean[] mGoesLeft;
+
+  /**
+   * The samples in a node. In exact mode they are listed explicitly. In
+   * presorted mode they are a range of every feature's sorted order.
+   */
+  private static class Node {
+    private final int[] mSamples;
+    private final int mStart;
+    private final int mEnd;
+    private final int[] mCounts;
+
+    public Node(int[] samples, int[] counts) {
+      mSamples = samples;
+      mStart = 0;
+      mEnd = samples.length;
+      mCounts = counts;
+    }
+
+    public Node(int start, int end, int[] counts) {
+      mSamples = null;
+      mStart = start;
+      mEnd = end;
+      mCounts = counts;
+    }
+
+    public int size() {
+      return mEnd - mStart;
+    }
+  }
+
+  /**
+   * A candidate split.
+   */
+  private static class Split {
+    private final int mFeature;
+    private final double mThreshold;
+    private final double mRatio;
+
+    public Split(int feature, double threshold, double ratio) {
+      mFeature = feature;
+      mThreshold = threshold;
+      mRatio = ratio;
+    }
+
+    /**
+     * Returns the better of two splits, where s1 is from lower numbered
+     * features than s2 and so wins a tie.
+     *
+     * @param s1
+     * @param s2
+     * @return
+     */
+    public static Split best(Split s1, Split s2) {
+      if (s1 == null) {
+        return s2;
+      }
+
+      if (s2 == null) {
+        return s1;
+      }
+
+      return s2.mRatio > s1.mRatio ? s2 : s1;
+    }
+  }
+
+  /**
+   * Finds the best split over a range of features, dividing the range
+   * between tasks until it is small enough.
+   */
+  private class SplitTask extends RecursiveTask<Split> {
+    private static final long serialVersionUID = 1L;
+
+    private final Node mNode;
+    private final int mStart;
+    private final int mEnd;
+
+    public SplitTask(Node node, int start, int end) {
+      mNode = node;
+      mStart = start;
+      mEnd = end;
+    }
+
+    @Override
+    protected Split compute() {
+      if (mEnd - mStart <= FEATURE_CHUNK_SIZE) {
+        return findSplit(mNode, mStart, mEnd);
+      }
+
+      int mid = (mStart + mEnd) >>> 1;
+
+      SplitTask left = new SplitTask(mNode, mStart, mid);
+      left.fork();
+
+      Split right = new SplitTask(mNode, mid, mEnd).compute();
+
+      // Merge in feature order so the result does not depend on scheduling
+      return Split.best(left.join(), right);
+    }
+  }
+
+  private C45(PackedMatrix x, int[] columns, int[] y, int labelCount,
+      Mode mode, long parallelThreshold) {
+    mData = x.getData();
+    mFeatureCount = x.getRows();
+    mY = y;
+    mLabelCount = labelCount;
+    mParallelThreshold = parallelThreshold;
+
+    mOffsets = new int[columns.length];
+
+    for (int i = 0; i < columns.length; ++i) {
+      mOffsets[i] = x.getOffset(columns[i]);
+    }
+
+    if (mode == Mode.PRESORTED) {
+      mOrders = new int[mFeatureCount][];
+      mGoesLeft = new boolean[columns.length];
+
+      FeatureTask.run(mFeatureCount,
+          (long) columns.length * mFeatureCount,
+          (start, end) -> presort(start, end));
+    } else {
+      mOrders = null;
+      mGoesLeft = null;
+    }
+  }
+
+  /**
+   * Train a tree on every column of a snapshot.
+   *
+   * @param name The name of the tree.
+   * @param features The feature names.
+   * @param x The training values with one row per feature and one column
+   *          per sample.
+   * @param labels The label names.
+   * @param y The label index of each sample.
+   * @return
+   */
+  public static DecisionTree train(String name,
+      String[] features,
+      PackedMatrix x,
+      String[] labels,
+      int[] y) {
+    return train(name, features, x, labels, y, Mode.EXACT);
+  }
+
+  /**
+   * Train a tree on every column of a snapshot.
+   *
+   * @param name The name of the tree.
+   * @param features The feature names.
+   * @param x The training values with one row per feature and one column
+   *          per sample.
+   * @param labels The label names.
+   * @param y The label index of each sample.
+   * @param mode How candidate thresholds are found.
+   * @return
+   */
+  public static DecisionTree train(String name,
+      String[] features,
+      PackedMatrix x,
+      String[] labels,
+      int[] y,
+      Mode mode) {
+    return train(name, features, x, sequence(x.getCols()), labels, y, mode);
+  }
+
+  /**
+   * Train a tree on a subset of the columns of a snapshot. This allows a
+   * snapshot of a whole matrix to be shared between training and scoring.
+   *
+   * @param name The name of the tree.
+   * @param features The feature names.
+   * @param x The values with one row per feature and one column per sample.
+   * @param columns The columns of x to train on.
+   * @param labels The label names.
+   * @param y The label index of each training column.
+   * @return
+   */
+  public static DecisionTree train(String name,
+      String[] features,
+      PackedMatrix x,
+      int[] columns,
+      String[] labels,
+      int[] y) {
+    return train(name, features, x, columns, labels, y, Mode.EXACT);
+  }
+
+  /**
+   * Train a tree on a subset of the columns of a snapshot.
+   *
+   * @param name The name of the tree.
+   * @param features The feature names.
+   * @param x The values with one row per feature and one column per sample.
+   * @param columns The columns of x to train on.
+   * @param labels The label names.
+   * @param y The label index of each training column.
+   * @param mode How candidate thresholds are found.
+   * @return
+   */
+  public static DecisionTree train(String name,
+      String[] features,
+      PackedMatrix x,
+      int[] columns,
+      String[] labels,
+      int[] y,
+      Mode mode) {
+    return train(name,
+        features,
+        x,
+        columns,
+        labels,
+        y,
+        mode,
+        PARALLEL_THRESHOLD);
+  }
+
+  /**
+   * Train a tree, choosing which nodes have their features evaluated in
+   * parallel. The trees should not depend on the choice, which is how the
+   * parallel search is tested.
+   *
+   * @param name The name of the tree.
+   * @param features The feature names.
+   * @param x The values with one row per feature and one column per sample.
+   * @param columns The columns of x to train on.
+   * @param labels The label names.
+   * @param y The label index of each training column.
+   * @param mode How candidate thresholds are found.
+   * @param parallelThreshold Nodes where samples x features is at least
+   *          this are evaluated in parallel. Not used in histogram mode.
+   * @return
+   */
+  static DecisionTree train(String name,
+      String[] features,
+      PackedMatrix x,
+      int[] columns,
+      String[] labels,
+      int[] y,
+      Mode mode,
+      long parallelThreshold) {
+    if (mode == Mode.HISTOGRAM) {
+      return HistogramC45.train(name, features, x, columns, labels, y);
+    }
+
+    C45 c45 = new C45(x, columns, y, labels.length, mode, parallelThreshold);
+
+    TreeNode root = c45.build(c45.root());
+
+    return new DecisionTree(name, features, labels, root);
+  }
+
+  /**
+   * Returns a trainer that builds single trees.
+   *
+   * @param mode How candidate thresholds are found.
+   * @return
+   */
+  public static Trainer trainer(Mode mode) {
+    return (name, features, x, columns, labels, y) -> train(name,
+        features,
+        x,
+        columns,
+        labels,
+        y,
+        mode);
+  }
+
+  /**
+   * Returns the indices 0 to n - 1, for example to train on every column of
+   * a snapshot.
+   *
+   * @param n
+   * @return
+   */
+  public static int[] sequence(int n) {
+    int[] ret = new int[n];
+
+    for (int i = 0; i < n; ++i) {
+      ret[i] = i;
+    }
+
+    return ret;
+  }
+
+  private double value(int f, int s) {
+    return mData[mOffsets[s] + f];
+  }
+
+  /**
+   * Gather the values of a feature for a set of samples.
+   *
+   * @param f
+   * @param samples
+   * @param values
+   */
+  private void gather(int f, int[] samples, double[] values) {
+    for (int i = 0; i < samples.length; ++i) {
+      values[i] = mData[mOffsets[samples[i]] + f];
+    }
+  }
+
+  /**
+   * Sort all of the samples by each feature in a range.
+   *
+   * @param start
+   * @param end
+   */
+  private void presort(int start, int end) {
+    int n = mOffsets.length;
+
+    int[] samples = sequence(n);
+    double[] values = new double[n];
+    int[] buffer = new int[n];
+
+    for (int f = start; f < end; ++f) {
+      gather(f, samples, values);
+
+      int[] order = sequence(n);
+
+      // Stable, so tied values stay in sample order as they do in exact mode
+      sort(values, order, buffer);
+
+      mOrders[f] = order;
+    }
+  }
+
+  private Node root() {
+    int n = mOffsets.length;
+
+    int[] counts = new int[mLabelCount];
+
+    for (int s = 0; s < n; ++s) {
+      ++counts[mY[s]];
+    }
+
+    if (mOrders != null) {
+      return new Node(0, n, counts);
+    } else {
+      return new Node(sequence(n), counts);
+    }
+  }
+
+  private TreeNode build(Node node) {
+    int[] counts = node.mCounts;
+    int n = node.size();
+
+    int majority = majority(counts);
+
+    if (n < 2 * MIN_SAMPLES || counts[majority] == n) {
+      return TreeNode.leaf(majority);
+    }
+
+    Split best;
+
+    if ((long) n * mFeatureCount >= mParallelThreshold) {
+      best = ForkJoinPool.commonPool()
+          .invoke(new SplitTask(node, 0, mFeatureCount));
+    } else {
+      best = findSplit(node, 0, mFeatureCount);
+    }
+
+    if (best == null) {
+      return TreeNode.leaf(majority);
+    }
+
+    Node[] children = mOrders != null ? partitionPresorted(node, best)
+        : partition(node, best);
+
+    return TreeNode.split(best.mFeature,
+        best.mThreshold,
+        build(children[0]),
+        build(children[1]));
+  }
+
+  /**
+   * Split the samples of a node in exact mode.
+   *
+   * @param node
+   * @param best
+   * @return The left and right children.
+   */
+  private Node[] partition(Node node, Split best) {
+    int[] samples = node.mSamples;
+    int n = samples.length;
+    double[] values = new double[n];
+
+    gather(best.mFeature, samples, values);
+
+    int nl = 0;
+
+    for (int i = 0; i < n; ++i) {
+      if (values[i] <= best.mThreshold) {
+        ++nl;
+      }
+    }
+
+    int[] left = new int[nl];
+    int[] right = new int[n - nl];
+    int[] leftCounts = new int[mLabelCount];
+    int[] rightCounts = new int[mLabelCount];
+
+    int li = 0;
+    int ri = 0;
+
+    for (int i = 0; i < n; ++i) {
+      int s = samples[i];
+
+      if (values[i] <= best.mThreshold) {
+        left[li++] = s;
+        ++leftCounts[mY[s]];
+      } else {
+        right[ri++] = s;
+        ++rightCounts[mY[s]];
+      }
+    }
+
+    return new Node[] { new Node(left, leftCounts),
+        new Node(right, rightCounts) };
+  }
+
+  /**
+   * Split the samples of a node in presorted mode by stably partitioning the
+   * node's range of every feature's order in place. Each half stays sorted,
+   * so the children need no further sorting.
+   *
+   * @param node
+   * @param best
+   * @return The left and right children.
+   */
+  private Node[] partitionPresorted(Node node, Split best) {
+    int[] order = mOrders[best.mFeature];
+
+    int nl = 0;
+    int[] leftCounts = new int[mLabelCount];
+    int[] rightCounts = new int[mLabelCount];
+
+    for (int i = node.mStart; i < node.mEnd; ++i) {
+      int s = order[i];
+
+      boolean left = value(best.mFeature, s) <= best.mThreshold;
+
+      mGoesLeft[s] = left;
+
+      if (left) {
+        ++nl;
+        ++leftCounts[mY[s]];
+      } else {
+        ++rightCounts[mY[s]];
+      }
+    }
+
+    FeatureTask.run(mFeatureCount,
+        (long) node.size() * mFeatureCount,
+        (start, end) -> partition(node, start, end));
+
+    int mid = node.mStart + nl;
+
+    return new Node[] { new Node(node.mStart, mid, leftCounts),
+        new Node(mid, node.mEnd, rightCounts) };
+  }
+
+  /**
+   * Stably partition a node's range of the sorted orders of a range of
+   * features according to mGoesLeft.
+   *
+   * @param node
+   * @param start
+   * @param end
+   */
+  private void partition(Node node, int start, int end) {
+    int[] buffer = new int[node.size()];
+
+    for (int f = start; f < end; ++f) {
+      int[] order = mOrders[f];
+
+      int l = node.mStart;
+      int r = 0;
+
+      for (int i = node.mStart; i < node.mEnd; ++i) {
+        int s = order[i];
+
+        if (mGoesLeft[s]) {
+          order[l++] = s;
+        } else {
+          buffer[r++] = s;
+        }
+      }
+
+      System.arraycopy(buffer, 0, order, l, r);
+    }
+  }
+
+  /**
+   * Find the split with the highest gain ratio over a range of features.
+   *
+   * @param node The node to split.
+   * @param start The first feature.
+   * @param end One past the last feature.
+   * @return The best split or null if no split has a positive gain.
+   */
+  private Split findSplit(Node node, int start, int end) {
+    int n = node.size();
+    double parentEntropy = entropy(node.mCounts, n);
+
+    int[] leftCounts = new int[mLabelCount];
+    int[] rightCounts = new int[mLabelCount];
+
+    Split best = null;
+
+    if (mOrders != null) {
+      for (int f = start; f < end; ++f) {
+        best = Split.best(best,
+            scan(f,
+                mOrders[f],
+                node.mStart,
+                node.mEnd,
+                node.mCounts,
+                parentEntropy,
+                leftCounts,
+                rightCounts));
+      }
+
+      return best;
+    }
+
+    int[] samples = node.mSamples;
+
+    double[] values = new double[n];
+    int[] order = new int[n];
+    int[] buffer = new int[n];
+    int[] sorted = new int[n];
+
+    for (int f = start; f < end; ++f) {
+      // Sort the positions of the samples by their value
+      gather(f, samples, values);
+
+      for (int i = 0; i < n; ++i) {
+        order[i] = i;
+      }
+
+      sort(values, order, buffer);
+
+      for (int i = 0; i < n; ++i) {
+        sorted[i] = samples[order[i]];
+      }
+
+      best = Split.best(best,
+          scan(f,
+              sorted,
+              0,
+              n,
+              node.mCounts,
+              parentEntropy,
+              leftCounts,
+              rightCounts));
+    }
+
+    return best;
+  }
+
+  /**
+   * Find the best threshold of a feature with a single pass over samples
+   * sorted by their value.
+   *
+   * @param f The feature.
+   * @param sorted Samples sorted by their value of f.
+   * @param from The first sample in sorted.
+   * @param to One past the last sample in sorted.
+   * @param counts The number of samples with each label.
+   * @param parentEntropy The entropy of counts.
+   * @param leftCounts Work array.
+   * @param rightCounts Work array.
+   * @return The best split or null if no split has a positive gain.
+   */
+  private Split scan(int f,
+      int[] sorted,
+      int from,
+      int to,
+      int[] counts,
+      double parentEntropy,
+      int[] leftCounts,
+      int[] rightCounts) {
+    boolean found = false;
+    double bestThreshold = 0;
+    double bestRatio = 0;
+
+    int n = to - from;
+
+    for (int l = 0; l < mLabelCount; ++l) {
+      leftCounts[l] = 0;
+    }
+
+    for (int i = from; i < to - 1; ++i) {
+      ++leftCounts[mY[sorted[i]]];
+
+      double v = value(f, sorted[i]);
+      double next = value(f, sorted[i + 1]);
+
+      if (Double.isNaN(next)) {
+        // NaNs sort last and cannot be split on
+        break;
+      }
+
+      int nl = i - from + 1;
+      int nr = n - nl;
+
+      if (v == next || nl < MIN_SAMPLES || nr < MIN_SAMPLES) {
+        continue;
+      }
+
+      for (int l = 0; l < mLabelCount; ++l) {
+        rightCounts[l] = counts[l] - leftCounts[l];
+      }
+
+      double gain = parentEntropy - ((double) nl / n) * entropy(leftCounts, nl)
+          - ((double) nr / n) * entropy(rightCounts, nr);
+
+      if (gain <= EPSILON) {
+        continue;
+      }
+
+      double ratio = gain / splitInfo(nl, nr);
+
+      // A strict comparison keeps the first of any ties, which is the
+      // same rule Split.best() uses to merge features
+      if (!found || ratio > bestRatio) {
+        found = true;
+        bestThreshold = threshold(v, next);
+        bestRatio = ratio;
+      }
+    }
+
+    if (!found) {
+      return null;
+    }
+
+    return new Split(f, bestThreshold, bestRatio);
+  }
+
+  /**
+   * Returns the index of the most common label, favouring the lowest index
+   * in a tie.
+   *
+   * @param counts
+   * @return
+   */
+  static int majority(int[] counts) {
+    int ret = 0;
+
+    for (int l = 1; l < counts.length; ++l) {
+      if (counts[l] > counts[ret]) {
+        ret = l;
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns a threshold midway between two values that is guaranteed to
+   * separate them.
+   *
+   * @param v
+   * @param next
+   * @return
+   */
+  static double threshold(double v, double next) {
+    double t = v + (next - v) / 2;
+
+    return t < next ? t : v;
+  }
+
+  static double entropy(int[] counts, int n) {
+    double ret = 0;
+
+    for (int c : counts) {
+      if (c > 0) {
+        double p = (double) c / n;
+
+        ret -= p * log2(p);
+      }
+    }
+
+    return ret;
+  }
+
+  static double splitInfo(int nl, int nr) {
+    double n = nl + nr;
+    double pl = nl / n;
+    double pr = nr / n;
+
+    return -pl * log2(pl) - pr * log2(pr);
+  }
+
+  static double log2(double x) {
+    return Math.log(x) / LOG2;
+  }
+
+  /**
+   * Stable merge sort of indices by their value. NaN values are
+   * sorted last.
+   *
+   * @param values The values to sort by.
+   * @param order The indices into values to sort in place.
+   * @param buffer A work array at least as large as order.
+   */
+  static void sort(double[] values, int[] order, int[] buffer) {
+    int n = order.length;
+
+    int[] src = order;
+    int[] dest = buffer;
+
+    for (int width = 1; width < n; width *= 2) {
+      for (int lo = 0; lo < n; lo += 2 * width) {
+        int mid = Math.min(lo + width, n);
+        int hi = Math.min(lo + 2 * width, n);
+
+        int i = lo;
+        int j = mid;
+        int k = lo;
+
+        while (i < mid && j < hi) {
+          if (Double.compare(values[src[j]], values[src[i]]) < 0) {
+            dest[k++] = src[j++];
+          } else {
+            dest[k++] = src[i++];
+          }
+        }
+
+        while (i < mid) {
+          dest[k++] = src[i++];
+        }
+
+        while (j < hi) {
+          dest[k++] = src[j++];
+        }
+      }
+
+      int[] tmp = src;
+      src = dest;
+      dest = tmp;
+    }
+
+    if (src != order) {
+      System.arraycopy(src, 0, order, 0, n);
+    }
+  }
+}
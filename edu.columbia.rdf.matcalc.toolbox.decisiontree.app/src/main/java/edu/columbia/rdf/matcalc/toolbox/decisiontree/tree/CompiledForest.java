@@ -0,0 +1,202 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+/**
+ * The trees of an ensemble flattened into one set of parallel primitive
+ * arrays. Each tree is laid out as in {@link CompiledTree}, one after the
+ * other, so a sample is scored by every tree in a single loop without
+ * calling into separate tree objects.
+ *
+ * @author Antony Holmes
+ */
+public class CompiledForest {
+
+  /**
+   * The index of the root node of each tree.
+   */
+  private final int[] mRoots;
+  private final int[] mFeature;
+  private final double[] mThreshold;
+  private final int[] mLeft;
+  private final int[] mRight;
+  private final int[] mLabel;
+  private final int mLabelCount;
+
+  /**
+   * Each thread's buffer for counting votes when there are more than two
+   * labels, so that classifying a sample does not allocate.
+   */
+  private final ThreadLocal<int[]> mVotes;
+
+  private CompiledForest(int[] roots, int[] feature, double[] threshold,
+      int[] left, int[] right, int[] label, int labelCount) {
+    mRoots = roots;
+    mFeature = feature;
+    mThreshold = threshold;
+    mLeft = left;
+    mRight = right;
+    mLabel = label;
+    mLabelCount = labelCount;
+    mVotes = ThreadLocal.withInitial(() -> new int[labelCount]);
+  }
+
+  public int getTreeCount() {
+    return mRoots.length;
+  }
+
+  /**
+   * Count the votes of the trees for each label.
+   *
+   * @param data The array containing the sample.
+   * @param offset The index of the sample's first feature value in data.
+   * @param votes Receives the number of trees voting for each label.
+   */
+  public void vote(double[] data, int offset, int[] votes) {
+    for (int l = 0; l < mLabelCount; ++l) {
+      votes[l] = 0;
+    }
+
+    for (int root : mRoots) {
+      int n = root;
+      int f;
+
+      while ((f = mFeature[n]) >= 0) {
+        n = data[offset + f] <= mThreshold[n] ? mLeft[n] : mRight[n];
+      }
+
+      ++votes[mLabel[n]];
+    }
+  }
+
+  /**
+   * Classify a sample by majority vote. Ties go to the lowest label index.
+   *
+   * @param data The array containing the sample.
+   * @param offset The index of the sample's first feature value in data.
+   * @return The index of the predicted label.
+   */
+  public int classify(double[] data, int offset) {
+    if (mLabelCount == 2) {
+      return classifyBinary(data, offset);
+    }
+
+    return classify(data, offset, mVotes.get());
+  }
+
+  /**
+   * Classify a sample by majority vote, counting the votes in a buffer
+   * supplied by the caller. Ties go to the lowest label index.
+   *
+   * @param data The array containing the sample.
+   * @param offset The index of the sample's first feature value in data.
+   * @param votes Buffer with an element for each label.
+   * @return The index of the predicted label.
+   */
+  public int classify(double[] data, int offset, int[] votes) {
+    vote(data, offset, votes);
+
+    int ret = 0;
+
+    for (int l = 1; l < mLabelCount; ++l) {
+      if (votes[l] > votes[ret]) {
+        ret = l;
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Classify a sample when there are only two labels by counting the votes
+   * for the second one.
+   *
+   * @param data
+   * @param offset
+   * @return
+   */
+  private int classifyBinary(double[] data, int offset) {
+    int votes = 0;
+
+    for (int root : mRoots) {
+      int n = root;
+      int f;
+
+      while ((f = mFeature[n]) >= 0) {
+        n = data[offset + f] <= mThreshold[n] ? mLeft[n] : mRight[n];
+      }
+
+      votes += mLabel[n];
+    }
+
+    // Ties go to the first label
+    return votes > mRoots.length - votes ? 1 : 0;
+  }
+
+  /**
+   * Returns a copy of the forest with its feature indices mapped to new
+   * ones.
+   *
+   * @param map The new index of each feature.
+   * @return
+   */
+  public CompiledForest remap(int[] map) {
+    int[] feature = new int[mFeature.length];
+
+    for (int n = 0; n < feature.length; ++n) {
+      feature[n] = mFeature[n] < 0 ? -1 : map[mFeature[n]];
+    }
+
+    return new CompiledForest(mRoots, feature, mThreshold, mLeft, mRight,
+        mLabel, mLabelCount);
+  }
+
+  /**
+   * Concatenate compiled trees.
+   *
+   * @param trees
+   * @param labelCount The number of labels.
+   * @return
+   */
+  public static CompiledForest of(CompiledTree[] trees, int labelCount) {
+    int size = 0;
+
+    for (CompiledTree tree : trees) {
+      size += tree.getNodeCount();
+    }
+
+    int[] roots = new int[trees.length];
+    int[] feature = new int[size];
+    double[] threshold = new double[size];
+    int[] left = new int[size];
+    int[] right = new int[size];
+    int[] label = new int[size];
+
+    int base = 0;
+
+    for (int t = 0; t < trees.length; ++t) {
+      CompiledTree tree = trees[t];
+
+      roots[t] = base;
+
+      for (int n = 0; n < tree.getNodeCount(); ++n) {
+        int i = base + n;
+
+        feature[i] = tree.getFeature(n);
+        threshold[i] = tree.getThreshold(n);
+        label[i] = tree.getLabel(n);
+
+        if (tree.isLeaf(n)) {
+          left[i] = -1;
+          right[i] = -1;
+        } else {
+          left[i] = base + tree.getLeft(n);
+          right[i] = base + tree.getRight(n);
+        }
+      }
+
+      base += tree.getNodeCount();
+    }
+
+    return new CompiledForest(roots, feature, threshold, left, right, label,
+        labelCount);
+  }
+}
@@ -0,0 +1,470 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Immutable, flattened form of a decision tree used for inference. Nodes are
+ * stored in parallel primitive arrays in depth first order so that one child
+ * of each split, the near child, immediately follows it. Walking the tree
+ * therefore does not chase object references or allocate.
+ *
+ * By default the left child is the near child. A tree compiled with a
+ * {@link NodeProfile} instead makes the child more samples went to the near
+ * child, so the common paths through the tree are contiguous in memory and
+ * the branch taken at each split is usually the same one: continue to the
+ * next node.
+ *
+ * @author Antony Holmes
+ */
+public class CompiledTree {
+
+  /**
+   * The feature index of each node, or -1 if the node is a leaf.
+   */
+  private final int[] mFeature;
+  private final double[] mThreshold;
+
+  /**
+   * The child of each split that does not follow it, or -1 if the node is a
+   * leaf.
+   */
+  private final int[] mFar;
+
+  /**
+   * Whether the right child of each split is its near child.
+   */
+  private final boolean[] mSwapped;
+
+  /**
+   * The label index of each leaf, or -1 if the node is not a leaf.
+   */
+  private final int[] mLabel;
+
+  /**
+   * The depth first number of each node, which identifies it in a
+   * {@link NodeProfile} whatever the layout.
+   */
+  private final int[] mId;
+
+  private CompiledTree(int[] feature, double[] threshold, int[] far,
+      boolean[] swapped, int[] label, int[] id) {
+    mFeature = feature;
+    mThreshold = threshold;
+    mFar = far;
+    mSwapped = swapped;
+    mLabel = label;
+    mId = id;
+  }
+
+  /**
+   * Classify a sample.
+   *
+   * @param values The sample values indexed by feature.
+   * @return The index of the predicted label.
+   */
+  public int classify(double[] values) {
+    return classify(values, 0);
+  }
+
+  /**
+   * Classify a sample stored in a larger array.
+   *
+   * @param data The array containing the sample.
+   * @param offset The index of the sample's first feature value in data.
+   * @return The index of the predicted label.
+   */
+  public int classify(double[] data, int offset) {
+    return mLabel[walk(data, offset)];
+  }
+
+  /**
+   * Classify a sample and count the leaf it reaches.
+   *
+   * @param data The array containing the sample.
+   * @param offset The index of the sample's first feature value in data.
+   * @param profile
+   * @return The index of the predicted label.
+   */
+  public int classify(double[] data, int offset, NodeProfile profile) {
+    int n = walk(data, offset);
+
+    profile.hit(mId[n]);
+
+    return mLabel[n];
+  }
+
+  /**
+   * Returns the leaf a sample reaches.
+   *
+   * @param data
+   * @param offset
+   * @return
+   */
+  private int walk(double[] data, int offset) {
+    int n = 0;
+    int f;
+
+    while ((f = mFeature[n]) >= 0) {
+      // A sample goes left when its value is at most the threshold
+      n = (data[offset + f] <= mThreshold[n]) != mSwapped[n] ? n + 1
+          : mFar[n];
+    }
+
+    return n;
+  }
+
+  /**
+   * Classify every column of a snapshot in one pass.
+   *
+   * @param m The snapshot, with rows indexed by feature.
+   * @param labels Array at least as long as the number of columns that will
+   *          receive the label index of each column.
+   */
+  public void classify(PackedMatrix m, int[] labels) {
+    double[] data = m.getData();
+    int rows = m.getRows();
+
+    for (int c = 0, offset = 0; c < m.getCols(); ++c, offset += rows) {
+      labels[c] = classify(data, offset);
+    }
+  }
+
+  /**
+   * Classify every column of a snapshot and count the leaf each reaches.
+   * The counts are kept locally and added to the profile once at the end.
+   *
+   * @param m
+   * @param labels
+   * @param profile
+   */
+  public void classify(PackedMatrix m, int[] labels, NodeProfile profile) {
+    double[] data = m.getData();
+    int rows = m.getRows();
+    long[] hits = new long[mFeature.length];
+
+    for (int c = 0, offset = 0; c < m.getCols(); ++c, offset += rows) {
+      int n = walk(data, offset);
+
+      ++hits[mId[n]];
+
+      labels[c] = mLabel[n];
+    }
+
+    profile.add(hits);
+  }
+
+  /**
+   * Classify a quantized sample stored in a larger array. The thresholds of
+   * the tree must be bin indices, as returned by {@link #quantize(Quantizer)}.
+   *
+   * @param data The array containing the sample.
+   * @param offset The index of the sample's first feature bin in data.
+   * @return The index of the predicted label.
+   */
+  public int classify(byte[] data, int offset) {
+    int n = 0;
+    int f;
+
+    while ((f = mFeature[n]) >= 0) {
+      n = ((data[offset + f] & 0xFF) <= mThreshold[n]) != mSwapped[n] ? n + 1
+          : mFar[n];
+    }
+
+    return mLabel[n];
+  }
+
+  /**
+   * Classify every column of a quantized matrix. The thresholds of the tree
+   * must be bin indices.
+   *
+   * @param m The quantized matrix, with rows indexed by feature.
+   * @param labels Array that will receive the label index of each column.
+   */
+  public void classify(QuantizedMatrix m, int[] labels) {
+    byte[] data = m.getData();
+    int rows = m.getRows();
+
+    for (int c = 0, offset = 0; c < m.getCols(); ++c, offset += rows) {
+      labels[c] = classify(data, offset);
+    }
+  }
+
+  public int getNodeCount() {
+    return mFeature.length;
+  }
+
+  public boolean isLeaf(int node) {
+    return mFeature[node] < 0;
+  }
+
+  public int getFeature(int node) {
+    return mFeature[node];
+  }
+
+  public double getThreshold(int node) {
+    return mThreshold[node];
+  }
+
+  public int getLeft(int node) {
+    if (isLeaf(node)) {
+      return -1;
+    }
+
+    return mSwapped[node] ? mFar[node] : node + 1;
+  }
+
+  public int getRight(int node) {
+    if (isLeaf(node)) {
+      return -1;
+    }
+
+    return mSwapped[node] ? node + 1 : mFar[node];
+  }
+
+  /**
+   * Returns true if the right child of a split immediately follows it.
+   *
+   * @param node
+   * @return
+   */
+  public boolean isSwapped(int node) {
+    return mSwapped[node];
+  }
+
+  /**
+   * Returns the depth first number of a node, as used by
+   * {@link NodeProfile}.
+   *
+   * @param node
+   * @return
+   */
+  public int getId(int node) {
+    return mId[node];
+  }
+
+  public int getLabel(int node) {
+    return mLabel[node];
+  }
+
+  /**
+   * Returns a copy of the tree with its feature indices mapped to new ones,
+   * for example to the rows of a matrix with a different gene order.
+   *
+   * @param map The new index of each feature.
+   * @return
+   */
+  public CompiledTree remap(int[] map) {
+    int[] feature = new int[mFeature.length];
+
+    for (int n = 0; n < feature.length; ++n) {
+      feature[n] = mFeature[n] < 0 ? -1 : map[mFeature[n]];
+    }
+
+    return new CompiledTree(feature, mThreshold, mFar, mSwapped, mLabel, mId);
+  }
+
+  /**
+   * Returns a copy of the tree whose thresholds are the bins of a quantizer
+   * rather than values, so that it can classify quantized samples.
+   *
+   * @param quantizer
+   * @return
+   */
+  public CompiledTree quantize(Quantizer quantizer) {
+    double[] threshold = new double[mThreshold.length];
+
+    for (int n = 0; n < threshold.length; ++n) {
+      if (mFeature[n] >= 0) {
+        threshold[n] = quantizer.bin(mFeature[n], mThreshold[n]);
+      }
+    }
+
+    return new CompiledTree(mFeature, threshold, mFar, mSwapped, mLabel, mId);
+  }
+
+  /**
+   * Flatten a tree with the left child of each split following it.
+   *
+   * @param root The root of the tree.
+   * @return
+   */
+  public static CompiledTree compile(TreeNode root) {
+    return compile(root, null);
+  }
+
+  /**
+   * Flatten a tree so that at each split the child more samples went to
+   * follows it.
+   *
+   * @param root The root of the tree.
+   * @param hits The number of samples that reached each leaf, indexed as in
+   *          {@link NodeProfile}, or null to lay out the left children
+   *          first.
+   * @return
+   */
+  public static CompiledTree compile(TreeNode root, long[] hits) {
+    TreeNode[] nodes = number(root);
+
+    int size = nodes.length;
+
+    int[] subtree = subtreeSizes(nodes);
+    long[] weight = hits != null ? subtreeHits(nodes, hits) : new long[size];
+
+    int[] feature = new int[size];
+    double[] threshold = new double[size];
+    int[] far = new int[size];
+    boolean[] swapped = new boolean[size];
+    int[] label = new int[size];
+    int[] id = new int[size];
+
+    // Pre-order traversal visiting the near child first. The far child is
+    // only placed once the near subtree has been laid out, so its parent is
+    // revisited to record it.
+    Deque<Integer> ids = new ArrayDeque<Integer>();
+    Deque<Integer> parents = new ArrayDeque<Integer>();
+
+    ids.push(0);
+    parents.push(-1);
+
+    int n = 0;
+
+    while (!ids.isEmpty()) {
+      int i = ids.pop();
+      int parent = parents.pop();
+
+      if (parent >= 0) {
+        far[parent] = n;
+      }
+
+      TreeNode node = nodes[i];
+
+      id[n] = i;
+
+      if (node.isLeaf()) {
+        feature[n] = -1;
+        far[n] = -1;
+        label[n] = node.getLabel();
+      } else {
+        int left = i + 1;
+        int right = left + subtree[left];
+
+        feature[n] = node.getFeature();
+        threshold[n] = node.getThreshold();
+        label[n] = -1;
+
+        // Ties keep the left child first
+        swapped[n] = weight[right] > weight[left];
+
+        ids.push(swapped[n] ? left : right);
+        parents.push(n);
+
+        ids.push(swapped[n] ? right : left);
+        parents.push(-1);
+      }
+
+      ++n;
+    }
+
+    return new CompiledTree(feature, threshold, far, swapped, label, id);
+  }
+
+  /**
+   * Returns the number of samples that went through each node, given the
+   * number that reached each leaf.
+   *
+   * @param root
+   * @param hits The counts indexed as in {@link NodeProfile}. The counts of
+   *          splits are ignored.
+   * @return
+   */
+  public static long[] subtreeHits(TreeNode root, long[] hits) {
+    return subtreeHits(number(root), hits);
+  }
+
+  private static long[] subtreeHits(TreeNode[] nodes, long[] hits) {
+    int[] subtree = subtreeSizes(nodes);
+
+    long[] ret = new long[nodes.length];
+
+    // Children follow their parents, so visiting the nodes backwards
+    // totals the children first
+    for (int i = nodes.length - 1; i >= 0; --i) {
+      if (nodes[i].isLeaf()) {
+        ret[i] = hits[i];
+      } else {
+        ret[i] = ret[i + 1] + ret[i + 1 + subtree[i + 1]];
+      }
+    }
+
+    return ret;
+  }
+
+  private static int[] subtreeSizes(TreeNode[] nodes) {
+    int[] ret = new int[nodes.length];
+
+    for (int i = nodes.length - 1; i >= 0; --i) {
+      if (nodes[i].isLeaf()) {
+        ret[i] = 1;
+      } else {
+        ret[i] = 1 + ret[i + 1] + ret[i + 1 + ret[i + 1]];
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the nodes of a tree in depth first order, left child first.
+   *
+   * @param root
+   * @return
+   */
+  private static TreeNode[] number(TreeNode root) {
+    TreeNode[] ret = new TreeNode[size(root)];
+
+    Deque<TreeNode> stack = new ArrayDeque<TreeNode>();
+    stack.push(root);
+
+    int n = 0;
+
+    while (!stack.isEmpty()) {
+      TreeNode node = stack.pop();
+
+      ret[n++] = node;
+
+      if (!node.isLeaf()) {
+        stack.push(node.getRight());
+        stack.push(node.getLeft());
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the number of nodes in a tree.
+   *
+   * @param root
+   * @return
+   */
+  static int size(TreeNode root) {
+    int ret = 0;
+
+    Deque<TreeNode> stack = new ArrayDeque<TreeNode>();
+    stack.push(root);
+
+    while (!stack.isEmpty()) {
+      TreeNode node = stack.pop();
+
+      ++ret;
+
+      if (!node.isLeaf()) {
+        stack.push(node.getLeft());
+        stack.push(node.getRight());
+      }
+    }
+
+    return ret;
+  }
+}
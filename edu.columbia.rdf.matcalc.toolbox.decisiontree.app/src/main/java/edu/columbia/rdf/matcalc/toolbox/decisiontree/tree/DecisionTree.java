@@ -0,0 +1,419 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A trained binary decision tree. Features are referred to by their index in
+ * {@link #getFeatures()}, so a sample is classified from an array of values
+ * in the same order as the features the tree was trained on.
+ *
+ * Trees trained with {@link C45.Mode#HISTOGRAM} keep the {@link Quantizer}
+ * they were trained with. Their thresholds are bin edges, so classifying raw
+ * values gives the same result as classifying the quantized values.
+ *
+ * A tree can count the leaf each sample it classifies reaches, see
+ * {@link #setProfiling(boolean)}, and use the counts to lay out its compiled
+ * form so that the common paths through it are contiguous. The counts are
+ * saved with the tree, so the layout survives a reload.
+ *
+ * This class does not depend on any GUI code so that it can be used by the
+ * headless batch tools.
+ *
+ * @author Antony Holmes
+ */
+public class DecisionTree extends TreeModel {
+
+  /**
+   * The system property that turns on profiling of new trees.
+   */
+  public static final String PROFILE_PROPERTY = "decisiontree.profile";
+
+  private final TreeNode mRoot;
+  private final int[] mUsedFeatures;
+  private final int[] mProjection;
+  private final Quantizer mQuantizer;
+  private final NodeProfile mProfile;
+  private volatile boolean mProfiling = Boolean.getBoolean(PROFILE_PROPERTY);
+
+  /**
+   * The compiled forms are replaced when the tree is laid out again, which
+   * does not change how any sample is classified.
+   */
+  private volatile CompiledTree mCompiledTree;
+  private volatile CompiledTree mProjectedTree;
+  private volatile CompiledTree mQuantizedTree;
+
+  public DecisionTree(String name, String[] features, String[] labels,
+      TreeNode root) {
+    this(name, features, labels, root, null);
+  }
+
+  public DecisionTree(String name, String[] features, String[] labels,
+      TreeNode root, Quantizer quantizer) {
+    this(name, features, labels, root, quantizer, null);
+  }
+
+  /**
+   * Create a tree.
+   *
+   * @param name The name of the tree.
+   * @param features The feature names.
+   * @param labels The label names.
+   * @param root The root node.
+   * @param quantizer The quantizer the tree was trained with, or null if it
+   *          was trained on raw values.
+   * @param hits Previously recorded counts of the samples reaching each
+   *          node, as returned by {@link #getNodeHits()}, or null.
+   */
+  public DecisionTree(String name, String[] features, String[] labels,
+      TreeNode root, Quantizer quantizer, long[] hits) {
+    super(name, features, labels);
+
+    mRoot = root;
+    mUsedFeatures = findUsedFeatures();
+
+    mProjection = new int[features.length];
+
+    for (int i = 0; i < mUsedFeatures.length; ++i) {
+      mProjection[mUsedFeatures[i]] = i;
+    }
+
+    mQuantizer = quantizer;
+
+    // Counts from a damaged file must be rejected before they are used to
+    // lay out the tree
+    int nodes = CompiledTree.size(root);
+
+    if (hits != null && hits.length != nodes) {
+      throw new IllegalArgumentException("The tree " + name + " has " + nodes
+          + " nodes but " + hits.length + " counts.");
+    }
+
+    layout(hits);
+
+    mProfile = hits != null ? new NodeProfile(hits) : new NodeProfile(nodes);
+  }
+
+  /**
+   * Compile the tree.
+   *
+   * @param hits The counts of each node, or null to use the default layout.
+   */
+  private void layout(long[] hits) {
+    CompiledTree tree = CompiledTree.compile(mRoot, hits);
+
+    mProjectedTree = tree.remap(mProjection);
+    mQuantizedTree = mQuantizer != null ? tree.quantize(mQuantizer) : null;
+    mCompiledTree = tree;
+  }
+
+  /**
+   * Count the leaf each sample classified by the tree reaches. This adds a
+   * counter increment per sample so is off by default, unless the
+   * {@value #PROFILE_PROPERTY} system property is true.
+   *
+   * @param profiling
+   */
+  public void setProfiling(boolean profiling) {
+    mProfiling = profiling;
+  }
+
+  public boolean isProfiling() {
+    return mProfiling;
+  }
+
+  /**
+   * Returns the counts of the samples that reached each leaf.
+   *
+   * @return
+   */
+  public NodeProfile getProfile() {
+    return mProfile;
+  }
+
+  /**
+   * Returns the number of samples that went through each node, in depth
+   * first order with the left child first, or null if no samples have been
+   * counted.
+   *
+   * @return
+   */
+  public long[] getNodeHits() {
+    if (mProfile.isEmpty()) {
+      return null;
+    }
+
+    return CompiledTree.subtreeHits(mRoot, mProfile.getHits());
+  }
+
+  /**
+   * Lay out the compiled tree again so that at each split the child more of
+   * the samples counted so far went to comes first. Does nothing if no
+   * samples have been counted.
+   */
+  public synchronized void relayout() {
+    if (!mProfile.isEmpty()) {
+      layout(mProfile.getHits());
+    }
+  }
+
+  public TreeNode getRoot() {
+    return mRoot;
+  }
+
+  /**
+   * Returns the flattened form of the tree used for classification.
+   *
+   * @return
+   */
+  public CompiledTree getCompiledTree() {
+    return mCompiledTree;
+  }
+
+  /**
+   * Returns the compiled tree with its features renumbered by their
+   * position in {@link #getUsedFeatures()}. It classifies samples that
+   * contain only the values of the features the tree splits on.
+   *
+   * @return
+   */
+  public CompiledTree getProjectedTree() {
+    return mProjectedTree;
+  }
+
+  /**
+   * Returns the quantizer the tree was trained with, or null if it was
+   * trained on raw values.
+   *
+   * @return
+   */
+  public Quantizer getQuantizer() {
+    return mQuantizer;
+  }
+
+  @Override
+  public int classify(double[] data, int offset) {
+    if (mProfiling) {
+      return mCompiledTree.classify(data, offset, mProfile);
+    }
+
+    return mCompiledTree.classify(data, offset);
+  }
+
+  @Override
+  public int classifyProjected(double[] data, int offset) {
+    if (mProfiling) {
+      return mProjectedTree.classify(data, offset, mProfile);
+    }
+
+    return mProjectedTree.classify(data, offset);
+  }
+
+  @Override
+  public int[] classify(PackedMatrix m) {
+    int[] ret = new int[m.getCols()];
+
+    if (mProfiling) {
+      mCompiledTree.classify(m, ret, mProfile);
+    } else {
+      mCompiledTree.classify(m, ret);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Classify every column of a matrix quantized with
+   * {@link #getQuantizer()}.
+   *
+   * @param m
+   * @return The index of the predicted label of each column.
+   */
+  public int[] classify(QuantizedMatrix m) {
+    if (mQuantizedTree == null) {
+      throw new IllegalStateException(
+          "The tree " + getName() + " was not trained on quantized values.");
+    }
+
+    int[] ret = new int[m.getCols()];
+
+    mQuantizedTree.classify(m, ret);
+
+    return ret;
+  }
+
+  @Override
+  public int[] getUsedFeatures() {
+    return mUsedFeatures;
+  }
+
+  private int[] findUsedFeatures() {
+    boolean[] used = new boolean[getFeatures().length];
+
+    int n = 0;
+
+    Deque<TreeNode> stack = new ArrayDeque<TreeNode>();
+    stack.push(mRoot);
+
+    while (!stack.isEmpty()) {
+      TreeNode node = stack.pop();
+
+      if (!node.isLeaf()) {
+        if (!used[node.getFeature()]) {
+          used[node.getFeature()] = true;
+          ++n;
+        }
+
+        stack.push(node.getLeft());
+        stack.push(node.getRight());
+      }
+    }
+
+    int[] ret = new int[n];
+
+    int c = 0;
+
+    for (int i = 0; i < used.length; ++i) {
+      if (used[i]) {
+        ret[c++] = i;
+      }
+    }
+
+    return ret;
+  }
+
+  @Override
+  public Element toXml(Document doc) {
+    Element e = doc.createElement("tree");
+    e.setAttribute("name", getName());
+
+    for (String label : getLabels()) {
+      Element le = doc.createElement("label");
+      le.setAttribute("name", label);
+      e.appendChild(le);
+    }
+
+    if (mQuantizer != null) {
+      // Only the edges of the genes the tree splits on are needed to
+      // quantize samples for it
+      for (int f : mUsedFeatures) {
+        Element be = doc.createElement("bins");
+        be.setAttribute("feature", getFeatures()[f]);
+        be.setAttribute("edges", toString(mQuantizer.getEdges(f)));
+        e.appendChild(be);
+      }
+    }
+
+    e.appendChild(toXml(doc, mRoot, getNodeHits(), new int[1]));
+
+    return e;
+  }
+
+  /**
+   * Returns a node and its children as XML.
+   *
+   * @param doc
+   * @param node
+   * @param hits The sample counts of the nodes, or null.
+   * @param id Holds the depth first number of the node, which is advanced
+   *          past the node's subtree.
+   * @return
+   */
+  private Element toXml(Document doc, TreeNode node, long[] hits, int[] id) {
+    Element e;
+
+    if (node.isLeaf()) {
+      e = doc.createElement("leaf");
+      e.setAttribute("label", Integer.toString(node.getLabel()));
+    } else {
+      e = doc.createElement("node");
+      e.setAttribute("feature", getFeatures()[node.getFeature()]);
+      e.setAttribute("threshold", Double.toString(node.getThreshold()));
+    }
+
+    if (hits != null) {
+      e.setAttribute("hits", Long.toString(hits[id[0]]));
+    }
+
+    ++id[0];
+
+    if (!node.isLeaf()) {
+      e.appendChild(toXml(doc, node.getLeft(), hits, id));
+      e.appendChild(toXml(doc, node.getRight(), hits, id));
+    }
+
+    return e;
+  }
+
+  @Override
+  public void toXml(StreamingXmlWriter writer) throws XMLStreamException {
+    writer.startElement("tree");
+    writer.attribute("name", getName());
+
+    for (String label : getLabels()) {
+      writer.startElement("label");
+      writer.attribute("name", label);
+      writer.endElement();
+    }
+
+    if (mQuantizer != null) {
+      for (int f : mUsedFeatures) {
+        writer.startElement("bins");
+        writer.attribute("feature", getFeatures()[f]);
+        writer.attribute("edges", toString(mQuantizer.getEdges(f)));
+        writer.endElement();
+      }
+    }
+
+    toXml(writer, mRoot, getNodeHits(), new int[1]);
+
+    writer.endElement();
+  }
+
+  private void toXml(StreamingXmlWriter writer,
+      TreeNode node,
+      long[] hits,
+      int[] id) throws XMLStreamException {
+    if (node.isLeaf()) {
+      writer.startElement("leaf");
+      writer.attribute("label", Integer.toString(node.getLabel()));
+    } else {
+      writer.startElement("node");
+      writer.attribute("feature", getFeatures()[node.getFeature()]);
+      writer.attribute("threshold", Double.toString(node.getThreshold()));
+    }
+
+    if (hits != null) {
+      writer.attribute("hits", Long.toString(hits[id[0]]));
+    }
+
+    ++id[0];
+
+    if (!node.isLeaf()) {
+      toXml(writer, node.getLeft(), hits, id);
+      toXml(writer, node.getRight(), hits, id);
+    }
+
+    writer.endElement();
+  }
+
+  private static String toString(double[] values) {
+    StringBuilder buffer = new StringBuilder();
+
+    for (int i = 0; i < values.length; ++i) {
+      if (i > 0) {
+        buffer.append(',');
+      }
+
+      buffer.append(values[i]);
+    }
+
+    return buffer.toString();
+  }
+}
@@ -0,0 +1,181 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jebtk.math.matrix.DataFrame;
+
+/**
+ * Resolves the features a model splits on to the rows of a matrix by name,
+ * so that a model can be applied to a matrix that lists genes in a different
+ * order to the one it was trained on. The rows are resolved once and the
+ * binding is cached on the model, keyed on the identity of the matrix's row
+ * index and the annotation used for the names. A matrix with a new index
+ * therefore gets a new binding automatically.
+ *
+ * @author Antony Holmes
+ */
+public class FeatureBinding {
+  private final WeakReference<Object> mIndex;
+  private final String mAnnotation;
+  private final int mRowCount;
+
+  /**
+   * The matrix row of each model feature, or -1 if the model does not use
+   * the feature or the matrix does not contain it.
+   */
+  private final int[] mRows;
+  private final List<String> mMissing;
+
+  /**
+   * The matrix row of each feature the model splits on.
+   */
+  private final int[] mProjectedRows;
+
+  private FeatureBinding(TreeModel model, Object index, String annotation,
+      String[] rowNames) {
+    mIndex = new WeakReference<Object>(index);
+    mAnnotation = annotation;
+    mRowCount = rowNames.length;
+
+    String[] features = model.getFeatures();
+    int[] used = model.getUsedFeatures();
+
+    // Only look up the features the model actually uses
+    Map<String, Integer> wanted = new HashMap<String, Integer>(
+        used.length * 2);
+
+    for (int f : used) {
+      wanted.put(features[f], f);
+    }
+
+    mRows = new int[features.length];
+
+    for (int f = 0; f < mRows.length; ++f) {
+      mRows[f] = -1;
+    }
+
+    for (int r = 0; r < rowNames.length; ++r) {
+      Integer f = wanted.get(rowNames[r]);
+
+      // If a gene is duplicated, the first row wins
+      if (f != null && mRows[f] == -1) {
+        mRows[f] = r;
+      }
+    }
+
+    List<String> missing = new ArrayList<String>();
+
+    for (int f : used) {
+      if (mRows[f] == -1) {
+        missing.add(features[f]);
+      }
+    }
+
+    mMissing = Collections.unmodifiableList(missing);
+
+    mProjectedRows = new int[used.length];
+
+    for (int i = 0; i < used.length; ++i) {
+      mProjectedRows[i] = mRows[used[i]];
+    }
+  }
+
+  private boolean matches(Object index, String annotation, int rows) {
+    return mIndex.get() == index && rows == mRowCount
+        && (mAnnotation == null ? annotation == null
+            : mAnnotation.equals(annotation));
+  }
+
+  /**
+   * Returns the matrix row of a feature or -1 if it is not bound.
+   *
+   * @param feature
+   * @return
+   */
+  public int getRow(int feature) {
+    return mRows[feature];
+  }
+
+  /**
+   * Returns true if every feature the model splits on was found in the
+   * matrix.
+   *
+   * @return
+   */
+  public boolean isComplete() {
+    return mMissing.isEmpty();
+  }
+
+  /**
+   * Returns the names of the features the model splits on that are not in
+   * the matrix.
+   *
+   * @return
+   */
+  public List<String> getMissing() {
+    return mMissing;
+  }
+
+  /**
+   * Returns the matrix rows of the features the model splits on, in the
+   * order used by {@link TreeModel#classifyProjected(double[], int)}.
+   * Gathering just these rows of a column is enough to classify it.
+   *
+   * @return
+   */
+  public int[] getProjectedRows() {
+    return mProjectedRows;
+  }
+
+  /**
+   * Returns the binding of a model to a matrix, reusing the cached binding
+   * if the matrix's row index has not changed.
+   *
+   * @param model The model.
+   * @param m The matrix.
+   * @param annotation The row annotation holding the gene names. If null or
+   *          not present, the row names are used.
+   * @return
+   */
+  public static FeatureBinding bind(TreeModel model,
+      DataFrame m,
+      String annotation) {
+    Object index = m.getIndex();
+
+    FeatureBinding binding = model.getBinding();
+
+    if (binding != null && binding.matches(index, annotation, m.getRows())) {
+      return binding;
+    }
+
+    binding = new FeatureBinding(model, index, annotation,
+        getRowNames(m, annotation));
+
+    model.setBinding(binding);
+
+    return binding;
+  }
+
+  private static String[] getRowNames(DataFrame m, String annotation) {
+    String[] ret = null;
+
+    if (annotation != null) {
+      ret = m.getIndex().getText(annotation);
+    }
+
+    if (ret == null) {
+      ret = new String[m.getRows()];
+
+      for (int r = 0; r < ret.length; ++r) {
+        ret[r] = m.getRowName(r);
+      }
+    }
+
+    return ret;
+  }
+}
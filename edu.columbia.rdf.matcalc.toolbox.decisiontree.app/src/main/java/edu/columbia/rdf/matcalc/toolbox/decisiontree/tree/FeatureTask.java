@@ -0,0 +1,58 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs work that is independent for each feature over ranges of features on
+ * the common fork/join pool.
+ *
+ * @author Antony Holmes
+ */
+class FeatureTask extends RecursiveAction {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Work done on each feature in a range.
+   */
+  interface Range {
+    void run(int start, int end);
+  }
+
+  private final Range mAction;
+  private final int mStart;
+  private final int mEnd;
+
+  private FeatureTask(Range action, int start, int end) {
+    mAction = action;
+    mStart = start;
+    mEnd = end;
+  }
+
+  @Override
+  protected void compute() {
+    if (mEnd - mStart <= C45.FEATURE_CHUNK_SIZE) {
+      mAction.run(mStart, mEnd);
+    } else {
+      int mid = (mStart + mEnd) >>> 1;
+
+      invokeAll(new FeatureTask(mAction, mStart, mid),
+          new FeatureTask(mAction, mid, mEnd));
+    }
+  }
+
+  /**
+   * Run an action over all features, in parallel if there is enough work.
+   *
+   * @param features The number of features.
+   * @param work An estimate of the total work, such as samples x features.
+   * @param action
+   */
+  static void run(int features, long work, Range action) {
+    if (work >= C45.PARALLEL_THRESHOLD) {
+      ForkJoinPool.commonPool().invoke(new FeatureTask(action, 0, features));
+    } else {
+      action.run(0, features);
+    }
+  }
+}
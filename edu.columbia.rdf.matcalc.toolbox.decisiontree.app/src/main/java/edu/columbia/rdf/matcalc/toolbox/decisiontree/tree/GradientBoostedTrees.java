@@ -0,0 +1,328 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A gradient boosted ensemble of regression trees for two labels. The score
+ * of a sample is the base score plus the leaf value it reaches in each tree,
+ * and is the log odds of the second label. The learning rate is already
+ * applied to the leaf values.
+ *
+ * The trees are flattened into parallel primitive arrays so a sample is
+ * scored by every tree in one loop.
+ *
+ * @author Antony Holmes
+ */
+public class GradientBoostedTrees extends TreeModel {
+
+  /**
+   * The default maximum number of boosting rounds.
+   */
+  public static final int DEFAULT_ROUNDS = 100;
+
+  /**
+   * The default shrinkage applied to each tree.
+   */
+  public static final double DEFAULT_LEARNING_RATE = 0.1;
+
+  /**
+   * The default maximum depth of each tree.
+   */
+  public static final int DEFAULT_DEPTH = 3;
+
+  private final double mBaseScore;
+  private final TreeNode[] mTrees;
+  private final int[] mUsedFeatures;
+
+  /**
+   * The index of the root node of each tree.
+   */
+  private final int[] mRoots;
+  private final int[] mFeature;
+  private final int[] mProjectedFeature;
+  private final double[] mThreshold;
+  private final int[] mRight;
+  private final double[] mValue;
+
+  public GradientBoostedTrees(String name, String[] features, String[] labels,
+      double baseScore, TreeNode[] trees) {
+    super(name, features, labels);
+
+    if (labels.length != 2) {
+      throw new IllegalArgumentException(
+          "Boosted trees can only separate two labels.");
+    }
+
+    mBaseScore = baseScore;
+    mTrees = trees;
+
+    int size = 0;
+
+    for (TreeNode root : trees) {
+      size += size(root);
+    }
+
+    mRoots = new int[trees.length];
+    mFeature = new int[size];
+    mThreshold = new double[size];
+    mRight = new int[size];
+    mValue = new double[size];
+
+    boolean[] used = new boolean[features.length];
+
+    int n = 0;
+
+    for (int t = 0; t < trees.length; ++t) {
+      mRoots[t] = n;
+      n = flatten(trees[t], n, used);
+    }
+
+    int count = 0;
+
+    for (boolean u : used) {
+      if (u) {
+        ++count;
+      }
+    }
+
+    mUsedFeatures = new int[count];
+
+    int[] map = new int[features.length];
+
+    for (int f = 0, i = 0; f < used.length; ++f) {
+      if (used[f]) {
+        map[f] = i;
+        mUsedFeatures[i++] = f;
+      }
+    }
+
+    mProjectedFeature = new int[size];
+
+    for (int i = 0; i < size; ++i) {
+      mProjectedFeature[i] = mFeature[i] < 0 ? -1 : map[mFeature[i]];
+    }
+  }
+
+  /**
+   * Lay out a tree in depth first order starting at node n, so the left
+   * child of a node immediately follows it.
+   *
+   * @param node
+   * @param n
+   * @param used Set for each feature the tree splits on.
+   * @return The index after the last node of the tree.
+   */
+  private int flatten(TreeNode node, int n, boolean[] used) {
+    if (node.isLeaf()) {
+      mFeature[n] = -1;
+      mRight[n] = -1;
+      mValue[n] = node.getValue();
+
+      return n + 1;
+    }
+
+    mFeature[n] = node.getFeature();
+    mThreshold[n] = node.getThreshold();
+    used[node.getFeature()] = true;
+
+    int right = flatten(node.getLeft(), n + 1, used);
+
+    mRight[n] = right;
+
+    return flatten(node.getRight(), right, used);
+  }
+
+  private static int size(TreeNode root) {
+    int ret = 0;
+
+    Deque<TreeNode> stack = new ArrayDeque<TreeNode>();
+    stack.push(root);
+
+    while (!stack.isEmpty()) {
+      TreeNode node = stack.pop();
+
+      ++ret;
+
+      if (!node.isLeaf()) {
+        stack.push(node.getLeft());
+        stack.push(node.getRight());
+      }
+    }
+
+    return ret;
+  }
+
+  public double getBaseScore() {
+    return mBaseScore;
+  }
+
+  public TreeNode[] getTrees() {
+    return mTrees;
+  }
+
+  public int getTreeCount() {
+    return mTrees.length;
+  }
+
+  @Override
+  public int[] getUsedFeatures() {
+    return mUsedFeatures;
+  }
+
+  /**
+   * Returns the log odds of the second label.
+   *
+   * @param data The array containing the sample.
+   * @param offset The index of the sample's first feature value in data.
+   * @return
+   */
+  public double score(double[] data, int offset) {
+    return score(mFeature, data, offset);
+  }
+
+  private double score(int[] features, double[] data, int offset) {
+    double ret = mBaseScore;
+
+    for (int root : mRoots) {
+      int n = root;
+      int f;
+
+      while ((f = features[n]) >= 0) {
+        n = data[offset + f] <= mThreshold[n] ? n + 1 : mRight[n];
+      }
+
+      ret += mValue[n];
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the probability of the second label.
+   *
+   * @param values The sample values indexed by feature.
+   * @return
+   */
+  public double getProbability(double[] values) {
+    return 1 / (1 + Math.exp(-score(values, 0)));
+  }
+
+  @Override
+  public int classify(double[] data, int offset) {
+    return score(mFeature, data, offset) > 0 ? 1 : 0;
+  }
+
+  @Override
+  public int classifyProjected(double[] data, int offset) {
+    return score(mProjectedFeature, data, offset) > 0 ? 1 : 0;
+  }
+
+  @Override
+  public Element toXml(Document doc) {
+    Element e = doc.createElement("boosted");
+    e.setAttribute("name", getName());
+    e.setAttribute("base-score", Double.toString(mBaseScore));
+    e.setAttribute("size", Integer.toString(mTrees.length));
+
+    for (String label : getLabels()) {
+      Element le = doc.createElement("label");
+      le.setAttribute("name", label);
+      e.appendChild(le);
+    }
+
+    for (TreeNode root : mTrees) {
+      Element te = doc.createElement("tree");
+      te.appendChild(toXml(doc, root));
+      e.appendChild(te);
+    }
+
+    return e;
+  }
+
+  private Element toXml(Document doc, TreeNode node) {
+    Element e;
+
+    if (node.isLeaf()) {
+      e = doc.createElement("leaf");
+      e.setAttribute("value", Double.toString(node.getValue()));
+    } else {
+      e = doc.createElement("node");
+      e.setAttribute("feature", getFeatures()[node.getFeature()]);
+      e.setAttribute("threshold", Double.toString(node.getThreshold()));
+      e.appendChild(toXml(doc, node.getLeft()));
+      e.appendChild(toXml(doc, node.getRight()));
+    }
+
+    return e;
+  }
+
+  @Override
+  public void toXml(StreamingXmlWriter writer) throws XMLStreamException {
+    writer.startElement("boosted");
+    writer.attribute("name", getName());
+    writer.attribute("base-score", Double.toString(mBaseScore));
+    writer.attribute("size", Integer.toString(mTrees.length));
+
+    for (String label : getLabels()) {
+      writer.startElement("label");
+      writer.attribute("name", label);
+      writer.endElement();
+    }
+
+    for (TreeNode root : mTrees) {
+      writer.startElement("tree");
+      toXml(writer, root);
+      writer.endElement();
+    }
+
+    writer.endElement();
+  }
+
+  private void toXml(StreamingXmlWriter writer, TreeNode node)
+      throws XMLStreamException {
+    if (node.isLeaf()) {
+      writer.startElement("leaf");
+      writer.attribute("value", Double.toString(node.getValue()));
+    } else {
+      writer.startElement("node");
+      writer.attribute("feature", getFeatures()[node.getFeature()]);
+      writer.attribute("threshold", Double.toString(node.getThreshold()));
+      toXml(writer, node.getLeft());
+      toXml(writer, node.getRight());
+    }
+
+    writer.endElement();
+  }
+
+  /**
+   * Returns a trainer that builds boosted trees.
+   *
+   * @param rounds The maximum number of boosting rounds.
+   * @param learningRate The shrinkage applied to each tree.
+   * @param depth The maximum depth of each tree.
+   * @param seed The random seed used to choose the held out samples.
+   * @return
+   */
+  public static Trainer trainer(int rounds,
+      double learningRate,
+      int depth,
+      long seed) {
+    return (name, features, x, columns, labels, y) -> GradientBoosting.train(
+        name,
+        features,
+        x,
+        columns,
+        labels,
+        y,
+        rounds,
+        learningRate,
+        depth,
+        seed);
+  }
+}
@@ -0,0 +1,452 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Trains {@link GradientBoostedTrees} with the logistic loss. Each round fits
+ * a depth limited regression tree to the gradients of the current scores
+ * using second order (Newton) leaf values. Splits are found from per node
+ * histograms of the gradients over quantized genes, built and scanned in
+ * parallel across genes, and the larger child of each split gets its
+ * histogram by subtracting its sibling's from the parent's.
+ *
+ * A fraction of the samples is held out. Training stops once the loss on
+ * those samples has not improved for {@link #PATIENCE} rounds, and the
+ * model is cut back to the best round.
+ *
+ * @author Antony Holmes
+ */
+class GradientBoosting {
+
+  /**
+   * The fraction of samples held out for early stopping.
+   */
+  public static final double VALIDATION_FRACTION = 0.2;
+
+  /**
+   * Smaller training sets are not split and train for every round.
+   */
+  public static final int MIN_VALIDATION_SAMPLES = 20;
+
+  /**
+   * The number of rounds without improvement before stopping.
+   */
+  public static final int PATIENCE = 10;
+
+  /**
+   * L2 regularization of the leaf values.
+   */
+  public static final double LAMBDA = 1;
+
+  /**
+   * The minimum sum of hessians in each child of a split.
+   */
+  public static final double MIN_CHILD_WEIGHT = 1e-3;
+
+  /**
+   * The number of values stored per bin: gradient, hessian and count.
+   */
+  private static final int STATS = 3;
+
+  private final PackedMatrix mX;
+  private final int[] mColumns;
+  private final byte[] mBins;
+  private final int mFeatureCount;
+  private final Quantizer mQuantizer;
+  private final int[] mHistOffsets;
+  private final int mHistSize;
+  private final double mLearningRate;
+
+  private final double[] mGradients;
+  private final double[] mHessians;
+
+  private GradientBoosting(PackedMatrix x, int[] columns, Quantizer quantizer,
+      QuantizedMatrix bins, double learningRate) {
+    mX = x;
+    mColumns = columns;
+    mBins = bins.getData();
+    mFeatureCount = bins.getRows();
+    mQuantizer = quantizer;
+    mLearningRate = learningRate;
+
+    mHistOffsets = new int[mFeatureCount];
+
+    int size = 0;
+
+    for (int f = 0; f < mFeatureCount; ++f) {
+      mHistOffsets[f] = size;
+      size += quantizer.getBinCount(f) * STATS;
+    }
+
+    mHistSize = size;
+
+    mGradients = new double[columns.length];
+    mHessians = new double[columns.length];
+  }
+
+  /**
+   * Train boosted trees on a subset of the columns of a snapshot.
+   *
+   * @param name The name of the model.
+   * @param features The feature names.
+   * @param x The values with one row per feature and one column per sample.
+   * @param columns The columns of x to train on.
+   * @param labels The two label names.
+   * @param y The label index, 0 or 1, of each training column.
+   * @param rounds The maximum number of rounds.
+   * @param learningRate The shrinkage applied to each tree.
+   * @param depth The maximum depth of each tree.
+   * @param seed The random seed used to choose the held out samples.
+   * @return
+   */
+  static GradientBoostedTrees train(String name,
+      String[] features,
+      PackedMatrix x,
+      int[] columns,
+      String[] labels,
+      int[] y,
+      int rounds,
+      double learningRate,
+      int depth,
+      long seed) {
+    if (labels.length != 2) {
+      throw new IllegalArgumentException(
+          "Boosted trees can only separate two labels.");
+    }
+
+    Quantizer quantizer = Quantizer.fit(x, columns, Quantizer.MAX_BINS);
+
+    GradientBoosting gb = new GradientBoosting(x, columns, quantizer,
+        quantizer.quantize(x, columns), learningRate);
+
+    int n = columns.length;
+
+    // Hold out a random subset of the samples
+    int[] order = C45.sequence(n);
+
+    SplittableRandom random = new SplittableRandom(seed);
+
+    for (int i = n - 1; i > 0; --i) {
+      int j = random.nextInt(i + 1);
+      int tmp = order[i];
+      order[i] = order[j];
+      order[j] = tmp;
+    }
+
+    int validationSize = n >= MIN_VALIDATION_SAMPLES
+        ? (int) (n * VALIDATION_FRACTION) : 0;
+
+    int[] validation = Arrays.copyOfRange(order, 0, validationSize);
+    int[] training = Arrays.copyOfRange(order, validationSize, n);
+
+    Arrays.sort(validation);
+    Arrays.sort(training);
+
+    double p = 0;
+
+    for (int s : training) {
+      p += y[s];
+    }
+
+    p = Math.min(Math.max(p / training.length, 1e-6), 1 - 1e-6);
+
+    double baseScore = Math.log(p / (1 - p));
+
+    double[] scores = new double[n];
+
+    Arrays.fill(scores, baseScore);
+
+    List<TreeNode> trees = new ArrayList<TreeNode>(rounds);
+
+    double bestLoss = Double.POSITIVE_INFINITY;
+    int bestRounds = rounds;
+
+    for (int r = 0; r < rounds; ++r) {
+      for (int s : training) {
+        double q = sigmoid(scores[s]);
+
+        gb.mGradients[s] = q - y[s];
+        gb.mHessians[s] = q * (1 - q);
+      }
+
+      TreeNode root = gb.grow(training, gb.histogram(training), depth);
+
+      trees.add(root);
+
+      for (int s = 0; s < n; ++s) {
+        scores[s] += gb.predict(root, s);
+      }
+
+      if (validationSize > 0) {
+        double loss = loss(scores, y, validation);
+
+        if (loss < bestLoss) {
+          bestLoss = loss;
+          bestRounds = r + 1;
+        } else if (r + 1 - bestRounds >= PATIENCE) {
+          break;
+        }
+      }
+    }
+
+    if (validationSize == 0) {
+      bestRounds = trees.size();
+    }
+
+    return new GradientBoostedTrees(name, features, labels, baseScore,
+        trees.subList(0, bestRounds).toArray(new TreeNode[bestRounds]));
+  }
+
+  private static double sigmoid(double x) {
+    return 1 / (1 + Math.exp(-x));
+  }
+
+  /**
+   * Returns the mean logistic loss of a set of samples.
+   *
+   * @param scores
+   * @param y
+   * @param samples
+   * @return
+   */
+  private static double loss(double[] scores, int[] y, int[] samples) {
+    double ret = 0;
+
+    for (int s : samples) {
+      // log(1 + exp(-m)) computed without overflow
+      double m = y[s] == 1 ? scores[s] : -scores[s];
+
+      ret += Math.max(-m, 0) + Math.log1p(Math.exp(-Math.abs(m)));
+    }
+
+    return ret / samples.length;
+  }
+
+  private double predict(TreeNode node, int s) {
+    int offset = mX.getOffset(mColumns[s]);
+    double[] data = mX.getData();
+
+    while (!node.isLeaf()) {
+      node = data[offset + node.getFeature()] <= node.getThreshold()
+          ? node.getLeft() : node.getRight();
+    }
+
+    return node.getValue();
+  }
+
+  private int getBin(int f, int s) {
+    return mBins[s * mFeatureCount + f] & 0xFF;
+  }
+
+  /**
+   * Sum the gradients, hessians and counts of samples in each bin of every
+   * feature.
+   *
+   * @param samples
+   * @return
+   */
+  private double[] histogram(int[] samples) {
+    double[] hist = new double[mHistSize];
+
+    FeatureTask.run(mFeatureCount,
+        (long) samples.length * mFeatureCount,
+        (start, end) -> {
+          for (int s : samples) {
+            int offset = s * mFeatureCount;
+            double g = mGradients[s];
+            double h = mHessians[s];
+
+            for (int f = start; f < end; ++f) {
+              int i = mHistOffsets[f] + (mBins[offset + f] & 0xFF) * STATS;
+
+              hist[i] += g;
+              hist[i + 1] += h;
+              hist[i + 2] += 1;
+            }
+          }
+        });
+
+    return hist;
+  }
+
+  /**
+   * Grow a regression tree.
+   *
+   * @param samples The samples in the node.
+   * @param hist The histogram of the node, or null if depth is 0. It is
+   *          overwritten.
+   * @param depth The remaining depth.
+   * @return
+   */
+  private TreeNode grow(int[] samples, double[] hist, int depth) {
+    double g = 0;
+    double h = 0;
+
+    for (int s : samples) {
+      g += mGradients[s];
+      h += mHessians[s];
+    }
+
+    int n = samples.length;
+
+    if (depth == 0 || n < 2 * C45.MIN_SAMPLES) {
+      return leaf(g, h);
+    }
+
+    int[] bins = new int[mFeatureCount];
+    double[] gains = new double[mFeatureCount];
+
+    double parentScore = g * g / (h + LAMBDA);
+    final double gSum = g;
+    final double hSum = h;
+
+    FeatureTask.run(mFeatureCount,
+        mHistSize,
+        (start, end) -> findSplits(hist,
+            gSum,
+            hSum,
+            n,
+            parentScore,
+            start,
+            end,
+            bins,
+            gains));
+
+    // Lowest feature wins a tie
+    int best = -1;
+
+    for (int f = 0; f < mFeatureCount; ++f) {
+      if (bins[f] >= 0 && (best == -1 || gains[f] > gains[best])) {
+        best = f;
+      }
+    }
+
+    if (best == -1) {
+      return leaf(g, h);
+    }
+
+    int bin = bins[best];
+
+    int nl = 0;
+
+    for (int s : samples) {
+      if (getBin(best, s) <= bin) {
+        ++nl;
+      }
+    }
+
+    int[] left = new int[nl];
+    int[] right = new int[n - nl];
+
+    int li = 0;
+    int ri = 0;
+
+    for (int s : samples) {
+      if (getBin(best, s) <= bin) {
+        left[li++] = s;
+      } else {
+        right[ri++] = s;
+      }
+    }
+
+    double[] leftHist = null;
+    double[] rightHist = null;
+
+    if (depth > 1) {
+      // Count the smaller child and derive its sibling from the parent
+      if (nl <= n - nl) {
+        leftHist = histogram(left);
+        rightHist = subtract(hist, leftHist);
+      } else {
+        rightHist = histogram(right);
+        leftHist = subtract(hist, rightHist);
+      }
+    }
+
+    return TreeNode.split(best,
+        mQuantizer.getEdges(best)[bin],
+        grow(left, leftHist, depth - 1),
+        grow(right, rightHist, depth - 1));
+  }
+
+  private TreeNode leaf(double g, double h) {
+    return TreeNode.leaf(-mLearningRate * g / (h + LAMBDA));
+  }
+
+  private static double[] subtract(double[] parent, double[] child) {
+    for (int i = 0; i < parent.length; ++i) {
+      parent[i] -= child[i];
+    }
+
+    return parent;
+  }
+
+  /**
+   * Find the bin with the largest gain for each feature in a range.
+   *
+   * @param hist The histogram of the node.
+   * @param g The sum of the gradients in the node.
+   * @param h The sum of the hessians in the node.
+   * @param n The number of samples in the node.
+   * @param parentScore The structure score of the node without a split.
+   * @param start The first feature.
+   * @param end One past the last feature.
+   * @param bins Receives the best bin of each feature, or -1 if the feature
+   *          has no split with a positive gain.
+   * @param gains Receives the gain of the best bin of each feature.
+   */
+  private void findSplits(double[] hist,
+      double g,
+      double h,
+      int n,
+      double parentScore,
+      int start,
+      int end,
+      int[] bins,
+      double[] gains) {
+    for (int f = start; f < end; ++f) {
+      bins[f] = -1;
+
+      int offset = mHistOffsets[f];
+      int binCount = mQuantizer.getBinCount(f);
+
+      double gl = 0;
+      double hl = 0;
+      int nl = 0;
+
+      for (int b = 0; b < binCount - 1; ++b) {
+        int i = offset + b * STATS;
+
+        int size = (int) Math.round(hist[i + 2]);
+
+        if (size == 0) {
+          continue;
+        }
+
+        gl += hist[i];
+        hl += hist[i + 1];
+        nl += size;
+
+        int nr = n - nl;
+        double gr = g - gl;
+        double hr = h - hl;
+
+        if (nl < C45.MIN_SAMPLES || nr < C45.MIN_SAMPLES
+            || hl < MIN_CHILD_WEIGHT || hr < MIN_CHILD_WEIGHT) {
+          continue;
+        }
+
+        double gain = gl * gl / (hl + LAMBDA) + gr * gr / (hr + LAMBDA)
+            - parentScore;
+
+        if (gain > C45.EPSILON && (bins[f] == -1 || gain > gains[f])) {
+          bins[f] = b;
+          gains[f] = gain;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,390 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Approximate C4.5 training on quantized features. Each node keeps a class
+ * histogram per feature bin, so finding the best split costs the number of
+ * bins rather than the number of samples. Only the smaller child of a split
+ * has its histogram counted from its samples; the larger child's histogram
+ * is the parent's minus the smaller one.
+ *
+ * A histogram covers every bin of every feature so can be tens of megabytes
+ * for a whole genome. The smaller child is built first while the larger
+ * child's histogram waits, so at most one histogram waits per halving of the
+ * samples. Beyond {@link #MAX_PENDING} waiting histograms the larger child
+ * is counted from its samples when it is reached instead. Histograms that
+ * are no longer needed are reused rather than reallocated.
+ *
+ * The same gain ratio criterion and tie breaking as {@link C45} are used, but
+ * thresholds are restricted to the bin edges chosen by a {@link Quantizer},
+ * which is kept with the tree.
+ *
+ * @author Antony Holmes
+ */
+class HistogramC45 {
+
+  /**
+   * The maximum number of histograms of larger children kept while their
+   * smaller siblings are built.
+   */
+  static final int MAX_PENDING = 4;
+
+  private final byte[] mData;
+  private final int mFeatureCount;
+  private final int mSampleCount;
+  private final int[] mY;
+  private final int mLabelCount;
+  private final Quantizer mQuantizer;
+
+  /**
+   * The offset of each feature's bins in a histogram.
+   */
+  private final int[] mHistOffsets;
+  private final int mHistSize;
+
+  /**
+   * Histograms that are no longer needed, ready to be reused.
+   */
+  private final Deque<int[]> mFree = new ArrayDeque<int[]>();
+
+  private int mPending;
+
+  private HistogramC45(Quantizer quantizer, QuantizedMatrix x, int[] y,
+      int labelCount) {
+    mData = x.getData();
+    mFeatureCount = x.getRows();
+    mSampleCount = x.getCols();
+    mY = y;
+    mLabelCount = labelCount;
+    mQuantizer = quantizer;
+
+    mHistOffsets = new int[mFeatureCount];
+
+    int size = 0;
+
+    for (int f = 0; f < mFeatureCount; ++f) {
+      mHistOffsets[f] = size;
+      size += quantizer.getBinCount(f) * labelCount;
+    }
+
+    mHistSize = size;
+  }
+
+  /**
+   * Train a tree on a subset of the columns of a snapshot.
+   *
+   * @param name The name of the tree.
+   * @param features The feature names.
+   * @param x The values with one row per feature and one column per sample.
+   * @param columns The columns of x to train on.
+   * @param labels The label names.
+   * @param y The label index of each training column.
+   * @return
+   */
+  static DecisionTree train(String name,
+      String[] features,
+      PackedMatrix x,
+      int[] columns,
+      String[] labels,
+      int[] y) {
+    Quantizer quantizer = Quantizer.fit(x, columns, Quantizer.MAX_BINS);
+
+    HistogramC45 c45 = new HistogramC45(quantizer,
+        quantizer.quantize(x, columns), y, labels.length);
+
+    return new DecisionTree(name, features, labels, c45.build(), quantizer);
+  }
+
+  private TreeNode build() {
+    int[] samples = C45.sequence(mSampleCount);
+
+    int[] counts = new int[mLabelCount];
+
+    for (int s : samples) {
+      ++counts[mY[s]];
+    }
+
+    return build(samples, counts, null);
+  }
+
+  private static boolean isSplittable(int[] counts, int n) {
+    return n >= 2 * C45.MIN_SAMPLES && counts[C45.majority(counts)] < n;
+  }
+
+  /**
+   * Build the subtree of a node.
+   *
+   * @param samples The samples in the node.
+   * @param counts The number of samples with each label.
+   * @param hist The histogram of the node, or null to count it from the
+   *          samples if the node can be split. It is reused once the node's
+   *          children have their histograms.
+   * @return
+   */
+  private TreeNode build(int[] samples, int[] counts, int[] hist) {
+    int n = samples.length;
+
+    if (!isSplittable(counts, n)) {
+      release(hist);
+
+      return TreeNode.leaf(C45.majority(counts));
+    }
+
+    if (hist == null) {
+      hist = histogram(samples);
+    }
+
+    int[] bins = new int[mFeatureCount];
+    double[] ratios = new double[mFeatureCount];
+
+    double parentEntropy = C45.entropy(counts, n);
+
+    int[] nodeHist = hist;
+
+    FeatureTask.run(mFeatureCount,
+        mHistSize,
+        (start, end) -> findSplits(nodeHist,
+            counts,
+            n,
+            parentEntropy,
+            start,
+            end,
+            bins,
+            ratios));
+
+    // Lowest feature wins a tie, as in C45
+    int best = -1;
+
+    for (int f = 0; f < mFeatureCount; ++f) {
+      if (bins[f] >= 0 && (best == -1 || ratios[f] > ratios[best])) {
+        best = f;
+      }
+    }
+
+    if (best == -1) {
+      release(hist);
+
+      return TreeNode.leaf(C45.majority(counts));
+    }
+
+    int bin = bins[best];
+
+    int nl = 0;
+
+    for (int s : samples) {
+      if (getBin(best, s) <= bin) {
+        ++nl;
+      }
+    }
+
+    int[] left = new int[nl];
+    int[] right = new int[n - nl];
+    int[] leftCounts = new int[mLabelCount];
+    int[] rightCounts = new int[mLabelCount];
+
+    int li = 0;
+    int ri = 0;
+
+    for (int s : samples) {
+      if (getBin(best, s) <= bin) {
+        left[li++] = s;
+        ++leftCounts[mY[s]];
+      } else {
+        right[ri++] = s;
+        ++rightCounts[mY[s]];
+      }
+    }
+
+    boolean leftSmaller = nl <= n - nl;
+
+    int[] small = leftSmaller ? left : right;
+    int[] large = leftSmaller ? right : left;
+    int[] smallCounts = leftSmaller ? leftCounts : rightCounts;
+    int[] largeCounts = leftSmaller ? rightCounts : leftCounts;
+
+    boolean splitSmall = isSplittable(smallCounts, small.length);
+    boolean splitLarge = isSplittable(largeCounts, large.length);
+
+    int[] smallHist = null;
+    int[] largeHist = null;
+
+    if (splitLarge && mPending < MAX_PENDING) {
+      // Count the smaller child and derive its sibling from the parent
+      smallHist = histogram(small);
+      largeHist = subtract(hist, smallHist);
+      hist = null;
+
+      if (!splitSmall) {
+        release(smallHist);
+        smallHist = null;
+      }
+    }
+
+    release(hist);
+
+    TreeNode smallNode;
+
+    if (largeHist != null) {
+      ++mPending;
+
+      smallNode = build(small, smallCounts, smallHist);
+
+      --mPending;
+    } else {
+      smallNode = build(small, smallCounts, smallHist);
+    }
+
+    TreeNode largeNode = build(large, largeCounts, largeHist);
+
+    return TreeNode.split(best,
+        mQuantizer.getEdges(best)[bin],
+        leftSmaller ? smallNode : largeNode,
+        leftSmaller ? largeNode : smallNode);
+  }
+
+  private int getBin(int f, int s) {
+    return mData[s * mFeatureCount + f] & 0xFF;
+  }
+
+  /**
+   * Count the samples with each label in each bin of every feature.
+   *
+   * @param samples
+   * @return
+   */
+  private int[] histogram(int[] samples) {
+    int[] free = mFree.poll();
+
+    if (free != null) {
+      Arrays.fill(free, 0);
+    }
+
+    int[] hist = free != null ? free : new int[mHistSize];
+
+    FeatureTask.run(mFeatureCount,
+        (long) samples.length * mFeatureCount,
+        (start, end) -> {
+          for (int s : samples) {
+            int offset = s * mFeatureCount;
+            int y = mY[s];
+
+            for (int f = start; f < end; ++f) {
+              ++hist[mHistOffsets[f] + (mData[offset + f] & 0xFF) * mLabelCount
+                  + y];
+            }
+          }
+        });
+
+    return hist;
+  }
+
+  /**
+   * Keep a histogram that is no longer needed for reuse.
+   *
+   * @param hist The histogram, or null.
+   */
+  private void release(int[] hist) {
+    if (hist != null) {
+      mFree.push(hist);
+    }
+  }
+
+  /**
+   * Subtract a child's histogram from its parent's in place to get the
+   * histogram of its sibling.
+   *
+   * @param parent
+   * @param child
+   * @return The parent array, now holding the sibling's histogram.
+   */
+  private static int[] subtract(int[] parent, int[] child) {
+    for (int i = 0; i < parent.length; ++i) {
+      parent[i] -= child[i];
+    }
+
+    return parent;
+  }
+
+  /**
+   * Find the best bin to split each feature in a range on.
+   *
+   * @param hist The histogram of the node.
+   * @param counts The number of samples with each label.
+   * @param n The number of samples.
+   * @param parentEntropy The entropy of counts.
+   * @param start The first feature.
+   * @param end One past the last feature.
+   * @param bins Receives the best bin of each feature, or -1 if the feature
+   *          has no split with a positive gain.
+   * @param ratios Receives the gain ratio of the best bin of each feature.
+   */
+  private void findSplits(int[] hist,
+      int[] counts,
+      int n,
+      double parentEntropy,
+      int start,
+      int end,
+      int[] bins,
+      double[] ratios) {
+    int[] leftCounts = new int[mLabelCount];
+    int[] rightCounts = new int[mLabelCount];
+
+    for (int f = start; f < end; ++f) {
+      bins[f] = -1;
+
+      for (int l = 0; l < mLabelCount; ++l) {
+        leftCounts[l] = 0;
+      }
+
+      int offset = mHistOffsets[f];
+      int binCount = mQuantizer.getBinCount(f);
+      int nl = 0;
+
+      for (int b = 0; b < binCount - 1; ++b) {
+        int size = 0;
+
+        for (int l = 0; l < mLabelCount; ++l) {
+          int c = hist[offset + b * mLabelCount + l];
+
+          leftCounts[l] += c;
+          size += c;
+        }
+
+        if (size == 0) {
+          // Same partition as the previous bin
+          continue;
+        }
+
+        nl += size;
+
+        int nr = n - nl;
+
+        if (nl < C45.MIN_SAMPLES || nr < C45.MIN_SAMPLES) {
+          continue;
+        }
+
+        for (int l = 0; l < mLabelCount; ++l) {
+          rightCounts[l] = counts[l] - leftCounts[l];
+        }
+
+        double gain = parentEntropy
+            - ((double) nl / n) * C45.entropy(leftCounts, nl)
+            - ((double) nr / n) * C45.entropy(rightCounts, nr);
+
+        if (gain <= C45.EPSILON) {
+          continue;
+        }
+
+        double ratio = gain / C45.splitInfo(nl, nr);
+
+        if (bins[f] == -1 || ratio > ratios[f]) {
+          bins[f] = b;
+          ratios[f] = ratio;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how many samples reach each leaf of a tree. Nodes are numbered in
+ * depth first order, left child first, which is the order they are written
+ * in and does not change when the compiled tree is laid out again. Only the
+ * leaf a sample ends in is counted; the number of samples through a split
+ * is the sum of the leaves below it.
+ *
+ * Samples usually follow a few paths, so each leaf has its own striped
+ * counter rather than sharing an array. Threads scoring the same hot leaf
+ * then increment separate cells instead of contending for one cache line.
+ * Batches can instead be counted into a plain array and added at the end.
+ *
+ * @author Antony Holmes
+ */
+public class NodeProfile {
+  private final LongAdder[] mHits;
+
+  /**
+   * Create an empty profile.
+   *
+   * @param nodes The number of nodes in the tree.
+   */
+  public NodeProfile(int nodes) {
+    mHits = new LongAdder[nodes];
+
+    for (int n = 0; n < nodes; ++n) {
+      mHits[n] = new LongAdder();
+    }
+  }
+
+  /**
+   * Create a profile from previously recorded counts.
+   *
+   * @param hits The count of each node.
+   */
+  public NodeProfile(long[] hits) {
+    this(hits.length);
+
+    add(hits);
+  }
+
+  public void hit(int node) {
+    mHits[node].increment();
+  }
+
+  /**
+   * Add counts recorded separately, such as those of a batch of samples.
+   *
+   * @param hits The count of each node.
+   */
+  public void add(long[] hits) {
+    for (int n = 0; n < hits.length; ++n) {
+      if (hits[n] > 0) {
+        mHits[n].add(hits[n]);
+      }
+    }
+  }
+
+  public int size() {
+    return mHits.length;
+  }
+
+  /**
+   * Returns the recorded count of each node.
+   *
+   * @return
+   */
+  public long[] getHits() {
+    long[] ret = new long[mHits.length];
+
+    for (int n = 0; n < ret.length; ++n) {
+      ret[n] = mHits[n].sum();
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns true if no samples have been counted.
+   *
+   * @return
+   */
+  public boolean isEmpty() {
+    for (LongAdder hits : mHits) {
+      if (hits.sum() > 0) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  public void reset() {
+    for (LongAdder hits : mHits) {
+      hits.reset();
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import org.jebtk.math.matrix.DataFrame;
+
+/**
+ * A numerical snapshot of a matrix held in one contiguous column major
+ * array. Each column (sample) occupies a contiguous block, so a whole sample
+ * can be read without copying and the same snapshot can be shared by
+ * training and scoring.
+ *
+ * @author Antony Holmes
+ */
+public class PackedMatrix {
+  private final int mRows;
+  private final int mCols;
+  private final double[] mData;
+
+  public PackedMatrix(int rows, int cols) {
+    mRows = rows;
+    mCols = cols;
+    mData = new double[rows * cols];
+  }
+
+  public int getRows() {
+    return mRows;
+  }
+
+  public int getCols() {
+    return mCols;
+  }
+
+  /**
+   * Returns the backing array. The value of row r in column c is at
+   * {@code getOffset(c) + r}.
+   *
+   * @return
+   */
+  public double[] getData() {
+    return mData;
+  }
+
+  /**
+   * Returns the index in the backing array of the first value of a column.
+   *
+   * @param column
+   * @return
+   */
+  public int getOffset(int column) {
+    return column * mRows;
+  }
+
+  public double getValue(int row, int column) {
+    return mData[column * mRows + row];
+  }
+
+  /**
+   * Copy a column of a matrix into the snapshot. Different columns may be
+   * copied concurrently.
+   *
+   * @param m The matrix to copy from.
+   * @param column The column in m.
+   * @param toColumn The column in the snapshot.
+   */
+  public void copyColumn(DataFrame m, int column, int toColumn) {
+    int offset = toColumn * mRows;
+
+    for (int r = 0; r < mRows; ++r) {
+      mData[offset + r] = m.getValue(r, column);
+    }
+  }
+
+  /**
+   * Copy a subset of the rows of a column of a matrix into the snapshot.
+   * Row i of the snapshot is set to row rows[i] of the matrix.
+   *
+   * @param m The matrix to copy from.
+   * @param column The column in m.
+   * @param toColumn The column in the snapshot.
+   * @param rows The rows of m to copy.
+   */
+  public void copyColumn(DataFrame m, int column, int toColumn, int[] rows) {
+    int offset = toColumn * mRows;
+
+    for (int r = 0; r < mRows; ++r) {
+      mData[offset + r] = m.getValue(rows[r], column);
+    }
+  }
+
+  /**
+   * Returns a snapshot containing only the given rows.
+   *
+   * @param rows
+   * @return
+   */
+  public PackedMatrix project(int[] rows) {
+    PackedMatrix ret = new PackedMatrix(rows.length, mCols);
+
+    for (int c = 0; c < mCols; ++c) {
+      int offset = c * mRows;
+      int toOffset = c * rows.length;
+
+      for (int r = 0; r < rows.length; ++r) {
+        ret.mData[toOffset + r] = mData[offset + rows[r]];
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Create a snapshot of the columns of one or more matrices with the same
+   * number of rows. The columns of each matrix follow those of the previous
+   * one.
+   *
+   * @param matrices
+   * @return
+   */
+  public static PackedMatrix of(DataFrame... matrices) {
+    int rows = matrices[0].getRows();
+    int cols = 0;
+
+    for (DataFrame m : matrices) {
+      cols += m.getCols();
+    }
+
+    PackedMatrix ret = new PackedMatrix(rows, cols);
+
+    int c = 0;
+
+    for (DataFrame m : matrices) {
+      for (int i = 0; i < m.getCols(); ++i) {
+        ret.copyColumn(m, i, c++);
+      }
+    }
+
+    return ret;
+  }
+}
@@ -0,0 +1,179 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jebtk.math.matrix.DataFrame;
+
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.metrics.DecisionTreeMetrics;
+
+/**
+ * Classifies every column of a matrix on a fork/join pool. The columns are
+ * split into chunks that are scored independently, so the work scales with
+ * the number of cores. The job can be cancelled and reports how many columns
+ * have been classified so that it can be monitored from another thread.
+ *
+ * @author Antony Holmes
+ */
+public class ParallelClassifier {
+
+  /**
+   * The maximum number of columns scored by a single task.
+   */
+  public static final int CHUNK_SIZE = 64;
+
+  private final DataFrame mM;
+  private final int[] mRows;
+  private final PackedMatrix mSnapshot;
+  private final TreeModel mModel;
+  private final int[] mLabels;
+  private final AtomicInteger mProgress = new AtomicInteger();
+  private final AtomicBoolean mCancelled = new AtomicBoolean();
+
+  private class Chunk extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int mStart;
+    private final int mEnd;
+
+    public Chunk(int start, int end) {
+      mStart = start;
+      mEnd = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (mCancelled.get()) {
+        return;
+      }
+
+      if (mEnd - mStart > CHUNK_SIZE) {
+        int mid = (mStart + mEnd) >>> 1;
+
+        invokeAll(new Chunk(mStart, mid), new Chunk(mid, mEnd));
+      } else {
+        double[] data = mSnapshot.getData();
+
+        for (int c = mStart; c < mEnd; ++c) {
+          if (mCancelled.get()) {
+            return;
+          }
+
+          if (mM != null) {
+            mSnapshot.copyColumn(mM, c, c, mRows);
+
+            mLabels[c] = mModel.classifyProjected(data,
+                mSnapshot.getOffset(c));
+          } else {
+            mLabels[c] = mModel.classify(data, mSnapshot.getOffset(c));
+          }
+        }
+
+        // Report the whole chunk at once so the workers do not contend on
+        // the counter for every column
+        mProgress.addAndGet(mEnd - mStart);
+      }
+    }
+  }
+
+  /**
+   * Classify the columns of a matrix. Each chunk copies the rows of the
+   * genes the model splits on into a packed, projected snapshot as it goes.
+   * The cost of scoring therefore depends on the size of the model rather
+   * than the number of rows in the matrix.
+   *
+   * @param m The matrix.
+   * @param binding The complete binding of the model's features to the rows
+   *          of m.
+   * @param model
+   */
+  public ParallelClassifier(DataFrame m, FeatureBinding binding,
+      TreeModel model) {
+    mM = m;
+    mRows = binding.getProjectedRows();
+    mSnapshot = new PackedMatrix(mRows.length, m.getCols());
+    mModel = model;
+    mLabels = new int[m.getCols()];
+  }
+
+  /**
+   * Classify the columns of an existing snapshot.
+   *
+   * @param snapshot
+   * @param model
+   */
+  public ParallelClassifier(PackedMatrix snapshot, TreeModel model) {
+    mM = null;
+    mRows = null;
+    mSnapshot = snapshot;
+    mModel = model;
+    mLabels = new int[snapshot.getCols()];
+  }
+
+  /**
+   * Classify all columns, blocking until every chunk has finished or the
+   * job is cancelled.
+   */
+  public void run() {
+    long start = DecisionTreeMetrics.getInstance().start();
+
+    ForkJoinPool.commonPool().invoke(new Chunk(0, mLabels.length));
+
+    if (!mCancelled.get()) {
+      DecisionTreeMetrics.getInstance().classified(start, mLabels.length);
+    }
+  }
+
+  public void cancel() {
+    mCancelled.set(true);
+  }
+
+  public boolean isCancelled() {
+    return mCancelled.get();
+  }
+
+  /**
+   * Returns the number of columns classified so far.
+   *
+   * @return
+   */
+  public int getProgress() {
+    return mProgress.get();
+  }
+
+  /**
+   * Returns the number of columns to classify.
+   *
+   * @return
+   */
+  public int getSize() {
+    return mLabels.length;
+  }
+
+  /**
+   * Returns the packed snapshot of the matrix, which can be reused once
+   * {@link #run()} has completed. If the classifier was created from a
+   * matrix, the snapshot only contains the rows the model splits on.
+   *
+   * @return
+   */
+  public PackedMatrix getSnapshot() {
+    return mSnapshot;
+  }
+
+  public TreeModel getModel() {
+    return mModel;
+  }
+
+  /**
+   * Returns the label index of each column. Only complete once
+   * {@link #run()} has returned without the job being cancelled.
+   *
+   * @return
+   */
+  public int[] getLabels() {
+    return mLabels;
+  }
+}
@@ -0,0 +1,581 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * Estimates the significance of classifier scores by permuting the group
+ * labels of the reference samples.
+ *
+ * The score of a sample is its distance to the control centroid minus its
+ * distance to the phenotype centroid, over the genes a model splits on, so
+ * positive scores favour the phenotype. Each permutation shuffles which
+ * reference samples are phenotype and which are control and recomputes the
+ * centroids. The p-value of a sample is the fraction of permutations giving
+ * a score at least as extreme as the observed one. The p-value of the
+ * classifier as a whole is the fraction of permutations in which the
+ * centroids are at least as far apart as they really are.
+ *
+ * Permutations run in batches across all cores. Each batch is divided into
+ * fixed size chunks that draw from their own split random stream, so the
+ * results only depend on the seed and not on the number of cores. After
+ * each batch, a p-value whose confidence interval no longer contains the
+ * significance threshold is final and stops being tested, so clear cut cases
+ * need far fewer permutations than the maximum.
+ *
+ * Missing values are NaN. A gene missing from a sample, or from every
+ * reference sample of a group, is left out of that distance, and any
+ * comparison that is still undefined counts against the sample, so missing
+ * data can only make a result less significant.
+ *
+ * @author Antony Holmes
+ */
+public class PermutationTest {
+
+  /**
+   * How distances between samples and centroids are measured.
+   */
+  public enum Metric {
+    EUCLIDEAN,
+    MANHATTAN,
+
+    /**
+     * One minus the Pearson correlation.
+     */
+    PEARSON
+  }
+
+  /**
+   * The default significance threshold used for early stopping.
+   */
+  public static final double DEFAULT_ALPHA = 0.05;
+
+  /**
+   * The number of permutations between checks for early stopping.
+   */
+  public static final int BATCH_SIZE = 256;
+
+  /**
+   * The number of permutations run by each task within a batch.
+   */
+  public static final int CHUNK_SIZE = 16;
+
+  /**
+   * The z score of the confidence interval used for early stopping. A
+   * p-value is only final once it is this many standard errors from the
+   * threshold.
+   */
+  private static final double Z = 3.29;
+
+  private final double[] mRef;
+  private final double[] mSamples;
+  private final int mGenes;
+  private final int mRefCount;
+  private final int mSampleCount;
+  private final int[] mLabels;
+  private final int mPhenCount;
+  private final Metric mMetric;
+
+  /**
+   * The sum of each gene over all reference samples.
+   */
+  private final double[] mTotals;
+
+  /**
+   * The number of reference samples with a value for each gene, or null if
+   * none are missing.
+   */
+  private final int[] mCounts;
+
+  private final AtomicInteger mProgress = new AtomicInteger();
+
+  /**
+   * The results of a test.
+   */
+  public static class Result {
+    private final double[] mScores;
+    private final double[] mPValues;
+    private final int[] mPermutations;
+    private final double mPValue;
+    private final int mClassifierPermutations;
+
+    private Result(double[] scores, double[] pValues, int[] permutations,
+        double pValue, int classifierPermutations) {
+      mScores = scores;
+      mPValues = pValues;
+      mPermutations = permutations;
+      mPValue = pValue;
+      mClassifierPermutations = classifierPermutations;
+    }
+
+    /**
+     * Returns the observed score of each sample.
+     *
+     * @return
+     */
+    public double[] getScores() {
+      return mScores;
+    }
+
+    /**
+     * Returns the p-value of each sample.
+     *
+     * @return
+     */
+    public double[] getPValues() {
+      return mPValues;
+    }
+
+    /**
+     * Returns the number of permutations each sample's p-value is based on.
+     *
+     * @return
+     */
+    public int[] getPermutations() {
+      return mPermutations;
+    }
+
+    /**
+     * Returns the p-value of the separation between the reference groups.
+     *
+     * @return
+     */
+    public double getPValue() {
+      return mPValue;
+    }
+
+    /**
+     * Returns the number of permutations the classifier p-value is based on.
+     *
+     * @return
+     */
+    public int getClassifierPermutations() {
+      return mClassifierPermutations;
+    }
+  }
+
+  /**
+   * Create a test.
+   *
+   * @param reference The reference samples, with one row per gene.
+   * @param labels The group of each reference sample, 0 for phenotype and 1
+   *          for control.
+   * @param samples The samples to test, with the same genes as reference.
+   * @param metric
+   */
+  public PermutationTest(PackedMatrix reference, int[] labels,
+      PackedMatrix samples, Metric metric) {
+    mRef = reference.getData();
+    mSamples = samples.getData();
+    mGenes = reference.getRows();
+    mRefCount = reference.getCols();
+    mSampleCount = samples.getCols();
+    mLabels = labels;
+    mMetric = metric;
+
+    int phen = 0;
+
+    for (int l : labels) {
+      if (l == 0) {
+        ++phen;
+      }
+    }
+
+    mPhenCount = phen;
+
+    mTotals = new double[mGenes];
+
+    int[] counts = new int[mGenes];
+    boolean missing = false;
+
+    for (int r = 0; r < mRefCount; ++r) {
+      for (int g = 0; g < mGenes; ++g) {
+        double v = mRef[r * mGenes + g];
+
+        if (Double.isNaN(v)) {
+          missing = true;
+        } else {
+          mTotals[g] += v;
+          ++counts[g];
+        }
+      }
+    }
+
+    mCounts = missing ? counts : null;
+  }
+
+  /**
+   * Run the test.
+   *
+   * @param permutations The maximum number of permutations.
+   * @param alpha The significance threshold used to decide when a p-value
+   *          is final.
+   * @param seed The random seed.
+   * @return
+   */
+  public Result run(int permutations, double alpha, long seed) {
+    return run(permutations, alpha, seed, () -> false);
+  }
+
+  /**
+   * Run the test, checking whether to stop before each batch.
+   *
+   * @param permutations The maximum number of permutations.
+   * @param alpha The significance threshold used to decide when a p-value
+   *          is final.
+   * @param seed The random seed.
+   * @param cancelled Returns true if the test should stop.
+   * @return The result or null if the test was cancelled.
+   */
+  public Result run(int permutations,
+      double alpha,
+      long seed,
+      BooleanSupplier cancelled) {
+    SplittableRandom random = new SplittableRandom(seed);
+
+    mProgress.set(0);
+
+    double[] phen = new double[mGenes];
+    double[] control = new double[mGenes];
+
+    centroids(mLabels, phen, control, new int[mGenes]);
+
+    double observed = distance(phen, 0, control, 0);
+
+    double[] scores = new double[mSampleCount];
+
+    for (int s = 0; s < mSampleCount; ++s) {
+      scores[s] = score(s, phen, control);
+    }
+
+    int[] exceed = new int[mSampleCount];
+    int[] done = new int[mSampleCount];
+    int classifierExceed = 0;
+    int classifierDone = 0;
+    boolean classifierActive = true;
+
+    int[] active = C45.sequence(mSampleCount);
+    int activeCount = mSampleCount;
+
+    // Everything still being tested has run the same number of permutations
+    int total = 0;
+
+    while ((activeCount > 0 || classifierActive) && total < permutations) {
+      if (cancelled.getAsBoolean()) {
+        return null;
+      }
+
+      int batch = Math.min(BATCH_SIZE, permutations - total);
+      int chunks = (batch + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+      SplittableRandom[] streams = new SplittableRandom[chunks];
+
+      for (int c = 0; c < chunks; ++c) {
+        streams[c] = random.split();
+      }
+
+      int[] batchActive = Arrays.copyOf(active, activeCount);
+      boolean testClassifier = classifierActive;
+
+      // Each chunk counts into its own array
+      int[][] counts = IntStream.range(0, chunks)
+          .parallel()
+          .mapToObj(c -> permute(Math.min(CHUNK_SIZE, batch - c * CHUNK_SIZE),
+              streams[c],
+              batchActive,
+              scores,
+              observed,
+              testClassifier))
+          .toArray(int[][]::new);
+
+      for (int[] count : counts) {
+        for (int i = 0; i < batchActive.length; ++i) {
+          exceed[batchActive[i]] += count[i];
+        }
+
+        if (testClassifier) {
+          classifierExceed += count[batchActive.length];
+        }
+      }
+
+      total += batch;
+
+      mProgress.set(total);
+
+      for (int s : batchActive) {
+        done[s] = total;
+      }
+
+      if (testClassifier) {
+        classifierDone = total;
+        classifierActive = !isDecided(classifierExceed, total, alpha);
+      }
+
+      // Keep testing the samples whose p-value is still undecided
+      activeCount = 0;
+
+      for (int s : batchActive) {
+        if (!isDecided(exceed[s], total, alpha)) {
+          active[activeCount++] = s;
+        }
+      }
+    }
+
+    double[] pValues = new double[mSampleCount];
+
+    for (int s = 0; s < mSampleCount; ++s) {
+      pValues[s] = pValue(exceed[s], done[s]);
+    }
+
+    return new Result(scores, pValues, done,
+        pValue(classifierExceed, classifierDone), classifierDone);
+  }
+
+  /**
+   * Returns the number of permutations run so far by {@link #run}. Testing
+   * stops early once every p-value is decided, so this may never reach the
+   * maximum.
+   *
+   * @return
+   */
+  public int getProgress() {
+    return mProgress.get();
+  }
+
+  /**
+   * Run permutations and count how often each sample's null score, and the
+   * null distance between the centroids, is at least as extreme as the
+   * observed one.
+   *
+   * @param n The number of permutations.
+   * @param random
+   * @param samples The samples to test.
+   * @param scores The observed score of every sample.
+   * @param observed The observed distance between the centroids.
+   * @param testClassifier Whether to count the centroid distance.
+   * @return The count for each sample, followed by the count for the
+   *         centroid distance.
+   */
+  private int[] permute(int n,
+      SplittableRandom random,
+      int[] samples,
+      double[] scores,
+      double observed,
+      boolean testClassifier) {
+    int[] ret = new int[samples.length + 1];
+
+    int[] labels = mLabels.clone();
+    double[] phen = new double[mGenes];
+    double[] control = new double[mGenes];
+    int[] phenCounts = new int[mGenes];
+
+    for (int p = 0; p < n; ++p) {
+      // Fisher-Yates shuffle of the group labels
+      for (int i = labels.length - 1; i > 0; --i) {
+        int j = random.nextInt(i + 1);
+        int tmp = labels[i];
+        labels[i] = labels[j];
+        labels[j] = tmp;
+      }
+
+      centroids(labels, phen, control, phenCounts);
+
+      // Written as not less than so that an undefined score or distance
+      // counts as extreme
+      for (int i = 0; i < samples.length; ++i) {
+        int s = samples[i];
+
+        if (!(Math.abs(score(s, phen, control)) < Math.abs(scores[s]))) {
+          ++ret[i];
+        }
+      }
+
+      if (testClassifier && !(distance(phen, 0, control, 0) < observed)) {
+        ++ret[samples.length];
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Compute the phenotype and control centroids for a labelling of the
+   * reference samples. Only the phenotype samples are summed; the control
+   * sums are the totals minus the phenotype sums. A gene with no values in
+   * a group has a NaN centroid.
+   *
+   * @param labels
+   * @param phen
+   * @param control
+   * @param phenCounts Receives the number of phenotype values of each gene
+   *          if the reference has missing values.
+   */
+  private void centroids(int[] labels,
+      double[] phen,
+      double[] control,
+      int[] phenCounts) {
+    Arrays.fill(phen, 0);
+
+    if (mCounts != null) {
+      Arrays.fill(phenCounts, 0);
+    }
+
+    for (int r = 0; r < mRefCount; ++r) {
+      if (labels[r] == 0) {
+        int offset = r * mGenes;
+
+        if (mCounts == null) {
+          for (int g = 0; g < mGenes; ++g) {
+            phen[g] += mRef[offset + g];
+          }
+        } else {
+          for (int g = 0; g < mGenes; ++g) {
+            double v = mRef[offset + g];
+
+            if (!Double.isNaN(v)) {
+              phen[g] += v;
+              ++phenCounts[g];
+            }
+          }
+        }
+      }
+    }
+
+    for (int g = 0; g < mGenes; ++g) {
+      int phenCount = mCounts != null ? phenCounts[g] : mPhenCount;
+      int controlCount = (mCounts != null ? mCounts[g] : mRefCount)
+          - phenCount;
+
+      control[g] = controlCount > 0
+          ? (mTotals[g] - phen[g]) / controlCount
+          : Double.NaN;
+      phen[g] = phenCount > 0 ? phen[g] / phenCount : Double.NaN;
+    }
+  }
+
+  private double score(int s, double[] phen, double[] control) {
+    int offset = s * mGenes;
+
+    return distance(mSamples, offset, control, 0)
+        - distance(mSamples, offset, phen, 0);
+  }
+
+  /**
+   * Returns the distance between two vectors over the genes both have a
+   * value for.
+   *
+   * @param a
+   * @param ao
+   * @param b
+   * @param bo
+   * @return
+   */
+  private double distance(double[] a, int ao, double[] b, int bo) {
+    switch (mMetric) {
+    case MANHATTAN:
+      double sum = 0;
+
+      for (int g = 0; g < mGenes; ++g) {
+        double d = a[ao + g] - b[bo + g];
+
+        if (!Double.isNaN(d)) {
+          sum += Math.abs(d);
+        }
+      }
+
+      return sum;
+    case PEARSON:
+      return 1 - pearson(a, ao, b, bo, mGenes);
+    default:
+      double ss = 0;
+
+      for (int g = 0; g < mGenes; ++g) {
+        double d = a[ao + g] - b[bo + g];
+
+        if (!Double.isNaN(d)) {
+          ss += d * d;
+        }
+      }
+
+      return Math.sqrt(ss);
+    }
+  }
+
+  private static double pearson(double[] a,
+      int ao,
+      double[] b,
+      int bo,
+      int n) {
+    double ma = 0;
+    double mb = 0;
+    int m = 0;
+
+    for (int i = 0; i < n; ++i) {
+      if (!Double.isNaN(a[ao + i] - b[bo + i])) {
+        ma += a[ao + i];
+        mb += b[bo + i];
+        ++m;
+      }
+    }
+
+    if (m < 2) {
+      return 0;
+    }
+
+    ma /= m;
+    mb /= m;
+
+    double sab = 0;
+    double saa = 0;
+    double sbb = 0;
+
+    for (int i = 0; i < n; ++i) {
+      double da = a[ao + i] - ma;
+      double db = b[bo + i] - mb;
+
+      if (Double.isNaN(da - db)) {
+        continue;
+      }
+
+      sab += da * db;
+      saa += da * da;
+      sbb += db * db;
+    }
+
+    if (saa == 0 || sbb == 0) {
+      return 0;
+    }
+
+    return sab / Math.sqrt(saa * sbb);
+  }
+
+  /**
+   * Returns the permutation p-value, counting the observed labelling as one
+   * of the permutations so that it is never zero.
+   *
+   * @param exceed
+   * @param n
+   * @return
+   */
+  private static double pValue(int exceed, int n) {
+    return (exceed + 1.0) / (n + 1.0);
+  }
+
+  /**
+   * Returns true if a p-value is clearly above or below a threshold.
+   *
+   * @param exceed
+   * @param n
+   * @param alpha
+   * @return
+   */
+  private static boolean isDecided(int exceed, int n, double alpha) {
+    double p = pValue(exceed, n);
+    double se = Math.sqrt(p * (1 - p) / n);
+
+    return p - Z * se > alpha || p + Z * se < alpha;
+  }
+}
@@ -0,0 +1,50 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+/**
+ * A matrix of bin indices stored as unsigned bytes in one contiguous column
+ * major array. It holds the same layout as a {@link PackedMatrix} in an
+ * eighth of the memory.
+ *
+ * @author Antony Holmes
+ */
+public class QuantizedMatrix {
+  private final int mRows;
+  private final int mCols;
+  private final byte[] mData;
+
+  public QuantizedMatrix(int rows, int cols) {
+    mRows = rows;
+    mCols = cols;
+    mData = new byte[rows * cols];
+  }
+
+  public int getRows() {
+    return mRows;
+  }
+
+  public int getCols() {
+    return mCols;
+  }
+
+  /**
+   * Returns the backing array. The bin of row r in column c is
+   * {@code getData()[getOffset(c) + r] & 0xFF}.
+   *
+   * @return
+   */
+  public byte[] getData() {
+    return mData;
+  }
+
+  public int getOffset(int column) {
+    return column * mRows;
+  }
+
+  public int getBin(int row, int column) {
+    return mData[column * mRows + row] & 0xFF;
+  }
+
+  public void setBin(int row, int column, int bin) {
+    mData[column * mRows + row] = (byte) bin;
+  }
+}
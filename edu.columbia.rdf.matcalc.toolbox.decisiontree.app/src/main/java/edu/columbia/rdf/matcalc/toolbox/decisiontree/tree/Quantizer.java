@@ -0,0 +1,214 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import java.util.Arrays;
+
+/**
+ * Maps the values of each feature to at most {@link #MAX_BINS} bins. The
+ * bins of a feature are defined by an increasing array of edges: a value is
+ * in bin b if it is greater than edge b - 1 and less than or equal to edge
+ * b. Values above the last edge, and NaNs, are in the last bin. A split on
+ * {@code bin <= b} is therefore the same as a split on
+ * {@code value <= edges[b]}.
+ *
+ * @author Antony Holmes
+ */
+public class Quantizer {
+
+  /**
+   * The maximum number of bins per feature, so that a bin fits in a byte.
+   */
+  public static final int MAX_BINS = 256;
+
+  /**
+   * The bin edges of each feature. Edges may be null for features that a
+   * loaded tree does not use, in which case every value is in bin 0.
+   */
+  private final double[][] mEdges;
+
+  public Quantizer(double[][] edges) {
+    mEdges = edges;
+  }
+
+  public int getFeatureCount() {
+    return mEdges.length;
+  }
+
+  /**
+   * Returns the bin edges of a feature, or null if they are not known.
+   *
+   * @param feature
+   * @return
+   */
+  public double[] getEdges(int feature) {
+    return mEdges[feature];
+  }
+
+  public int getBinCount(int feature) {
+    return mEdges[feature] == null ? 1 : mEdges[feature].length + 1;
+  }
+
+  /**
+   * Returns the bin of a value.
+   *
+   * @param feature
+   * @param v
+   * @return
+   */
+  public int bin(int feature, double v) {
+    double[] edges = mEdges[feature];
+
+    if (edges == null) {
+      return 0;
+    }
+
+    if (Double.isNaN(v)) {
+      return edges.length;
+    }
+
+    // The first edge greater than or equal to v
+    int lo = 0;
+    int hi = edges.length;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (edges[mid] < v) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return lo;
+  }
+
+  /**
+   * Quantize every column of a snapshot.
+   *
+   * @param x
+   * @return
+   */
+  public QuantizedMatrix quantize(PackedMatrix x) {
+    return quantize(x, C45.sequence(x.getCols()));
+  }
+
+  /**
+   * Quantize a subset of the columns of a snapshot.
+   *
+   * @param x The snapshot with rows in feature order.
+   * @param columns The columns to quantize.
+   * @return
+   */
+  public QuantizedMatrix quantize(PackedMatrix x, int[] columns) {
+    QuantizedMatrix ret = new QuantizedMatrix(x.getRows(), columns.length);
+
+    double[] data = x.getData();
+    byte[] bins = ret.getData();
+    int rows = x.getRows();
+
+    FeatureTask.run(rows, (long) rows * columns.length, (start, end) -> {
+      for (int c = 0; c < columns.length; ++c) {
+        int offset = x.getOffset(columns[c]);
+        int toOffset = ret.getOffset(c);
+
+        for (int f = start; f < end; ++f) {
+          bins[toOffset + f] = (byte) bin(f, data[offset + f]);
+        }
+      }
+    });
+
+    return ret;
+  }
+
+  /**
+   * Choose the bin edges of each feature from the values of the training
+   * samples. Features with few distinct values get an edge between each
+   * pair of consecutive values, so binning loses nothing. Otherwise the
+   * edges are placed at quantiles so that each bin holds a similar number
+   * of samples.
+   *
+   * @param x The snapshot with rows in feature order.
+   * @param columns The training columns.
+   * @param maxBins The maximum number of bins per feature.
+   * @return
+   */
+  public static Quantizer fit(PackedMatrix x, int[] columns, int maxBins) {
+    int rows = x.getRows();
+
+    double[][] edges = new double[rows][];
+
+    FeatureTask.run(rows, (long) rows * columns.length, (start, end) -> {
+      double[] values = new double[columns.length];
+      double[] buffer = new double[maxBins - 1];
+
+      for (int f = start; f < end; ++f) {
+        for (int c = 0; c < columns.length; ++c) {
+          values[c] = x.getValue(f, columns[c]);
+        }
+
+        edges[f] = edges(values, maxBins, buffer);
+      }
+    });
+
+    return new Quantizer(edges);
+  }
+
+  private static double[] edges(double[] values, int maxBins, double[] buffer) {
+    // NaNs sort last
+    Arrays.sort(values);
+
+    int n = 0;
+
+    while (n < values.length && !Double.isNaN(values[n])) {
+      ++n;
+    }
+
+    int distinct = n > 0 ? 1 : 0;
+
+    for (int i = 1; i < n; ++i) {
+      if (values[i] != values[i - 1]) {
+        ++distinct;
+      }
+    }
+
+    int e = 0;
+
+    if (distinct <= maxBins) {
+      for (int i = 1; i < n; ++i) {
+        if (values[i] != values[i - 1]) {
+          buffer[e++] = C45.threshold(values[i - 1], values[i]);
+        }
+      }
+    } else {
+      double last = Double.NEGATIVE_INFINITY;
+
+      for (int k = 1; k < maxBins; ++k) {
+        int i = (int) ((long) k * n / maxBins);
+
+        if (i == 0) {
+          continue;
+        }
+
+        double v = values[i - 1];
+
+        // Place the edge after the last copy of v
+        while (i < n && values[i] == v) {
+          ++i;
+        }
+
+        if (i == n) {
+          break;
+        }
+
+        double edge = C45.threshold(v, values[i]);
+
+        if (edge > last) {
+          buffer[e++] = edge;
+          last = edge;
+        }
+      }
+    }
+
+    return Arrays.copyOf(buffer, e);
+  }
+}
@@ -0,0 +1,318 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A bagged ensemble of decision trees. Each tree is trained with
+ * {@link C45} on a bootstrap sample of the training samples using a random
+ * subset of the genes, and samples are classified by majority vote.
+ *
+ * The trees are flattened into a single {@link CompiledForest} so that each
+ * sample is scored by every tree in one pass.
+ *
+ * @author Antony Holmes
+ */
+public class RandomForest extends TreeModel {
+
+  /**
+   * The default number of trees.
+   */
+  public static final int DEFAULT_TREES = 100;
+
+  private final DecisionTree[] mTrees;
+  private final int[] mUsedFeatures;
+  private final CompiledForest mForest;
+  private final CompiledForest mProjectedForest;
+
+  /**
+   * Create a forest from trees trained on the same features and labels.
+   *
+   * @param name
+   * @param features
+   * @param labels
+   * @param trees
+   */
+  public RandomForest(String name, String[] features, String[] labels,
+      DecisionTree[] trees) {
+    super(name, features, labels);
+
+    mTrees = trees;
+
+    boolean[] used = new boolean[features.length];
+
+    CompiledTree[] compiled = new CompiledTree[trees.length];
+
+    for (int t = 0; t < trees.length; ++t) {
+      for (int f : trees[t].getUsedFeatures()) {
+        used[f] = true;
+      }
+
+      compiled[t] = trees[t].getCompiledTree();
+    }
+
+    int n = 0;
+
+    for (boolean u : used) {
+      if (u) {
+        ++n;
+      }
+    }
+
+    mUsedFeatures = new int[n];
+
+    int[] map = new int[features.length];
+
+    for (int f = 0, i = 0; f < used.length; ++f) {
+      if (used[f]) {
+        map[f] = i;
+        mUsedFeatures[i++] = f;
+      }
+    }
+
+    mForest = CompiledForest.of(compiled, labels.length);
+    mProjectedForest = mForest.remap(map);
+  }
+
+  public DecisionTree[] getTrees() {
+    return mTrees;
+  }
+
+  public int getTreeCount() {
+    return mTrees.length;
+  }
+
+  @Override
+  public int[] getUsedFeatures() {
+    return mUsedFeatures;
+  }
+
+  @Override
+  public int classify(double[] data, int offset) {
+    return mForest.classify(data, offset);
+  }
+
+  @Override
+  public int classifyProjected(double[] data, int offset) {
+    return mProjectedForest.classify(data, offset);
+  }
+
+  /**
+   * Count the votes of the trees for each label.
+   *
+   * @param data The array containing the sample.
+   * @param offset The index of the sample's first feature value in data.
+   * @param votes Receives the number of trees voting for each label.
+   */
+  public void vote(double[] data, int offset, int[] votes) {
+    mForest.vote(data, offset, votes);
+  }
+
+  /**
+   * Returns the fraction of trees voting for each label.
+   *
+   * @param values The sample values indexed by feature.
+   * @return
+   */
+  public double[] getProbabilities(double[] values) {
+    int[] votes = new int[getLabels().length];
+
+    vote(values, 0, votes);
+
+    double[] ret = new double[votes.length];
+
+    for (int l = 0; l < votes.length; ++l) {
+      ret[l] = (double) votes[l] / mTrees.length;
+    }
+
+    return ret;
+  }
+
+  @Override
+  public Element toXml(Document doc) {
+    Element e = doc.createElement("forest");
+    e.setAttribute("name", getName());
+    e.setAttribute("size", Integer.toString(mTrees.length));
+
+    for (DecisionTree tree : mTrees) {
+      e.appendChild(tree.toXml(doc));
+    }
+
+    return e;
+  }
+
+  @Override
+  public void toXml(StreamingXmlWriter writer) throws XMLStreamException {
+    writer.startElement("forest");
+    writer.attribute("name", getName());
+    writer.attribute("size", Integer.toString(mTrees.length));
+
+    for (DecisionTree tree : mTrees) {
+      tree.toXml(writer);
+    }
+
+    writer.endElement();
+  }
+
+  /**
+   * Returns a trainer that builds forests using the square root of the
+   * number of genes for each tree.
+   *
+   * @param trees The number of trees.
+   * @param mode How each tree is trained.
+   * @param seed The random seed, so that training can be repeated.
+   * @return
+   */
+  public static Trainer trainer(int trees, C45.Mode mode, long seed) {
+    return (name, features, x, columns, labels, y) -> train(name,
+        features,
+        x,
+        columns,
+        labels,
+        y,
+        trees,
+        (int) Math.ceil(Math.sqrt(features.length)),
+        mode,
+        seed);
+  }
+
+  /**
+   * Train a forest on a subset of the columns of a snapshot. Each tree is
+   * trained by its own task on the common fork/join pool. Each tree has its
+   * own random seed, derived from the given seed, so the forest does not
+   * depend on how the tasks are scheduled.
+   *
+   * @param name The name of the forest.
+   * @param features The feature names.
+   * @param x The values with one row per feature and one column per sample.
+   * @param columns The columns of x to train on.
+   * @param labels The label names.
+   * @param y The label index of each training column.
+   * @param trees The number of trees.
+   * @param genesPerTree The number of genes each tree may split on.
+   * @param mode How each tree is trained.
+   * @param seed The random seed.
+   * @return
+   */
+  public static RandomForest train(String name,
+      String[] features,
+      PackedMatrix x,
+      int[] columns,
+      String[] labels,
+      int[] y,
+      int trees,
+      int genesPerTree,
+      C45.Mode mode,
+      long seed) {
+    SplittableRandom random = new SplittableRandom(seed);
+
+    long[] seeds = new long[trees];
+
+    for (int t = 0; t < trees; ++t) {
+      seeds[t] = random.nextLong();
+    }
+
+    int genes = Math.max(1, Math.min(genesPerTree, features.length));
+
+    DecisionTree[] ret = IntStream.range(0, trees)
+        .parallel()
+        .mapToObj(t -> trainTree(name + " " + (t + 1),
+            features,
+            x,
+            columns,
+            labels,
+            y,
+            genes,
+            mode,
+            new SplittableRandom(seeds[t])))
+        .toArray(DecisionTree[]::new);
+
+    return new RandomForest(name, features, labels, ret);
+  }
+
+  private static DecisionTree trainTree(String name,
+      String[] features,
+      PackedMatrix x,
+      int[] columns,
+      String[] labels,
+      int[] y,
+      int genes,
+      C45.Mode mode,
+      SplittableRandom random) {
+    // Choose the genes with a partial Fisher-Yates shuffle
+    int[] all = C45.sequence(features.length);
+
+    for (int i = 0; i < genes; ++i) {
+      int j = i + random.nextInt(all.length - i);
+      int tmp = all[i];
+      all[i] = all[j];
+      all[j] = tmp;
+    }
+
+    int[] subset = Arrays.copyOf(all, genes);
+
+    Arrays.sort(subset);
+
+    String[] subsetFeatures = new String[genes];
+
+    for (int i = 0; i < genes; ++i) {
+      subsetFeatures[i] = features[subset[i]];
+    }
+
+    // Bootstrap the samples into a snapshot of just the chosen genes
+    int n = columns.length;
+
+    PackedMatrix sample = new PackedMatrix(genes, n);
+    double[] data = x.getData();
+    double[] sampleData = sample.getData();
+    int[] sampleY = new int[n];
+
+    for (int c = 0; c < n; ++c) {
+      int s = random.nextInt(n);
+
+      int offset = x.getOffset(columns[s]);
+      int toOffset = sample.getOffset(c);
+
+      for (int i = 0; i < genes; ++i) {
+        sampleData[toOffset + i] = data[offset + subset[i]];
+      }
+
+      sampleY[c] = y[s];
+    }
+
+    DecisionTree tree = C45.train(name,
+        subsetFeatures,
+        sample,
+        C45.sequence(n),
+        labels,
+        sampleY,
+        mode);
+
+    return new DecisionTree(name, features, labels,
+        remap(tree.getRoot(), subset));
+  }
+
+  /**
+   * Copy a tree with its feature indices mapped to new ones.
+   *
+   * @param node
+   * @param map
+   * @return
+   */
+  private static TreeNode remap(TreeNode node, int[] map) {
+    if (node.isLeaf()) {
+      return node;
+    }
+
+    return TreeNode.split(map[node.getFeature()],
+        node.getThreshold(),
+        remap(node.getLeft(), map),
+        remap(node.getRight(), map));
+  }
+}
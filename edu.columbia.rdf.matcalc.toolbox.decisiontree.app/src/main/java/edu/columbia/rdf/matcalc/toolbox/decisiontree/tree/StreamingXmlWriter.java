@@ -0,0 +1,178 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes XML elements straight to a stream as they are produced, rather
+ * than building a document in memory first, so the memory needed does not
+ * grow with the size of the output.
+ *
+ * The output is laid out the same way as a document written by
+ * {@code XmlUtils.writeXml}: attributes are sorted by name, elements are
+ * indented by two spaces per level and elements without children are
+ * written as empty tags. To allow that, the start tag of an element is held
+ * back until its first child or its end is written.
+ *
+ * @author Antony Holmes
+ */
+public class StreamingXmlWriter implements Closeable {
+
+  private static final int INDENT = 2;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+
+  private final OutputStream mOut;
+  private final XMLStreamWriter mWriter;
+  private final String mNewLine = System.lineSeparator();
+
+  /**
+   * The element whose start tag has not been written yet, or null.
+   */
+  private String mPending;
+  private final Map<String, String> mAttributes = new TreeMap<String, String>();
+
+  /**
+   * The elements whose start tags have been written.
+   */
+  private final Deque<String> mOpen = new ArrayDeque<String>();
+
+  public StreamingXmlWriter(OutputStream out)
+      throws IOException, XMLStreamException {
+    mOut = out;
+
+    // The stream writer cannot write the standalone declaration
+    mOut.write(DECLARATION.getBytes(StandardCharsets.UTF_8));
+
+    mWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(out,
+        "UTF-8");
+  }
+
+  /**
+   * Create a writer to a buffered file.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   * @throws XMLStreamException
+   */
+  public static StreamingXmlWriter create(Path file)
+      throws IOException, XMLStreamException {
+    return new StreamingXmlWriter(
+        new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE));
+  }
+
+  /**
+   * Start an element. Its attributes must be added before any children.
+   *
+   * @param name
+   * @throws XMLStreamException
+   */
+  public void startElement(String name) throws XMLStreamException {
+    writePending();
+
+    mPending = name;
+  }
+
+  /**
+   * Add an attribute to the element that was just started.
+   *
+   * @param name
+   * @param value
+   */
+  public void attribute(String name, String value) {
+    if (mPending == null) {
+      throw new IllegalStateException(
+          "Attribute " + name + " must follow the start of an element.");
+    }
+
+    mAttributes.put(name, value);
+  }
+
+  /**
+   * End the most recently started element.
+   *
+   * @throws XMLStreamException
+   */
+  public void endElement() throws XMLStreamException {
+    if (mPending != null) {
+      newLine(mOpen.size());
+
+      mWriter.writeEmptyElement(mPending);
+      writeAttributes();
+
+      mPending = null;
+    } else {
+      mOpen.pop();
+
+      newLine(mOpen.size());
+
+      mWriter.writeEndElement();
+    }
+
+    if (mOpen.isEmpty()) {
+      // End of the document
+      mWriter.writeCharacters(mNewLine);
+    }
+  }
+
+  private void writePending() throws XMLStreamException {
+    if (mPending == null) {
+      return;
+    }
+
+    newLine(mOpen.size());
+
+    mWriter.writeStartElement(mPending);
+    writeAttributes();
+
+    mOpen.push(mPending);
+
+    mPending = null;
+  }
+
+  private void writeAttributes() throws XMLStreamException {
+    for (Map.Entry<String, String> attribute : mAttributes.entrySet()) {
+      mWriter.writeAttribute(attribute.getKey(), attribute.getValue());
+    }
+
+    mAttributes.clear();
+  }
+
+  private void newLine(int depth) throws XMLStreamException {
+    StringBuilder buffer = new StringBuilder(mNewLine);
+
+    for (int i = 0; i < depth * INDENT; ++i) {
+      buffer.append(' ');
+    }
+
+    mWriter.writeCharacters(buffer.toString());
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      mWriter.flush();
+      mWriter.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    } finally {
+      mOut.close();
+    }
+  }
+}
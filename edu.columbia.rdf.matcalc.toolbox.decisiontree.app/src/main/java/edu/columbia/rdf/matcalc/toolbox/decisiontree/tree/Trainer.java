@@ -0,0 +1,27 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+/**
+ * Trains a model to separate groups of samples.
+ *
+ * @author Antony Holmes
+ */
+public interface Trainer {
+
+  /**
+   * Train a model on a subset of the columns of a snapshot.
+   *
+   * @param name The name of the model.
+   * @param features The feature names.
+   * @param x The values with one row per feature and one column per sample.
+   * @param columns The columns of x to train on.
+   * @param labels The label names.
+   * @param y The label index of each training column.
+   * @return
+   */
+  TreeModel train(String name,
+      String[] features,
+      PackedMatrix x,
+      int[] columns,
+      String[] labels,
+      int[] y);
+}
@@ -0,0 +1,151 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.jebtk.core.NameGetter;
+import org.jebtk.core.xml.XmlRepresentation;
+
+/**
+ * A trained tree based model, such as a single decision tree or an ensemble
+ * of trees. Features are referred to by their index in
+ * {@link #getFeatures()}, so a sample is classified from an array of values
+ * in the same order as the features the model was trained on.
+ *
+ * Models only depend on a few of their features. A sample can also be
+ * classified from just the values of {@link #getUsedFeatures()}, which is
+ * how matrices are scored.
+ *
+ * @author Antony Holmes
+ */
+public abstract class TreeModel
+    implements Comparable<TreeModel>, NameGetter, XmlRepresentation {
+  private final String mName;
+  private final String[] mFeatures;
+  private final String[] mLabels;
+
+  /**
+   * The binding to the matrix the model was most recently applied to.
+   */
+  private volatile FeatureBinding mBinding;
+
+  public TreeModel(String name, String[] features, String[] labels) {
+    mName = name;
+    mFeatures = features;
+    mLabels = labels;
+  }
+
+  @Override
+  public String getName() {
+    return mName;
+  }
+
+  public String[] getFeatures() {
+    return mFeatures;
+  }
+
+  public String[] getLabels() {
+    return mLabels;
+  }
+
+  FeatureBinding getBinding() {
+    return mBinding;
+  }
+
+  void setBinding(FeatureBinding binding) {
+    mBinding = binding;
+  }
+
+  /**
+   * Write the model as XML, producing the same elements as
+   * {@link #toXml(org.w3c.dom.Document)}.
+   *
+   * @param writer
+   * @throws XMLStreamException
+   */
+  public abstract void toXml(StreamingXmlWriter writer)
+      throws XMLStreamException;
+
+  /**
+   * Returns the sorted indices of the features the model splits on. This is
+   * usually a small subset of all the features.
+   *
+   * @return
+   */
+  public abstract int[] getUsedFeatures();
+
+  /**
+   * Classify a sample stored in a larger array.
+   *
+   * @param data The array containing the sample.
+   * @param offset The index of the sample's first feature value in data.
+   * @return The index of the predicted label.
+   */
+  public abstract int classify(double[] data, int offset);
+
+  /**
+   * Classify a sample that only contains the values of the features the
+   * model splits on, in the order of {@link #getUsedFeatures()}.
+   *
+   * @param data The array containing the sample.
+   * @param offset The index of the sample's first value in data.
+   * @return The index of the predicted label.
+   */
+  public abstract int classifyProjected(double[] data, int offset);
+
+  /**
+   * Classify a sample.
+   *
+   * @param values The sample values indexed by feature.
+   * @return The predicted label.
+   */
+  public String classify(double[] values) {
+    return mLabels[classifyLabel(values)];
+  }
+
+  /**
+   * Classify a sample.
+   *
+   * @param values The sample values indexed by feature.
+   * @return The index of the predicted label.
+   */
+  public int classifyLabel(double[] values) {
+    return classify(values, 0);
+  }
+
+  /**
+   * Classify every column of a snapshot whose rows are in feature order.
+   *
+   * @param m
+   * @return The index of the predicted label of each column.
+   */
+  public int[] classify(PackedMatrix m) {
+    int[] ret = new int[m.getCols()];
+
+    double[] data = m.getData();
+
+    for (int c = 0; c < ret.length; ++c) {
+      ret[c] = classify(data, m.getOffset(c));
+    }
+
+    return ret;
+  }
+
+  @Override
+  public int compareTo(TreeModel m) {
+    return mName.compareTo(m.mName);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o instanceof TreeModel) {
+      return compareTo((TreeModel) o) == 0;
+    } else {
+      return false;
+    }
+  }
+
+  @Override
+  public int hashCode() {
+    return mName.hashCode();
+  }
+}
@@ -0,0 +1,82 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+/**
+ * A node in a binary decision tree. Internal nodes send a sample left when
+ * its value for the split feature is less than or equal to the threshold and
+ * right otherwise. Leaves hold the index of the predicted label or, in the
+ * regression trees used by boosting, a value.
+ *
+ * @author Antony Holmes
+ */
+public class TreeNode {
+  private final int mFeature;
+  private final double mThreshold;
+  private final TreeNode mLeft;
+  private final TreeNode mRight;
+  private final int mLabel;
+  private final double mValue;
+
+  private TreeNode(int feature, double threshold, TreeNode left,
+      TreeNode right, int label, double value) {
+    mFeature = feature;
+    mThreshold = threshold;
+    mLeft = left;
+    mRight = right;
+    mLabel = label;
+    mValue = value;
+  }
+
+  public boolean isLeaf() {
+    return mLeft == null;
+  }
+
+  public int getFeature() {
+    return mFeature;
+  }
+
+  public double getThreshold() {
+    return mThreshold;
+  }
+
+  public TreeNode getLeft() {
+    return mLeft;
+  }
+
+  public TreeNode getRight() {
+    return mRight;
+  }
+
+  public int getLabel() {
+    return mLabel;
+  }
+
+  /**
+   * Returns the value of a regression leaf.
+   *
+   * @return
+   */
+  public double getValue() {
+    return mValue;
+  }
+
+  public static TreeNode leaf(int label) {
+    return new TreeNode(-1, 0, null, null, label, 0);
+  }
+
+  /**
+   * Create a regression leaf.
+   *
+   * @param value
+   * @return
+   */
+  public static TreeNode leaf(double value) {
+    return new TreeNode(-1, 0, null, null, -1, value);
+  }
+
+  public static TreeNode split(int feature,
+      double threshold,
+      TreeNode left,
+      TreeNode right) {
+    return new TreeNode(feature, threshold, left, right, -1, 0);
+  }
+}
@@ -0,0 +1,252 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.jebtk.math.matrix.DataFrame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.C45;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.GradientBoostedTrees;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.PackedMatrix;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.RandomForest;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.Trainer;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.TreeModel;
+
+/**
+ * Checks that a library saved in either format loads as the same
+ * classifiers, with the same reference values and the same predictions.
+ *
+ * @author Antony Holmes
+ */
+public class ClassifierFilesTest {
+
+  private static final int GENES = 200;
+
+  private static final int SAMPLES = 40;
+
+  private static final int INFORMATIVE = 10;
+
+  private Path mDir;
+
+  private List<Classifier> mClassifiers;
+
+  /**
+   * Samples to classify, indexed by gene name.
+   */
+  private List<Map<String, Double>> mSamples;
+
+  @Before
+  public void setUp() throws IOException {
+    mDir = Files.createTempDirectory("classifiers");
+
+    Random random = new Random(1);
+
+    mClassifiers = new ArrayList<Classifier>();
+
+    mClassifiers.add(create("Tree",
+        C45.trainer(C45.Mode.PRESORTED),
+        random));
+    mClassifiers.add(create("Forest",
+        RandomForest.trainer(10, C45.Mode.PRESORTED, 1),
+        random));
+    mClassifiers.add(create("Boosted",
+        GradientBoostedTrees.trainer(20, 0.1, 3, 1),
+        random));
+
+    mSamples = new ArrayList<Map<String, Double>>();
+
+    for (int s = 0; s < SAMPLES; ++s) {
+      Map<String, Double> sample = new HashMap<String, Double>();
+
+      for (int g = 0; g < GENES; ++g) {
+        sample.put(gene(g), value(random, g < INFORMATIVE && s % 2 == 0));
+      }
+
+      mSamples.add(sample);
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.list(mDir)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.delete(file);
+      }
+    }
+
+    Files.delete(mDir);
+  }
+
+  @Test
+  public void binaryRoundTrip() throws Exception {
+    Path file = mDir.resolve("lib.clsb");
+
+    ClassifierFiles.save(file, mClassifiers);
+
+    assertTrue(ClassifierFiles.isBinary(file));
+
+    assertSameClassifiers(mClassifiers, ClassifierFiles.load(file));
+  }
+
+  @Test
+  public void xmlRoundTrip() throws Exception {
+    Path file = mDir.resolve("lib.clsx");
+
+    ClassifierFiles.save(file, mClassifiers);
+
+    assertFalse(ClassifierFiles.isBinary(file));
+
+    assertSameClassifiers(mClassifiers, ClassifierFiles.load(file));
+  }
+
+  @Test
+  public void binaryMatchesXml() throws Exception {
+    Path binary = mDir.resolve("lib.clsb");
+    Path xml = mDir.resolve("lib.clsx");
+
+    ClassifierFiles.save(binary, mClassifiers);
+    ClassifierFiles.save(xml, mClassifiers);
+
+    assertSameClassifiers(ClassifierFiles.load(xml),
+        ClassifierFiles.load(binary));
+  }
+
+  private void assertSameClassifiers(List<Classifier> expected,
+      List<Classifier> actual) {
+    assertEquals(expected.size(), actual.size());
+
+    Map<String, Classifier> byName = new HashMap<String, Classifier>();
+
+    for (Classifier c : actual) {
+      byName.put(c.getName(), c);
+    }
+
+    for (Classifier e : expected) {
+      Classifier a = byName.get(e.getName());
+
+      assertEquals(e.getName(), a.getName());
+      assertEquals(e.getPhenotypeName(), a.getPhenotypeName());
+      assertEquals(e.getControlName(), a.getControlName());
+      assertEquals(e.getGeneCount(), a.getGeneCount());
+      assertArrayEquals(e.getModel().getLabels(), a.getModel().getLabels());
+
+      // The XML format writes genes in name order, so compare by name
+      for (int g = 0; g < e.getGeneCount(); ++g) {
+        String gene = e.getGene(g);
+
+        assertSameValues(e.getPhenotypeMatrix(),
+            g,
+            a.getPhenotypeMatrix(),
+            a.getGeneIndex(gene));
+        assertSameValues(e.getControlMatrix(),
+            g,
+            a.getControlMatrix(),
+            a.getGeneIndex(gene));
+      }
+
+      for (Map<String, Double> sample : mSamples) {
+        assertEquals(classify(e.getModel(), sample),
+            classify(a.getModel(), sample));
+      }
+    }
+  }
+
+  private static void assertSameValues(ReferenceMatrix expected,
+      int expectedRow,
+      ReferenceMatrix actual,
+      int actualRow) {
+    assertEquals(expected.getCols(), actual.getCols());
+
+    for (int c = 0; c < expected.getCols(); ++c) {
+      assertEquals(expected.getValue(expectedRow, c),
+          actual.getValue(actualRow, c),
+          0);
+    }
+  }
+
+  private static String classify(TreeModel model,
+      Map<String, Double> sample) {
+    String[] features = model.getFeatures();
+
+    double[] values = new double[features.length];
+
+    for (int f = 0; f < features.length; ++f) {
+      values[f] = sample.get(features[f]);
+    }
+
+    return model.classify(values);
+  }
+
+  private static Classifier create(String name,
+      Trainer trainer,
+      Random random) {
+    String[] genes = new String[GENES];
+
+    for (int g = 0; g < GENES; ++g) {
+      genes[g] = gene(g);
+    }
+
+    DataFrame phenM = DataFrame.createNumericalMatrix(GENES, SAMPLES / 2);
+    DataFrame controlM = DataFrame.createNumericalMatrix(GENES, SAMPLES / 2);
+
+    for (int s = 0; s < SAMPLES / 2; ++s) {
+      for (int g = 0; g < GENES; ++g) {
+        phenM.set(g, s, value(random, g < INFORMATIVE));
+        controlM.set(g, s, value(random, false));
+      }
+    }
+
+    PackedMatrix x = PackedMatrix.of(phenM, controlM);
+
+    int[] y = new int[SAMPLES];
+
+    for (int s = SAMPLES / 2; s < SAMPLES; ++s) {
+      y[s] = 1;
+    }
+
+    TreeModel model = trainer.train(name,
+        genes,
+        x,
+        C45.sequence(SAMPLES),
+        new String[] { "Phenotype", "Control" },
+        y);
+
+    return Classifier.create(name,
+        "Phenotype",
+        phenM,
+        "Control",
+        controlM,
+        genes,
+        null,
+        model);
+  }
+
+  private static String gene(int g) {
+    return "GENE" + (g + 1);
+  }
+
+  /**
+   * Expression values rounded to two decimal places, as they would usually
+   * be written by hand or exported from a spreadsheet.
+   */
+  private static double value(Random random, boolean raised) {
+    double v = 8 + random.nextGaussian() + (raised ? 1 : 0);
+
+    return Math.round(v * 100) / 100.0;
+  }
+}
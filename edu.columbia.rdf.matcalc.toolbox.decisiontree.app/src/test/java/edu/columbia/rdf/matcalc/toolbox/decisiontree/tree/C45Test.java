@@ -0,0 +1,188 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the faster ways of training a C4.5 tree find exactly the same
+ * tree as sorting every feature at every node on a single thread.
+ *
+ * @author Antony Holmes
+ */
+public class C45Test {
+
+  private static final int GENES = 600;
+
+  private static final int SAMPLES = 150;
+
+  /**
+   * The number of genes raised in one of the groups.
+   */
+  private static final int INFORMATIVE = 30;
+
+  /**
+   * Where the raised genes are repeated, which is in a different task from
+   * the originals when features are evaluated in parallel.
+   */
+  private static final int REPEATED = 400;
+
+  /**
+   * Serial at every node.
+   */
+  private static final long SERIAL = Long.MAX_VALUE;
+
+  /**
+   * Parallel at every node.
+   */
+  private static final long PARALLEL = 0;
+
+  @Test
+  public void presortedMatchesExact() {
+    for (int groups = 2; groups <= 3; ++groups) {
+      TrainingData data = new TrainingData(groups, groups);
+
+      assertSameTree(data.train(C45.Mode.EXACT, SERIAL),
+          data.train(C45.Mode.PRESORTED, SERIAL));
+    }
+  }
+
+  @Test
+  public void parallelMatchesSerial() {
+    for (C45.Mode mode : new C45.Mode[] { C45.Mode.EXACT,
+        C45.Mode.PRESORTED }) {
+      TrainingData data = new TrainingData(2, 7);
+
+      assertSameTree(data.train(mode, SERIAL), data.train(mode, PARALLEL));
+    }
+  }
+
+  @Test
+  public void subsetMatchesCopy() {
+    TrainingData data = new TrainingData(2, 11);
+
+    // Train on every third column in place and on a copy of those columns
+    int[] columns = new int[SAMPLES / 3];
+    int[] y = new int[columns.length];
+
+    PackedMatrix copy = new PackedMatrix(GENES, columns.length);
+
+    for (int i = 0; i < columns.length; ++i) {
+      columns[i] = 3 * i;
+      y[i] = data.mY[columns[i]];
+
+      System.arraycopy(data.mX.getData(),
+          data.mX.getOffset(columns[i]),
+          copy.getData(),
+          copy.getOffset(i),
+          GENES);
+    }
+
+    for (C45.Mode mode : new C45.Mode[] { C45.Mode.EXACT,
+        C45.Mode.PRESORTED }) {
+      assertSameTree(
+          C45.train("Subset",
+              data.mGenes,
+              data.mX,
+              columns,
+              data.mLabels,
+              y,
+              mode,
+              PARALLEL),
+          C45.train("Subset",
+              data.mGenes,
+              copy,
+              C45.sequence(columns.length),
+              data.mLabels,
+              y,
+              mode,
+              SERIAL));
+    }
+  }
+
+  private static void assertSameTree(DecisionTree expected,
+      DecisionTree actual) {
+    // A tree that is only a leaf would not test anything
+    assertFalse(expected.getRoot().isLeaf());
+
+    assertSameNode(expected.getRoot(), actual.getRoot());
+  }
+
+  private static void assertSameNode(TreeNode expected, TreeNode actual) {
+    assertEquals(expected.isLeaf(), actual.isLeaf());
+
+    if (expected.isLeaf()) {
+      assertEquals(expected.getLabel(), actual.getLabel());
+    } else {
+      assertEquals(expected.getFeature(), actual.getFeature());
+      assertEquals(expected.getThreshold(), actual.getThreshold(), 0);
+
+      assertSameNode(expected.getLeft(), actual.getLeft());
+      assertSameNode(expected.getRight(), actual.getRight());
+    }
+  }
+
+  /**
+   * Random expression values where a few genes are raised in each group.
+   * Values are rounded to one decimal place so that many are tied, and the
+   * raised genes are repeated in a later block of features so that the best
+   * splits are tied too. Ties are where the ways of finding splits are most
+   * likely to differ.
+   */
+  private static class TrainingData {
+    private final String[] mGenes = new String[GENES];
+    private final String[] mLabels;
+    private final PackedMatrix mX = new PackedMatrix(GENES, SAMPLES);
+    private final int[] mY = new int[SAMPLES];
+
+    public TrainingData(int groups, long seed) {
+      Random random = new Random(seed);
+
+      for (int g = 0; g < GENES; ++g) {
+        mGenes[g] = "GENE" + (g + 1);
+      }
+
+      mLabels = new String[groups];
+
+      for (int i = 0; i < groups; ++i) {
+        mLabels[i] = "Group " + (i + 1);
+      }
+
+      for (int s = 0; s < SAMPLES; ++s) {
+        mY[s] = s % groups;
+
+        int offset = mX.getOffset(s);
+
+        for (int g = 0; g < GENES; ++g) {
+          double v = 8 + random.nextGaussian();
+
+          if (g < INFORMATIVE && g % groups == mY[s]) {
+            v += 1;
+          }
+
+          mX.getData()[offset + g] = Math.round(v * 10) / 10.0;
+        }
+
+        System.arraycopy(mX.getData(),
+            offset,
+            mX.getData(),
+            offset + REPEATED,
+            INFORMATIVE);
+      }
+    }
+
+    public DecisionTree train(C45.Mode mode, long parallelThreshold) {
+      return C45.train("Test",
+          mGenes,
+          mX,
+          C45.sequence(SAMPLES),
+          mLabels,
+          mY,
+          mode,
+          parallelThreshold);
+    }
+  }
+}
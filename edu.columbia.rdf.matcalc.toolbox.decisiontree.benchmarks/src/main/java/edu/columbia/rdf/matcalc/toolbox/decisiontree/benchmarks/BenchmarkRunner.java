@@ -0,0 +1,50 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks. It accepts the usual JMH command line, for example
+ * {@code -p genes=20000 Classify}, but writes the results as JSON to
+ * {@value #DEFAULT_RESULT} unless another format or file is given, so runs
+ * can be compared over time.
+ *
+ * @author Antony Holmes
+ */
+public class BenchmarkRunner {
+  public static final String DEFAULT_RESULT = "jmh-result.json";
+
+  public static void main(String[] args)
+      throws CommandLineOptionException, RunnerException, IOException {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+
+    if (cmd.shouldHelp()) {
+      cmd.showHelp();
+      return;
+    }
+
+    if (cmd.shouldList()) {
+      new Runner(cmd).list();
+      return;
+    }
+
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+
+    if (!cmd.getResultFormat().hasValue()) {
+      options.resultFormat(ResultFormatType.JSON);
+    }
+
+    if (!cmd.getResult().hasValue()) {
+      options.result(DEFAULT_RESULT);
+    }
+
+    new Runner(options.build()).run();
+  }
+}
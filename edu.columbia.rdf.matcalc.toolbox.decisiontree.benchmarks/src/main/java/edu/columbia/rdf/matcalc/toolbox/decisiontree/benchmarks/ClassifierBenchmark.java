@@ -0,0 +1,73 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jebtk.math.matrix.DataFrame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.Classifier;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.TreeModel;
+
+/**
+ * Time to create a classifier from its reference data, both with a
+ * previously trained model, as when a library is read, and when the
+ * classifier has to train its own.
+ *
+ * @author Antony Holmes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassifierBenchmark {
+
+  @Param({ "1000", "10000" })
+  public int genes;
+
+  @Param({ "100" })
+  public int samples;
+
+  @Param({ "2" })
+  public int groups;
+
+  private SyntheticData mData;
+  private DataFrame mPhenM;
+  private DataFrame mControlM;
+  private TreeModel mModel;
+
+  @Setup
+  public void setup() {
+    mData = SyntheticData.create(genes, samples, groups, 1);
+
+    mPhenM = mData.getGroup(0);
+    mControlM = mData.getOtherGroups(0);
+    mModel = mData.toClassifier("Benchmark", null).getModel();
+  }
+
+  @Benchmark
+  public Classifier create() {
+    return create(mModel);
+  }
+
+  @Benchmark
+  public Classifier createAndTrain() {
+    return create(null);
+  }
+
+  private Classifier create(TreeModel model) {
+    return new Classifier("Benchmark", mData.getLabels()[0], mPhenM, "Other",
+        mControlM, mData.getGenes(), null, model);
+  }
+}
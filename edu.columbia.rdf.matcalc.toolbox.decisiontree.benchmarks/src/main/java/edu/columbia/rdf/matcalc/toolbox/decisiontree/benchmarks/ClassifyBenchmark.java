@@ -0,0 +1,98 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.C45;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.DecisionTree;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.PackedMatrix;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.ParallelClassifier;
+
+/**
+ * Time to score samples with a trained tree, one column at a time and a
+ * whole matrix at once. The tree is trained on the same synthetic matrix it
+ * scores.
+ *
+ * @author Antony Holmes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassifyBenchmark {
+
+  @Param({ "1000", "10000" })
+  public int genes;
+
+  @Param({ "1000" })
+  public int samples;
+
+  @Param({ "2" })
+  public int groups;
+
+  private PackedMatrix mValues;
+  private DecisionTree mTree;
+
+  /**
+   * The next column to score in {@link #classifyColumn()}.
+   */
+  private int mColumn;
+
+  @Setup
+  public void setup() {
+    SyntheticData data = SyntheticData.create(genes, samples, groups, 1);
+
+    mValues = data.getValues();
+
+    mTree = C45.train("Benchmark",
+        data.getGenes(),
+        mValues,
+        data.getLabels(),
+        data.getGroups(),
+        C45.Mode.PRESORTED);
+  }
+
+  /**
+   * Score one column, moving on to the next column each call so the
+   * samples take different paths through the tree.
+   *
+   * @return
+   */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public int classifyColumn() {
+    int column = mColumn;
+
+    mColumn = column + 1 == mValues.getCols() ? 0 : column + 1;
+
+    return mTree.classify(mValues.getData(), mValues.getOffset(column));
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int[] classifyMatrix() {
+    return mTree.classify(mValues);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int[] classifyMatrixParallel() {
+    ParallelClassifier classifier = new ParallelClassifier(mValues, mTree);
+
+    classifier.run();
+
+    return classifier.getLabels();
+  }
+}
@@ -0,0 +1,131 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.BinaryClassifierFormat;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.Classifier;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.ClassifierFiles;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.ClassifierService;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.StreamingXmlWriter;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.TreeModel;
+
+/**
+ * Time to save and read a library of classifiers, as XML and in the binary
+ * format. Every classifier in the library shares the same synthetic
+ * reference data and model.
+ *
+ * @author Antony Holmes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+
+  @Param({ "1000", "10000" })
+  public int genes;
+
+  @Param({ "100" })
+  public int samples;
+
+  @Param({ "10" })
+  public int classifiers;
+
+  private List<Classifier> mClassifiers;
+
+  /**
+   * The library exported as XML, which is parsed by
+   * {@link #parseXml()}.
+   */
+  private byte[] mXml;
+
+  private Path mBinaryFile;
+
+  @Setup
+  public void setup() throws IOException, XMLStreamException {
+    SyntheticData data = SyntheticData.create(genes, samples, 2, 1);
+
+    TreeModel model = data.toClassifier("Benchmark", null).getModel();
+
+    mClassifiers = new ArrayList<Classifier>(classifiers);
+
+    for (int i = 0; i < classifiers; ++i) {
+      mClassifiers.add(data.toClassifier("Benchmark " + (i + 1), model));
+    }
+
+    ClassifierService.getInstance().clear();
+    ClassifierService.getInstance().addAll(mClassifiers);
+
+    mXml = exportXml().toByteArray();
+
+    mBinaryFile = Files.createTempFile("benchmark", ".clsb");
+
+    BinaryClassifierFormat.write(mBinaryFile, mClassifiers);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    ClassifierService.getInstance().clear();
+
+    Files.deleteIfExists(mBinaryFile);
+  }
+
+  @Benchmark
+  public ByteArrayOutputStream exportXml()
+      throws IOException, XMLStreamException {
+    ByteArrayOutputStream ret = new ByteArrayOutputStream(
+        mXml != null ? mXml.length : 8192);
+
+    StreamingXmlWriter writer = new StreamingXmlWriter(ret);
+
+    ClassifierService.getInstance().toXml(writer);
+
+    writer.close();
+
+    return ret;
+  }
+
+  @Benchmark
+  public List<Classifier> parseXml()
+      throws IOException, SAXException, ParserConfigurationException {
+    return ClassifierFiles.loadXml(new ByteArrayInputStream(mXml));
+  }
+
+  @Benchmark
+  public Path writeBinary() throws IOException {
+    BinaryClassifierFormat.write(mBinaryFile, mClassifiers);
+
+    return mBinaryFile;
+  }
+
+  @Benchmark
+  public List<Classifier> readBinary() throws IOException {
+    return BinaryClassifierFormat.read(mBinaryFile);
+  }
+}
@@ -0,0 +1,189 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.benchmarks;
+
+import java.util.Random;
+
+import org.jebtk.math.matrix.DataFrame;
+
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.classifier.Classifier;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.PackedMatrix;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.TreeModel;
+
+/**
+ * A synthetic expression matrix with one row per gene and one column per
+ * sample. Samples are dealt to the groups in turn. Each gene has its own
+ * baseline expression and a small fraction of the genes are raised in one
+ * of the groups, so trees trained on the data have real splits to find. The
+ * same arguments always produce the same values.
+ *
+ * @author Antony Holmes
+ */
+public class SyntheticData {
+
+  /**
+   * The fraction of the genes that separate the groups.
+   */
+  public static final double INFORMATIVE_FRACTION = 0.05;
+
+  /**
+   * How far an informative gene is raised in its group, in standard
+   * deviations of the noise.
+   */
+  public static final double EFFECT_SIZE = 2;
+
+  private final String[] mGenes;
+  private final String[] mLabels;
+  private final PackedMatrix mValues;
+  private final int[] mGroups;
+
+  private SyntheticData(String[] genes, String[] labels, PackedMatrix values,
+      int[] groups) {
+    mGenes = genes;
+    mLabels = labels;
+    mValues = values;
+    mGroups = groups;
+  }
+
+  /**
+   * Create a matrix of random expression values.
+   *
+   * @param genes The number of genes.
+   * @param samples The number of samples.
+   * @param groups The number of groups the samples belong to.
+   * @param seed
+   * @return
+   */
+  public static SyntheticData create(int genes,
+      int samples,
+      int groups,
+      long seed) {
+    if (groups < 2 || samples < groups) {
+      throw new IllegalArgumentException(
+          "There must be at least two groups and a sample in each group.");
+    }
+
+    Random random = new Random(seed);
+
+    String[] names = new String[genes];
+    double[] baselines = new double[genes];
+
+    for (int g = 0; g < genes; ++g) {
+      names[g] = "GENE" + (g + 1);
+      baselines[g] = 8 + 2 * random.nextGaussian();
+    }
+
+    String[] labels = new String[groups];
+
+    for (int i = 0; i < groups; ++i) {
+      labels[i] = "Group " + (i + 1);
+    }
+
+    int informative = Math.max(1, (int) (genes * INFORMATIVE_FRACTION));
+
+    PackedMatrix values = new PackedMatrix(genes, samples);
+    int[] y = new int[samples];
+
+    double[] data = values.getData();
+
+    for (int s = 0; s < samples; ++s) {
+      y[s] = s % groups;
+
+      int offset = values.getOffset(s);
+
+      for (int g = 0; g < genes; ++g) {
+        double v = baselines[g] + random.nextGaussian();
+
+        // Informative genes take turns to mark each group
+        if (g < informative && g % groups == y[s]) {
+          v += EFFECT_SIZE;
+        }
+
+        data[offset + g] = v;
+      }
+    }
+
+    return new SyntheticData(names, labels, values, y);
+  }
+
+  public String[] getGenes() {
+    return mGenes;
+  }
+
+  public String[] getLabels() {
+    return mLabels;
+  }
+
+  /**
+   * Returns the values with one row per gene and one column per sample.
+   *
+   * @return
+   */
+  public PackedMatrix getValues() {
+    return mValues;
+  }
+
+  /**
+   * Returns the group index of each sample.
+   *
+   * @return
+   */
+  public int[] getGroups() {
+    return mGroups;
+  }
+
+  /**
+   * Returns the samples of one group as a matrix with one row per gene.
+   *
+   * @param group
+   * @return
+   */
+  public DataFrame getGroup(int group) {
+    return toDataFrame(group, false);
+  }
+
+  /**
+   * Returns the samples of every group except one as a matrix with one row
+   * per gene.
+   *
+   * @param group
+   * @return
+   */
+  public DataFrame getOtherGroups(int group) {
+    return toDataFrame(group, true);
+  }
+
+  /**
+   * Create a classifier of the first group against the rest.
+   *
+   * @param name
+   * @param model A previously trained model, or null to train one.
+   * @return
+   */
+  public Classifier toClassifier(String name, TreeModel model) {
+    return new Classifier(name, mLabels[0], getGroup(0), "Other",
+        getOtherGroups(0), mGenes, null, model);
+  }
+
+  private DataFrame toDataFrame(int group, boolean exclude) {
+    int cols = 0;
+
+    for (int s = 0; s < mGroups.length; ++s) {
+      if ((mGroups[s] == group) != exclude) {
+        ++cols;
+      }
+    }
+
+    DataFrame ret = DataFrame.createNumericalMatrix(mGenes.length, cols);
+
+    for (int s = 0, c = 0; s < mGroups.length; ++s) {
+      if ((mGroups[s] == group) != exclude) {
+        for (int g = 0; g < mGenes.length; ++g) {
+          ret.set(g, c, mValues.getValue(g, s));
+        }
+
+        ++c;
+      }
+    }
+
+    return ret;
+  }
+}
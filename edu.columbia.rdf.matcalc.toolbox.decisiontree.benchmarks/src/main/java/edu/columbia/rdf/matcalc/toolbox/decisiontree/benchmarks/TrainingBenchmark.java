@@ -0,0 +1,61 @@
+package edu.columbia.rdf.matcalc.toolbox.decisiontree.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.C45;
+import edu.columbia.rdf.matcalc.toolbox.decisiontree.tree.DecisionTree;
+
+/**
+ * Time to train a single C4.5 tree on every sample of a synthetic matrix.
+ *
+ * @author Antony Holmes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainingBenchmark {
+
+  @Param({ "1000", "10000" })
+  public int genes;
+
+  @Param({ "100" })
+  public int samples;
+
+  @Param({ "2" })
+  public int groups;
+
+  @Param({ "EXACT", "PRESORTED", "HISTOGRAM" })
+  public C45.Mode mode;
+
+  private SyntheticData mData;
+
+  @Setup
+  public void setup() {
+    mData = SyntheticData.create(genes, samples, groups, 1);
+  }
+
+  @Benchmark
+  public DecisionTree train() {
+    return C45.train("Benchmark",
+        mData.getGenes(),
+        mData.getValues(),
+        mData.getLabels(),
+        mData.getGroups(),
+        mode);
+  }
+}